@@ -9,8 +9,21 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Properties;
 
-import ch.epfl.data.distribdb.lowlevel.DatabaseManager;
+import ch.epfl.data.distribdb.execution.ClusterStatistics;
+import ch.epfl.data.distribdb.execution.GraphProcessor;
+import ch.epfl.data.distribdb.execution.IntermediateStore;
+import ch.epfl.data.distribdb.execution.PartitioningCatalog;
+import ch.epfl.data.distribdb.execution.PlanCache;
+import ch.epfl.data.distribdb.execution.ResultCache;
+import ch.epfl.data.distribdb.execution.StepExecutor;
+import ch.epfl.data.distribdb.execution.TableVersions;
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.DirectDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.ExecutionService;
 import ch.epfl.data.distribdb.lowlevel.ParallelDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.SequentialDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.ShipmentCompression;
+import ch.epfl.data.distribdb.lowlevel.ShipmentMode;
 
 public abstract class AbstractApp {
 	
@@ -18,17 +31,48 @@ public abstract class AbstractApp {
 
 	protected List<String> allNodes = new ArrayList<String>();
 	protected long storageLimitCost = 0;
+	protected long statisticsTtl = ClusterStatistics.DEFAULT_TTL;
+	protected PartitioningCatalog partitioning = new PartitioningCatalog();
+	protected long broadcastThreshold = GraphProcessor.DEFAULT_BROADCAST_THRESHOLD;
+	protected int maxParallelSteps = StepExecutor.DEFAULT_MAX_PARALLEL_STEPS;
+	protected int planCacheSize = PlanCache.DEFAULT_CAPACITY;
+	protected long tableVersionsCheckInterval = TableVersions.DEFAULT_CHECK_INTERVAL;
+	protected long resultCacheBytes = ResultCache.DEFAULT_MAX_BYTES;
+	protected long intermediateStoreBytes = IntermediateStore.DEFAULT_MAX_BYTES;
+	protected long intermediateStoreTtl = IntermediateStore.DEFAULT_TTL;
 	
 	public abstract void run(String[] args) throws SQLException, InterruptedException;
 	
-	public DatabaseManager createDatabaseManager(String configFile) throws SQLException {
-		DatabaseManager dbManager = new ParallelDatabaseManager();
+	public AsyncDatabaseManager createDatabaseManager(String configFile) throws SQLException {
+		AsyncDatabaseManager dbManager = null;
 		
     	Properties prop = new Properties();
     	 
     	try {
             //load a properties file
     		prop.load(new FileInputStream(configFile));
+    		
+    		// one pool of threads for the whole engine
+    		ExecutionService executionService = new ExecutionService("openplum-worker", 
+    				Integer.parseInt(prop.getProperty("executor.maxThreads", 
+    						String.valueOf(ExecutionService.defaultMaxThreads()))));
+    		
+    		String managerType = prop.getProperty("databaseManager", "parallel");
+    		if (managerType.equalsIgnoreCase("parallel")) {
+    			dbManager = new ParallelDatabaseManager(executionService);
+    		} else if (managerType.equalsIgnoreCase("sequential")) {
+    			dbManager = new SequentialDatabaseManager(executionService);
+    		} else if (managerType.equalsIgnoreCase("direct")) {
+    			dbManager = new DirectDatabaseManager(executionService);
+    		} else {
+    			throw new IllegalArgumentException("Unknown database manager: " + managerType);
+    		}
+    		
+    		if (prop.getProperty("connectionPool.maxSize") != null) {
+    			dbManager.setConnectionPoolSize(
+    					Integer.parseInt(prop.getProperty("connectionPool.minSize", "1")), 
+    					Integer.parseInt(prop.getProperty("connectionPool.maxSize")));
+    		}
  
     		for (int i = 0; i < Integer.parseInt(prop.getProperty("numberOfNodes")); i++) {
     			
@@ -42,6 +86,51 @@ public abstract class AbstractApp {
     		}
     		
     		this.storageLimitCost = Long.parseLong(prop.getProperty("storageLimitCost"));
+    		this.partitioning = PartitioningCatalog.fromProperties(prop);
+    		if (prop.getProperty("statistics.ttlSeconds") != null) {
+    			this.statisticsTtl = Long.parseLong(prop.getProperty("statistics.ttlSeconds")) * 1000;
+    		}
+    		if (prop.getProperty("broadcastThreshold") != null) {
+    			this.broadcastThreshold = Long.parseLong(prop.getProperty("broadcastThreshold"));
+    		}
+    		if (prop.getProperty("planCache.size") != null) {
+    			this.planCacheSize = Integer.parseInt(prop.getProperty("planCache.size"));
+    		}
+    		if (prop.getProperty("tableVersions.checkIntervalMs") != null) {
+    			this.tableVersionsCheckInterval = Long.parseLong(prop.getProperty("tableVersions.checkIntervalMs"));
+    		}
+    		if (prop.getProperty("resultCache.maxBytes") != null) {
+    			this.resultCacheBytes = Long.parseLong(prop.getProperty("resultCache.maxBytes"));
+    		}
+    		if (prop.getProperty("intermediateStore.maxBytes") != null) {
+    			this.intermediateStoreBytes = Long.parseLong(prop.getProperty("intermediateStore.maxBytes"));
+    		}
+    		if (prop.getProperty("intermediateStore.ttlSeconds") != null) {
+    			this.intermediateStoreTtl = Long.parseLong(prop.getProperty("intermediateStore.ttlSeconds")) * 1000;
+    		}
+    		if (prop.getProperty("executor.maxParallelSteps") != null) {
+    			this.maxParallelSteps = Integer.parseInt(prop.getProperty("executor.maxParallelSteps"));
+    		}
+    		if (prop.getProperty("shipmentMemoryBudget") != null) {
+    			dbManager.setResultShipmentMemoryBudget(Long.parseLong(prop.getProperty("shipmentMemoryBudget")));
+    		}
+    		
+    		if (prop.getProperty("resultShipmentMode") != null) {
+    			dbManager.setResultShipmentMode(ShipmentMode.forName(prop.getProperty("resultShipmentMode")));
+    		}
+    		if (prop.getProperty("resultShipmentQueueSize") != null) {
+    			dbManager.setResultShipmentQueueSize(Integer.parseInt(prop.getProperty("resultShipmentQueueSize")));
+    		}
+    		if (prop.getProperty("resultShipmentCompression") != null) {
+    			dbManager.setResultShipmentCompression(ShipmentCompression.forName(prop.getProperty("resultShipmentCompression")));
+    		}
+    		for (String name : prop.stringPropertyNames()) {
+    			// resultShipmentCompression.<sourceNodeId>.<destinationNodeId>
+    			String[] parts = name.split("\\.");
+    			if (parts.length == 3 && parts[0].equals("resultShipmentCompression")) {
+    				dbManager.setResultShipmentCompression(parts[1], parts[2], ShipmentCompression.forName(prop.getProperty(name)));
+    			}
+    		}
     	} catch (Exception ex) {
     		System.out.println("Invalid config file path or .properties file structure");
     		System.exit(1);
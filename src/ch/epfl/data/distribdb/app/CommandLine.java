@@ -2,23 +2,44 @@ package ch.epfl.data.distribdb.app;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import ch.epfl.data.distribdb.execution.ClusterStatistics;
 import ch.epfl.data.distribdb.execution.ExecStep;
-import ch.epfl.data.distribdb.execution.GraphProcessor;
+import ch.epfl.data.distribdb.execution.IntermediateStore;
+import ch.epfl.data.distribdb.execution.PlanCache;
+import ch.epfl.data.distribdb.execution.ResultCache;
 import ch.epfl.data.distribdb.execution.StepExecutor;
 import ch.epfl.data.distribdb.execution.TableManager;
+import ch.epfl.data.distribdb.execution.TableVersions;
 import ch.epfl.data.distribdb.lowlevel.AbstractDatabaseManager;
-import ch.epfl.data.distribdb.lowlevel.DatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
 import ch.epfl.data.distribdb.parsing.Parser;
-import ch.epfl.data.distribdb.parsing.QueryRelation;
-import ch.epfl.data.distribdb.tackling.QueryGraph;
 
 public class CommandLine extends AbstractApp {
 
-	DatabaseManager dbManager;
+	AsyncDatabaseManager dbManager;
+	ClusterStatistics statistics;
+	PlanCache planCache;
+	ResultCache resultCache;
+	IntermediateStore intermediateStore;
+	TableManager tableManager;
+	
+	/**
+	 * Prepared queries: PREPARE name AS query (with parameters $1, $2...), 
+	 * EXECUTE name(parameter, ...) and DEALLOCATE [PREPARE] name
+	 */
+	static final Pattern PREPARE = Pattern.compile("\\s*prepare\\s+(\\w+)\\s+as\\s+(.*?)\\s*;?\\s*", 
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	static final Pattern EXECUTE = Pattern.compile("\\s*execute\\s+(\\w+)\\s*(?:\\((.*)\\))?\\s*;?\\s*", 
+			Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+	static final Pattern DEALLOCATE = Pattern.compile("\\s*deallocate\\s+(?:prepare\\s+)?(\\w+)\\s*;?\\s*", 
+			Pattern.CASE_INSENSITIVE);
 	
 	@Override
 	public void run(String[] args) throws SQLException, InterruptedException {
@@ -30,7 +51,18 @@ public class CommandLine extends AbstractApp {
 		
 		dbManager = createDatabaseManager(args[0]);
 		dbManager.setResultShipmentBatchSize(5000);
-		TableManager tableManager = new TableManager();
+		tableManager = new TableManager();
+		statistics = new ClusterStatistics(dbManager, allNodes);
+		statistics.setTimeToLive(statisticsTtl);
+		statistics.setPartitioning(partitioning);
+		statistics.refresh();
+		planCache = new PlanCache(planCacheSize, statistics, partitioning);
+		planCache.setBroadcastThreshold(broadcastThreshold);
+		TableVersions tableVersions = new TableVersions(dbManager, allNodes);
+		tableVersions.setCheckInterval(tableVersionsCheckInterval);
+		resultCache = new ResultCache(tableVersions, resultCacheBytes);
+		intermediateStore = new IntermediateStore(dbManager, allNodes, tableVersions, intermediateStoreBytes);
+		intermediateStore.setTimeToLive(intermediateStoreTtl);
 		Parser.parse("select 1 as bla from parser_needs_to_warm_up");
 		
 		System.out.println(
@@ -49,16 +81,35 @@ public class CommandLine extends AbstractApp {
 			else if (command(query)) continue;
 			
 			try {
-				QueryRelation queryTree = Parser.parse(query);
-				if(DEBUG) System.out.println("\nQUERY: " + queryTree);
-				QueryGraph queryGraph = new QueryGraph(queryTree);
-				if(DEBUG) System.out.println("\nQUERY GRAPH:\n" + queryGraph);
-				
-				GraphProcessor queryGraphProcessor = new GraphProcessor(tableManager, queryGraph);
-				List<ExecStep> execSteps = queryGraphProcessor.processGraph();
+				statistics.refreshIfStale();
+				List<ExecStep> execSteps;
+				ResultSet finalResultSet;
+				Matcher matcher;
+				if((matcher = PREPARE.matcher(query)).matches()) {
+					planCache.prepare(matcher.group(1), matcher.group(2));
+					System.out.println("PREPARE");
+					continue;
+				} else if((matcher = DEALLOCATE.matcher(query)).matches()) {
+					System.out.println(planCache.deallocate(matcher.group(1)) ? "DEALLOCATE" : 
+							"Prepared query " + matcher.group(1) + " does not exist");
+					continue;
+				} else if((matcher = EXECUTE.matcher(query)).matches()) {
+					execSteps = planCache.getPreparedPlan(matcher.group(1), splitParameters(matcher.group(2)), tableManager);
+				} else if((finalResultSet = resultCache.get(query)) != null) {
+					System.out.println();
+					TablePrinter.printTableData(System.in, System.out, finalResultSet);
+					continue;
+				} else {
+					execSteps = planCache.getPlan(query, tableManager);
+				}
 				if(DEBUG) System.out.println("QUERY PLAN:\n" + Arrays.toString(execSteps.toArray()));
-				StepExecutor queryStepExecutor = new StepExecutor(dbManager, tableManager, allNodes);
-				ResultSet finalResultSet = queryStepExecutor.executeSteps(execSteps);
+				List<ExecStep> splicedSteps = intermediateStore.splice(execSteps, tableManager);
+				StepExecutor queryStepExecutor = new StepExecutor(dbManager, tableManager, allNodes, statistics);
+				queryStepExecutor.setMaxParallelSteps(maxParallelSteps);
+				finalResultSet = queryStepExecutor.executeSteps(splicedSteps);
+				intermediateStore.store(splicedSteps, tableManager);
+				// only cached if looked up above (not for EXECUTE)
+				finalResultSet = resultCache.put(query, execSteps, finalResultSet);
 				System.out.println();
 				TablePrinter.printTableData(System.in, System.out, finalResultSet);
 				
@@ -70,6 +121,8 @@ public class CommandLine extends AbstractApp {
 			}
 		}
 		input.close();
+		intermediateStore.clear(tableManager);
+		tableManager.cleanTempTables(dbManager, allNodes);
 		dbManager.shutDown();
 	}
 	
@@ -79,6 +132,8 @@ public class CommandLine extends AbstractApp {
 		query = query.substring(1);
 		if (query.equalsIgnoreCase("cleanall")) { 
 			new TableManager().cleanAllTmpTables(dbManager, allNodes);
+			// the intermediate tables stored were dropped too
+			intermediateStore.clear(tableManager);
 			System.out.println("Cleaned all");
 		} else if (query.equalsIgnoreCase("dbdebugon")) {
 			AbstractDatabaseManager.DEBUG = true;
@@ -92,10 +147,52 @@ public class CommandLine extends AbstractApp {
 		} else if (query.equalsIgnoreCase("debugoff")) {
 			DEBUG = false;
 			System.out.println("DEBUG OFF");
+		} else if (query.equalsIgnoreCase("analyze")) {
+			statistics.refresh();
+			System.out.println("Statistics refreshed");
+		} else if (query.equalsIgnoreCase("stats")) {
+			System.out.println("Executor: " + dbManager.getExecutionService());
+			System.out.println("Plan cache: " + planCache);
+			System.out.println("Result cache: " + resultCache);
+			System.out.println("Intermediate store: " + intermediateStore);
 		}
 		return true;
 	}
 	
+	/**
+	 * Splits the parameters of an EXECUTE on the commas 
+	 * which are neither quoted nor within parentheses
+	 * 
+	 * @param parameters the text between the parentheses (may be null)
+	 * @return List<String> the SQL expressions of the parameters
+	 */
+	static List<String> splitParameters(String parameters) {
+		List<String> split = new ArrayList<String>();
+		if(parameters == null || parameters.trim().isEmpty())
+			return split;
+		int depth = 0;
+		char quote = 0;
+		int start = 0;
+		for(int i = 0; i < parameters.length(); i++) {
+			char c = parameters.charAt(i);
+			if(quote != 0) {
+				if(c == quote) // '' and "" are read as two quoted strings
+					quote = 0;
+			} else if(c == '\'' || c == '"') {
+				quote = c;
+			} else if(c == '(') {
+				depth++;
+			} else if(c == ')') {
+				depth--;
+			} else if(c == ',' && depth == 0) {
+				split.add(parameters.substring(start, i).trim());
+				start = i + 1;
+			}
+		}
+		split.add(parameters.substring(start).trim());
+		return split;
+	}
+	
 	public static void main(String[] args) throws SQLException, InterruptedException {
 		new CommandLine().run(args);
 	}
@@ -5,58 +5,97 @@ import java.sql.SQLException;
 import java.util.List;
 import java.util.Scanner;
 
+import ch.epfl.data.distribdb.execution.ClusterStatistics;
 import ch.epfl.data.distribdb.execution.ExecStep;
-import ch.epfl.data.distribdb.execution.GraphProcessor;
+import ch.epfl.data.distribdb.execution.PlanCache;
 import ch.epfl.data.distribdb.execution.StepExecutor;
 import ch.epfl.data.distribdb.execution.TableManager;
-import ch.epfl.data.distribdb.lowlevel.DatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.ShipmentCompression;
+import ch.epfl.data.distribdb.lowlevel.ShipmentMode;
 import ch.epfl.data.distribdb.parsing.Parser;
-import ch.epfl.data.distribdb.parsing.QueryRelation;
-import ch.epfl.data.distribdb.tackling.QueryGraph;
 
 public class QueryTimer extends AbstractApp {
 
-	DatabaseManager dbManager;
+	AsyncDatabaseManager dbManager;
+	ClusterStatistics statistics;
+	PlanCache planCache;
 	
 	@Override
 	public void run(String[] args) throws SQLException, InterruptedException {
 		
 		if (args.length < 1) {
-			System.out.println("Arguments: config-file");
+			System.out.println("Arguments: config-file [compression]");
+			System.out.println("With \"compression\", the queries are run with binary COPY shipments, " +
+					"once for each compression of the shipped data, and shipment statistics are printed");
 			System.exit(1);
 		}
 		
 		dbManager = createDatabaseManager(args[0]);
 		dbManager.setResultShipmentBatchSize(5000);
 		TableManager tableManager = new TableManager();
+		statistics = new ClusterStatistics(dbManager, allNodes);
+		statistics.setTimeToLive(statisticsTtl);
+		statistics.setPartitioning(partitioning);
+		statistics.refresh();
+		planCache = new PlanCache(planCacheSize, statistics, partitioning);
+		planCache.setBroadcastThreshold(broadcastThreshold);
 		Parser.parse("select 1 as bla from parser_needs_to_warm_up");
 		
 		try {
-			Scanner input = new Scanner(new FileReader("queries.sql"));
+			if (args.length > 1 && args[1].equalsIgnoreCase("compression")) {
+				dbManager.setResultShipmentMode(ShipmentMode.COPY_BINARY);
+				System.out.println("Compression only applies to the data held on the master, at most " + 
+						ShipmentCompression.maxHeldBytes(dbManager.getResultShipmentQueueSize()) + 
+						"B per destination node (queued blocks); the data sent to the nodes is the same");
+				for (ShipmentCompression compression : ShipmentCompression.values()) {
+					System.out.println("Compression " + compression);
+					dbManager.setResultShipmentCompression(compression);
+					dbManager.getShipmentStatistics().reset();
+					timeQueries(tableManager);
+					System.out.println(dbManager.getShipmentStatistics());
+				}
+			} else {
+				timeQueries(tableManager);
+			}
+		} catch (Exception e1) {
+			e1.printStackTrace();
+		} finally {
+			tableManager.cleanTempTables(dbManager, allNodes);
+		}
+		
+		dbManager.shutDown();
+	}
+	
+	/**
+	 * Runs the queries in queries.sql and prints the 
+	 * execution time of each of them (in seconds)
+	 * 
+	 * @param tableManager
+	 * @throws Exception
+	 */
+	private void timeQueries(TableManager tableManager) throws Exception {
+		Scanner input = new Scanner(new FileReader("queries.sql"));
+		try {
 			while (input.hasNext()) {
 				String query = input.nextLine();
 				if (!query.toLowerCase().startsWith("select")) continue;
 				
+				statistics.refreshIfStale();
 				long startTime = System.currentTimeMillis();
 				
-				QueryRelation queryTree = Parser.parse(query);
-				QueryGraph queryGraph = new QueryGraph(queryTree);
-				GraphProcessor queryGraphProcessor = new GraphProcessor(tableManager, queryGraph);
-				List<ExecStep> execSteps = queryGraphProcessor.processGraph();
-				StepExecutor queryStepExecutor = new StepExecutor(dbManager, tableManager, allNodes);
+				List<ExecStep> execSteps = planCache.getPlan(query, tableManager);
+				StepExecutor queryStepExecutor = new StepExecutor(dbManager, tableManager, allNodes, statistics);
+				queryStepExecutor.setMaxParallelSteps(maxParallelSteps);
 				queryStepExecutor.executeSteps(execSteps);
 				
 				System.out.println((System.currentTimeMillis() - startTime) / 1000.0);
-					
+				
+				tableManager.cleanTempTables(dbManager, allNodes);
 			}
-			input.close();
-		} catch (Exception e1) {
-			e1.printStackTrace();
 		} finally {
-			tableManager.cleanTempTables(dbManager, allNodes);
+			input.close();
 		}
-		
-		dbManager.shutDown();
 	}
 	
 	public static void main(String[] args) throws SQLException, InterruptedException {
@@ -0,0 +1,920 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.DbFuture;
+import ch.epfl.data.distribdb.parsing.Aggregate;
+
+import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
+
+/**
+ * AggregateMerger - Hash aggregation operator run on the
+ * master to merge the intermediate results of an aggregate
+ * query (see StepMergeAggregates)
+ *
+ * The intermediate results of each worker are read through
+ * a cursor and merged into an in-memory hash table of groups
+ * as they arrive, without being stored in any table; the
+ * states of the aggregates are kept in arrays of primitives indexed by
+ * group (and groups on a single integer key are looked up
+ * in a map of primitive longs); for queries ordered on a
+ * SUM or COUNT with LIMIT, only the groups which can make
+ * the top k are read (see ThresholdTopK)
+ * Then the groups are filtered (HAVING), ordered and
+ * limited, and returned to be printed
+ * Groups are only merged if they are ordered and filtered on
+ * values which the master compares as the nodes do (numbers,
+ * dates and times, booleans), and compared to numbers
+ *
+ */
+public class AggregateMerger {
+
+	/**
+	 * Handle to DB manager used to read the intermediate results
+	 */
+	private AsyncDatabaseManager dbManager;
+
+	/**
+	 * Constructor - Initializes object with DB manager
+	 *
+	 * @param AsyncDatabaseManager
+	 */
+	public AggregateMerger(AsyncDatabaseManager dbManager) {
+		this.dbManager = dbManager;
+	}
+
+	/**
+	 * Reads the intermediate results from the nodes
+	 * and merges them
+	 *
+	 * @param step the step to execute
+	 * @param nodeIds nodes storing the intermediate results
+	 * @return ResultSet the final results, or null if
+	 * they cannot be merged in memory (the step should
+	 * then gather them and run its final query)
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	public ResultSet merge(StepMergeAggregates step, List<String> nodeIds) throws SQLException, InterruptedException {
+		List<Object> literals = new ArrayList<Object>();
+		for(String literal : step.havingLiterals) {
+			BigDecimal value = parseLiteral(literal);
+			if(value == null) {
+				if(DEBUG) System.out.println("AggregateMerger: cannot compare to " + literal);
+				return null;
+			}
+			literals.add(value);
+		}
+		// ORDER BY SUM or COUNT with LIMIT: only the groups which can make the top k are read
+		String candidates = new ThresholdTopK(dbManager).candidates(step, nodeIds);
+		String query = "SELECT * FROM " + step.fromRelation + (candidates == null ? "" : " WHERE " + candidates);
+		final Groups groups = new Groups(step);
+		List<DbFuture<Boolean>> futures = new ArrayList<DbFuture<Boolean>>();
+		for(String nodeId : nodeIds) {
+			futures.add(dbManager.openCursorAsync(query, nodeId).then(
+					new DbFuture.Continuation<ResultSet, Boolean>() {
+				@Override
+				public DbFuture<Boolean> apply(ResultSet cursor) throws SQLException {
+					try {
+						return DbFuture.completed(groups.add(cursor));
+					} finally {
+						cursor.close();
+					}
+				}
+			}));
+		}
+		for(boolean merged : DbFuture.all(futures).get())
+			if(!merged)
+				return null;
+		return groups.results(literals);
+	}
+
+	/**
+	 * Internal helper function - parses an SQL literal
+	 *
+	 * @param literal SQL text
+	 * @return the BigDecimal value, or null if the literal
+	 * is not a number (strings are compared according to
+	 * the collation of the nodes)
+	 */
+	private static BigDecimal parseLiteral(String literal) {
+		try {
+			return new BigDecimal(literal.trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Internal helper function - compares two non-null values
+	 *
+	 * @param a
+	 * @param b
+	 * @return negative, zero, or positive as a is less
+	 * than, equal to, or greater than b
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static int compare(Object a, Object b) {
+		if(a instanceof Number && b instanceof Number) {
+			if(a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+				return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+			return decimal(a).compareTo(decimal(b));
+		}
+		if(a instanceof Comparable && a.getClass() == b.getClass())
+			return ((Comparable) a).compareTo(b);
+		return a.toString().compareTo(b.toString());
+	}
+
+	/**
+	 * Internal helper function - compares two rows on
+	 * some of their columns, as ORDER BY does: nulls
+	 * are greater than any value
+	 *
+	 * @param a
+	 * @param b
+	 * @param columns indexes of the columns to compare
+	 * @param descending whether each column is compared
+	 * in descending order
+	 * @return negative, zero, or positive as a comes
+	 * before, with, or after b
+	 */
+	static int compareRows(Object[] a, Object[] b, List<Integer> columns, List<Boolean> descending) {
+		for(int i = 0; i < columns.size(); i++) {
+			Object x = a[columns.get(i)];
+			Object y = b[columns.get(i)];
+			int c = x == null ? (y == null ? 0 : 1) : (y == null ? -1 : compare(x, y));
+			if(c != 0)
+				return descending.get(i) ? -c : c;
+		}
+		return 0;
+	}
+
+	/**
+	 * Internal helper function - builds the result set
+	 * of some columns of rows
+	 *
+	 * @param names names of the result columns
+	 * @param types SQL types (see java.sql.Types)
+	 * of the result columns
+	 * @param columns indexes in the rows of the result columns
+	 * @param rows
+	 * @return CachedRowSet the results, positioned before the first row
+	 * @throws SQLException
+	 */
+	static CachedRowSet rowSet(List<String> names, List<Integer> types, List<Integer> columns,
+			List<Object[]> rows) throws SQLException {
+		RowSetMetaDataImpl meta = new RowSetMetaDataImpl();
+		meta.setColumnCount(columns.size());
+		for(int i = 0; i < columns.size(); i++) {
+			meta.setColumnName(i + 1, names.get(i));
+			meta.setColumnLabel(i + 1, names.get(i));
+			meta.setColumnType(i + 1, types.get(i));
+			meta.setNullable(i + 1, ResultSetMetaData.columnNullable);
+		}
+		CachedRowSet results = RowSetProvider.newFactory().createCachedRowSet();
+		results.setMetaData(meta);
+		for(Object[] row : rows) {
+			results.moveToInsertRow();
+			for(int i = 0; i < columns.size(); i++) {
+				if(row[columns.get(i)] == null)
+					results.updateNull(i + 1);
+				else
+					results.updateObject(i + 1, row[columns.get(i)]);
+			}
+			results.insertRow();
+		}
+		results.moveToCurrentRow();
+		results.beforeFirst();
+		return results;
+	}
+
+	/**
+	 * Internal helper function - a number (or the
+	 * text of a number) as a BigDecimal
+	 *
+	 * @param value
+	 * @return BigDecimal
+	 */
+	private static BigDecimal decimal(Object value) {
+		if(value instanceof BigDecimal)
+			return (BigDecimal) value;
+		if(value instanceof Long || value instanceof Integer || value instanceof Short)
+			return BigDecimal.valueOf(((Number) value).longValue());
+		return new BigDecimal(value.toString());
+	}
+
+	/**
+	 * Helper class - hash table of the groups,
+	 * and states of their aggregates
+	 */
+	private static class Groups {
+
+		final StepMergeAggregates step;
+		/**
+		 * Merging of each column of the intermediate results
+		 * (null for the columns not in the results),
+		 * set up upon reading the first results
+		 */
+		Accumulator[] accumulators = null;
+		/**
+		 * Index of each column in the intermediate results
+		 */
+		int[] resultColumns;
+		/**
+		 * Columns of the group key
+		 */
+		int[] keyColumns;
+		/**
+		 * Whether the intermediate results cannot be merged
+		 */
+		boolean unsupported = false;
+		/**
+		 * Groups keyed by their single integer key (null
+		 * if the key is not a single integer column),
+		 * and group of the null key (-1 if none)
+		 */
+		LongIndex longIndex = null;
+		int nullGroup = -1;
+		/**
+		 * Groups keyed by the values of their key columns
+		 */
+		Map<List<Object>, Integer> index = new HashMap<List<Object>, Integer>();
+		/**
+		 * Number of groups, and number the states can hold
+		 */
+		int count = 0;
+		int capacity = 0;
+
+		Groups(StepMergeAggregates step) {
+			this.step = step;
+		}
+
+		/**
+		 * Merges intermediate results into the groups
+		 * (locked row by row, so that the results
+		 * of the nodes are read concurrently)
+		 *
+		 * @param rs intermediate results of a node
+		 * @return false if they cannot be merged in memory
+		 * @throws SQLException
+		 */
+		boolean add(ResultSet rs) throws SQLException {
+			synchronized(this) {
+				if(accumulators == null && !unsupported)
+					setUp(rs.getMetaData());
+				if(unsupported)
+					return false;
+			}
+			while(rs.next())
+				addRow(rs);
+			return true;
+		}
+
+		/**
+		 * Internal helper function - merges the current
+		 * row of intermediate results into its group
+		 *
+		 * @param rs
+		 * @throws SQLException
+		 */
+		synchronized void addRow(ResultSet rs) throws SQLException {
+			int before = count;
+			int group = group(rs);
+			boolean created = count > before;
+			if(count > capacity) {
+				capacity = Math.max(16, capacity * 2);
+				for(Accumulator accumulator : accumulators)
+					if(accumulator != null)
+						accumulator.grow(capacity);
+			}
+			for(int i = 0; i < accumulators.length; i++)
+				if(accumulators[i] != null)
+					accumulators[i].add(group, created, rs, resultColumns[i]);
+		}
+
+		/**
+		 * Internal helper function - picks the merging of each
+		 * column according to the types of the intermediate results
+		 *
+		 * @param meta
+		 * @throws SQLException
+		 */
+		void setUp(ResultSetMetaData meta) throws SQLException {
+			Map<String, Integer> indexes = new HashMap<String, Integer>();
+			for(int i = 1; i <= meta.getColumnCount(); i++)
+				indexes.put(meta.getColumnLabel(i).toLowerCase(), i);
+			int n = step.columns.size();
+			accumulators = new Accumulator[n];
+			resultColumns = new int[n];
+			List<Integer> keys = new ArrayList<Integer>();
+			for(int i = 0; i < n; i++) {
+				if(step.columns.get(i) == null)
+					continue;
+				Integer column = indexes.get(step.columns.get(i).toLowerCase());
+				Accumulator accumulator = column == null ? null : Accumulator.forColumn(step.aggregates.get(i),
+						meta.getColumnType(column), meta.getColumnTypeName(column));
+				if(accumulator == null) {
+					if(DEBUG) System.out.println("AggregateMerger: cannot merge " + step.aggregates.get(i) +
+							" of " + step.columns.get(i) + (column == null ? "" : " (" + meta.getColumnTypeName(column) + ")"));
+					unsupported = true;
+					return;
+				}
+				accumulators[i] = accumulator;
+				resultColumns[i] = column;
+				if(step.aggregates.get(i) == null)
+					keys.add(i);
+			}
+			// strings are ordered according to the collation of the nodes
+			for(int i : step.orderColumns) {
+				if(!SortedMerger.comparable(accumulators[i].type)) {
+					if(DEBUG) System.out.println("AggregateMerger: cannot order on " + step.columns.get(i));
+					unsupported = true;
+					return;
+				}
+			}
+			for(int i : step.havingColumns) {
+				if(!SortedMerger.comparable(accumulators[i].type)) {
+					if(DEBUG) System.out.println("AggregateMerger: cannot filter on " + step.columns.get(i));
+					unsupported = true;
+					return;
+				}
+			}
+			keyColumns = new int[keys.size()];
+			for(int i = 0; i < keyColumns.length; i++)
+				keyColumns[i] = keys.get(i);
+			if(keyColumns.length == 1) {
+				int type = meta.getColumnType(resultColumns[keyColumns[0]]);
+				if(type == Types.BIGINT || type == Types.INTEGER || type == Types.SMALLINT)
+					longIndex = new LongIndex();
+			}
+		}
+
+		/**
+		 * Internal helper function - the group of the
+		 * current row, created if it does not exist yet
+		 *
+		 * @param rs
+		 * @return the group number
+		 * @throws SQLException
+		 */
+		int group(ResultSet rs) throws SQLException {
+			if(longIndex != null) {
+				long key = rs.getLong(resultColumns[keyColumns[0]]);
+				if(rs.wasNull())
+					return nullGroup < 0 ? (nullGroup = count++) : nullGroup;
+				int group = longIndex.get(key);
+				if(group < 0) {
+					group = count++;
+					longIndex.put(key, group);
+				}
+				return group;
+			}
+			Object[] key = new Object[keyColumns.length];
+			for(int i = 0; i < key.length; i++)
+				key[i] = keyValue(rs.getObject(resultColumns[keyColumns[i]]));
+			List<Object> keyList = Arrays.asList(key);
+			Integer group = index.get(keyList);
+			if(group == null) {
+				group = count++;
+				index.put(keyList, group);
+			}
+			return group;
+		}
+
+		/**
+		 * Internal helper function - the value of a key column
+		 * used to look up its group (equal numbers get equal values)
+		 *
+		 * @param value
+		 * @return the value to look up
+		 */
+		static Object keyValue(Object value) {
+			if(value instanceof BigDecimal)
+				return ((BigDecimal) value).signum() == 0 ? BigDecimal.ZERO : ((BigDecimal) value).stripTrailingZeros();
+			return value;
+		}
+
+		/**
+		 * Filters, orders and limits the groups
+		 *
+		 * @param literals values of the HAVING literals
+		 * @return ResultSet the final results
+		 * @throws SQLException
+		 */
+		synchronized ResultSet results(List<Object> literals) throws SQLException {
+			if(accumulators == null)
+				throw new SQLException("No intermediate results to merge");
+			List<Object[]> rows = new ArrayList<Object[]>();
+			for(int group = 0; group < count; group++) {
+				Object[] row = new Object[accumulators.length];
+				for(int i = 0; i < row.length; i++)
+					if(accumulators[i] != null)
+						row[i] = accumulators[i].get(group);
+				if(having(row, literals))
+					rows.add(row);
+			}
+			if(!step.orderColumns.isEmpty()) {
+				Collections.sort(rows, new Comparator<Object[]>() {
+					@Override
+					public int compare(Object[] a, Object[] b) {
+						return compareRows(a, b, step.orderColumns, step.orderDescending);
+					}
+				});
+			}
+			int from = Math.min(step.offset, rows.size());
+			int to = step.numRows < 0 ? rows.size() : Math.min(rows.size(), from + step.numRows);
+			List<Integer> types = new ArrayList<Integer>();
+			for(int output : step.outputs)
+				types.add(accumulators[output].type);
+			return rowSet(step.outputNames, types, step.outputs, rows.subList(from, to));
+		}
+
+		/**
+		 * Internal helper function - evaluates the HAVING clause
+		 *
+		 * @param row values of the columns of a group
+		 * @param literals values of the HAVING literals
+		 * @return true if the group satisfies all conditions
+		 */
+		boolean having(Object[] row, List<Object> literals) {
+			for(int i = 0; i < step.havingColumns.size(); i++) {
+				Object value = row[step.havingColumns.get(i)];
+				if(value == null) // comparisons with null are never true
+					return false;
+				int c = compare(value, literals.get(i));
+				boolean satisfied;
+				switch(step.havingOperators.get(i)) {
+				case LESS_THAN: satisfied = c < 0; break;
+				case LESS_THAN_OR_EQUALS: satisfied = c <= 0; break;
+				case EQUALS: satisfied = c == 0; break;
+				case NOT_EQUALS: satisfied = c != 0; break;
+				case GREATER_THAN: satisfied = c > 0; break;
+				case GREATER_THAN_OR_EQUALS: satisfied = c >= 0; break;
+				default: satisfied = false;
+				}
+				if(!satisfied)
+					return false;
+			}
+			return true;
+		}
+
+	}
+
+	/**
+	 * Helper class - map from primitive longs to group numbers,
+	 * with open addressing (linear probing)
+	 */
+	static class LongIndex {
+
+		long[] keys = new long[16];
+		int[] groups = new int[16];
+		int size = 0;
+
+		LongIndex() {
+			Arrays.fill(groups, -1);
+		}
+
+		/**
+		 * Internal helper function - the first slot
+		 * probed for a key
+		 */
+		private static int slot(long key, int length) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & (length - 1);
+		}
+
+		/**
+		 * @param key
+		 * @return the group of the key, or -1 if none
+		 */
+		int get(long key) {
+			for(int i = slot(key, keys.length); groups[i] >= 0; i = (i + 1) & (keys.length - 1))
+				if(keys[i] == key)
+					return groups[i];
+			return -1;
+		}
+
+		/**
+		 * Adds a key which is not in the map yet
+		 *
+		 * @param key
+		 * @param group
+		 */
+		void put(long key, int group) {
+			if(2 * (size + 1) > keys.length) {
+				long[] oldKeys = keys;
+				int[] oldGroups = groups;
+				keys = new long[2 * oldKeys.length];
+				groups = new int[2 * oldKeys.length];
+				Arrays.fill(groups, -1);
+				for(int i = 0; i < oldKeys.length; i++)
+					if(oldGroups[i] >= 0)
+						insert(oldKeys[i], oldGroups[i]);
+			}
+			insert(key, group);
+			size++;
+		}
+
+		private void insert(long key, int group) {
+			int i = slot(key, keys.length);
+			while(groups[i] >= 0)
+				i = (i + 1) & (keys.length - 1);
+			keys[i] = key;
+			groups[i] = group;
+		}
+
+	}
+
+	/**
+	 * Helper class - states of the merging of a column
+	 * of the intermediate results, one per group
+	 */
+	static abstract class Accumulator {
+
+		/**
+		 * SQL type of the merged values (see java.sql.Types)
+		 */
+		final int type;
+
+		Accumulator(int type) {
+			this.type = type;
+		}
+
+		/**
+		 * Picks the merging of a column
+		 *
+		 * @param aggregate aggregate of the column,
+		 * null for a column of the group key
+		 * @param type SQL type of the column
+		 * @param typeName SQL type name of the column
+		 * @return the accumulator, or null if the
+		 * column cannot be merged in memory
+		 */
+		static Accumulator forColumn(Aggregate aggregate, int type, String typeName) {
+			boolean integer = type == Types.BIGINT || type == Types.INTEGER || type == Types.SMALLINT;
+			boolean decimal = type == Types.NUMERIC || type == Types.DECIMAL;
+			boolean floating = type == Types.DOUBLE || type == Types.FLOAT || type == Types.REAL;
+			if(aggregate == null)
+				return new KeyAccumulator(type);
+			switch(aggregate) {
+			case COUNT:
+				return integer ? new LongSumAccumulator(Types.BIGINT) : null;
+			case SUM:
+				if(integer)
+					return new LongSumAccumulator(Types.NUMERIC);
+				if(decimal)
+					return new DecimalSumAccumulator();
+				return floating ? new DoubleSumAccumulator(type == Types.REAL ? Types.REAL : Types.DOUBLE) : null;
+			case MIN:
+			case MAX:
+				// strings are compared according to the collation of the nodes
+				if(integer || decimal || floating ||
+						type == Types.DATE || type == Types.TIME || type == Types.TIMESTAMP)
+					return new MinMaxAccumulator(type, aggregate == Aggregate.MAX);
+				return null;
+			case AVG:
+				// states of the PostgreSQL averages: {count, sum, ...}
+				if("_int8".equals(typeName) || "_numeric".equals(typeName))
+					return new AvgAccumulator(false);
+				return "_float8".equals(typeName) ? new AvgAccumulator(true) : null;
+			case APPROX_COUNT_DISTINCT:
+				return "bytea".equals(typeName) ? new HllAccumulator() : null;
+			default:
+				return null;
+			}
+		}
+
+		/**
+		 * Makes room for the states of the given number of groups
+		 */
+		abstract void grow(int capacity);
+
+		/**
+		 * Merges the value of the current row into a group
+		 *
+		 * @param group
+		 * @param created whether the group was just created
+		 * @param rs intermediate results
+		 * @param column index of the column in rs
+		 * @throws SQLException
+		 */
+		abstract void add(int group, boolean created, ResultSet rs, int column) throws SQLException;
+
+		/**
+		 * @param group
+		 * @return the merged value of a group (null for SQL NULL)
+		 */
+		abstract Object get(int group);
+
+	}
+
+	/**
+	 * Helper class - column of the group key
+	 */
+	static class KeyAccumulator extends Accumulator {
+
+		Object[] values = new Object[0];
+
+		KeyAccumulator(int type) {
+			super(type);
+		}
+
+		@Override
+		void grow(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		@Override
+		void add(int group, boolean created, ResultSet rs, int column) throws SQLException {
+			if(created)
+				values[group] = rs.getObject(column);
+		}
+
+		@Override
+		Object get(int group) {
+			return values[group];
+		}
+
+	}
+
+	/**
+	 * Helper class - COUNT, and SUM of integers, in longs
+	 * (the sums overflowing are carried in BigDecimals)
+	 */
+	static class LongSumAccumulator extends Accumulator {
+
+		long[] sums = new long[0];
+		boolean[] seen = new boolean[0];
+		BigDecimal[] carries = null;
+
+		LongSumAccumulator(int type) {
+			super(type);
+		}
+
+		@Override
+		void grow(int capacity) {
+			sums = Arrays.copyOf(sums, capacity);
+			seen = Arrays.copyOf(seen, capacity);
+			if(carries != null)
+				carries = Arrays.copyOf(carries, capacity);
+		}
+
+		@Override
+		void add(int group, boolean created, ResultSet rs, int column) throws SQLException {
+			long value = rs.getLong(column);
+			if(rs.wasNull())
+				return;
+			long sum = sums[group];
+			long result = sum + value;
+			if(((sum ^ result) & (value ^ result)) < 0) { // overflow
+				if(carries == null)
+					carries = new BigDecimal[sums.length];
+				carries[group] = BigDecimal.valueOf(sum).add(carries[group] == null ? BigDecimal.ZERO : carries[group]);
+				result = value;
+			}
+			sums[group] = result;
+			seen[group] = true;
+		}
+
+		@Override
+		Object get(int group) {
+			if(!seen[group])
+				return type == Types.BIGINT ? Long.valueOf(0) : null;
+			if(carries != null && carries[group] != null)
+				return carries[group].add(BigDecimal.valueOf(sums[group]));
+			return type == Types.BIGINT ? (Object) Long.valueOf(sums[group]) : BigDecimal.valueOf(sums[group]);
+		}
+
+	}
+
+	/**
+	 * Helper class - SUM of floating point numbers, in doubles
+	 */
+	static class DoubleSumAccumulator extends Accumulator {
+
+		double[] sums = new double[0];
+		boolean[] seen = new boolean[0];
+
+		DoubleSumAccumulator(int type) {
+			super(type);
+		}
+
+		@Override
+		void grow(int capacity) {
+			sums = Arrays.copyOf(sums, capacity);
+			seen = Arrays.copyOf(seen, capacity);
+		}
+
+		@Override
+		void add(int group, boolean created, ResultSet rs, int column) throws SQLException {
+			double value = rs.getDouble(column);
+			if(rs.wasNull())
+				return;
+			sums[group] += value;
+			seen[group] = true;
+		}
+
+		@Override
+		Object get(int group) {
+			if(!seen[group])
+				return null;
+			return type == Types.REAL ? (Object) Float.valueOf((float) sums[group]) : Double.valueOf(sums[group]);
+		}
+
+	}
+
+	/**
+	 * Helper class - SUM of decimal numbers, in BigDecimals
+	 */
+	static class DecimalSumAccumulator extends Accumulator {
+
+		BigDecimal[] sums = new BigDecimal[0];
+
+		DecimalSumAccumulator() {
+			super(Types.NUMERIC);
+		}
+
+		@Override
+		void grow(int capacity) {
+			sums = Arrays.copyOf(sums, capacity);
+		}
+
+		@Override
+		void add(int group, boolean created, ResultSet rs, int column) throws SQLException {
+			BigDecimal value = rs.getBigDecimal(column);
+			if(value != null)
+				sums[group] = sums[group] == null ? value : sums[group].add(value);
+		}
+
+		@Override
+		Object get(int group) {
+			return sums[group];
+		}
+
+	}
+
+	/**
+	 * Helper class - MIN and MAX
+	 */
+	static class MinMaxAccumulator extends Accumulator {
+
+		Object[] values = new Object[0];
+		final boolean max;
+
+		MinMaxAccumulator(int type, boolean max) {
+			super(type);
+			this.max = max;
+		}
+
+		@Override
+		void grow(int capacity) {
+			values = Arrays.copyOf(values, capacity);
+		}
+
+		@Override
+		void add(int group, boolean created, ResultSet rs, int column) throws SQLException {
+			Object value = rs.getObject(column);
+			if(value == null)
+				return;
+			if(values[group] == null || (max ? compare(value, values[group]) > 0 : compare(value, values[group]) < 0))
+				values[group] = value;
+		}
+
+		@Override
+		Object get(int group) {
+			return values[group];
+		}
+
+	}
+
+	/**
+	 * Helper class - AVG, merged from the states of the
+	 * PostgreSQL averages (count in longs, sum in doubles
+	 * for floating point numbers and in BigDecimals otherwise)
+	 */
+	static class AvgAccumulator extends Accumulator {
+
+		/**
+		 * Minimum number of decimal digits of
+		 * the averages of decimal numbers
+		 */
+		private static final int MIN_SCALE = 16;
+
+		long[] counts = new long[0];
+		double[] doubleSums = new double[0];
+		BigDecimal[] decimalSums = new BigDecimal[0];
+		final boolean floating;
+
+		AvgAccumulator(boolean floating) {
+			super(floating ? Types.DOUBLE : Types.NUMERIC);
+			this.floating = floating;
+		}
+
+		@Override
+		void grow(int capacity) {
+			counts = Arrays.copyOf(counts, capacity);
+			if(floating)
+				doubleSums = Arrays.copyOf(doubleSums, capacity);
+			else
+				decimalSums = Arrays.copyOf(decimalSums, capacity);
+		}
+
+		@Override
+		void add(int group, boolean created, ResultSet rs, int column) throws SQLException {
+			Array array = rs.getArray(column);
+			if(array == null)
+				return;
+			Object[] state = (Object[]) array.getArray();
+			counts[group] += ((Number) state[0]).longValue();
+			if(floating)
+				doubleSums[group] += ((Number) state[1]).doubleValue();
+			else
+				decimalSums[group] = decimal(state[1]).add(decimalSums[group] == null ? BigDecimal.ZERO : decimalSums[group]);
+		}
+
+		@Override
+		Object get(int group) {
+			if(counts[group] == 0)
+				return null;
+			if(floating)
+				return doubleSums[group] / counts[group];
+			return decimalSums[group].divide(BigDecimal.valueOf(counts[group]),
+					Math.max(MIN_SCALE, decimalSums[group].scale()), RoundingMode.HALF_UP);
+		}
+
+	}
+
+	/**
+	 * Helper class - APPROX_COUNT_DISTINCT, merged from the
+	 * HyperLogLog sketches of the workers: registers in byte
+	 * arrays, merged and estimated as in tools/create_aggs.sql
+	 */
+	static class HllAccumulator extends Accumulator {
+
+		byte[][] sketches = new byte[0][];
+
+		HllAccumulator() {
+			super(Types.BIGINT);
+		}
+
+		@Override
+		void grow(int capacity) {
+			sketches = Arrays.copyOf(sketches, capacity);
+		}
+
+		@Override
+		void add(int group, boolean created, ResultSet rs, int column) throws SQLException {
+			byte[] sketch = rs.getBytes(column);
+			if(sketch == null)
+				return;
+			if(sketches[group] == null) {
+				sketches[group] = sketch;
+				return;
+			}
+			if(sketch.length != sketches[group].length)
+				throw new SQLException("HyperLogLog sketches of different sizes");
+			for(int i = 0; i < sketch.length; i++)
+				if(sketch[i] > sketches[group][i]) // ranks are below 128
+					sketches[group][i] = sketch[i];
+		}
+
+		@Override
+		Object get(int group) {
+			byte[] sketch = sketches[group];
+			if(sketch == null)
+				return 0L;
+			double m = sketch.length;
+			double harmonic = 0;
+			int zeros = 0;
+			for(byte register : sketch) {
+				harmonic += Math.pow(2, -register);
+				if(register == 0)
+					zeros++;
+			}
+			double estimate = 0.7213 / (1 + 1.079 / m) * m * m / harmonic;
+			if(estimate <= 2.5 * m && zeros > 0) // small range correction (linear counting)
+				estimate = m * Math.log(m / zeros);
+			return Math.round(estimate);
+		}
+
+	}
+
+}
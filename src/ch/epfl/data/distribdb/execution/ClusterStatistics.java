@@ -0,0 +1,297 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.DbFuture;
+
+/**
+ * ClusterStatistics - Catalog of the size estimates of the 
+ * tables stored on the nodes, used by the GraphProcessor
+ * to plan queries based on costs, and by the SuperDuper 
+ * to size its Bloom filters
+ *
+ * The estimates come from the statistics PostgreSQL
+ * maintains on every node (pg_class.reltuples and
+ * pg_stats.n_distinct and avg_width, 
+ * as refreshed by ANALYZE) and are combined over all nodes:
+ * the row count of a table is the sum of its row counts
+ * on the nodes, the number of distinct values of
+ * a column is the sum of its per-node numbers if the
+ * column is unique on each node or the table is partitioned
+ * on it (see PartitioningCatalog), and otherwise their
+ * maximum times the number of nodes holding values (at most
+ * the row count of the table), and the width of the rows
+ * of a table is the sum of the maximum average widths of
+ * its columns on the nodes
+ *
+ * The statistics are read when refresh is called, and 
+ * kept until then, or until they are older than the 
+ * time to live if refreshIfStale is used
+ */
+public class ClusterStatistics {
+
+	/**
+	 * Estimate returned for unknown tables and columns
+	 */
+	public static final long UNKNOWN = -1;
+	/**
+	 * Default time to live of the statistics (in ms)
+	 */
+	public static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+	/**
+	 * Handle to DB manager used to read the statistics of the nodes
+	 */
+	private final AsyncDatabaseManager dbManager;
+	/**
+	 * Nodes from which the statistics are read
+	 */
+	private final List<String> nodeIds;
+	/**
+	 * Placement of the tables, telling which columns
+	 * have disjoint values on the nodes (empty if unknown)
+	 */
+	private PartitioningCatalog partitioning = new PartitioningCatalog();
+	/**
+	 * Row count of each table (keyed by lower-case table name)
+	 */
+	private Map<String, Long> rowCounts = new HashMap<String, Long>();
+	/**
+	 * Number of distinct values of each column
+	 * (keyed by lower-case "table.column")
+	 */
+	private Map<String, Long> distinctCounts = new HashMap<String, Long>();
+	/**
+	 * Average width (in bytes) of the rows of each table
+	 * (keyed by lower-case table name)
+	 */
+	private Map<String, Long> rowWidths = new HashMap<String, Long>();
+	/**
+	 * Time (in ms) of the last refresh, 0 if never
+	 */
+	private long refreshTime = 0;
+	/**
+	 * Time to live of the statistics (in ms)
+	 */
+	private long ttl = DEFAULT_TTL;
+
+	/**
+	 * Constructor - Initializes the object with the DB manager
+	 * and the list of nodes; no statistics are read yet
+	 *
+	 * @param AsyncDatabaseManager
+	 * @param List<String> nodeIds
+	 */
+	public ClusterStatistics(AsyncDatabaseManager dbManager, List<String> nodeIds) {
+		this.dbManager = dbManager;
+		this.nodeIds = nodeIds;
+	}
+
+	/**
+	 * Sets the placement of the tables, used to
+	 * combine the numbers of distinct values of the
+	 * nodes on the next refresh
+	 * 
+	 * @param partitioning
+	 */
+	public synchronized void setPartitioning(PartitioningCatalog partitioning) {
+		this.partitioning = partitioning;
+	}
+
+	/**
+	 * Sets how long the statistics are used before 
+	 * refreshIfStale reads them again
+	 * 
+	 * @param ttl time to live (in ms)
+	 */
+	public synchronized void setTimeToLive(long ttl) {
+		if(ttl < 0)
+			throw new IllegalArgumentException("Invalid time to live: " + ttl);
+		this.ttl = ttl;
+	}
+	
+	/**
+	 * Reads the statistics of all nodes if they were 
+	 * never read or are older than the time to live
+	 *
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	public void refreshIfStale() throws SQLException, InterruptedException {
+		synchronized(this) {
+			if(refreshTime != 0 && System.currentTimeMillis() - refreshTime < ttl)
+				return;
+		}
+		refresh();
+	}
+
+	/**
+	 * Reads the statistics of all nodes (in parallel)
+	 * and replaces the current estimates with them
+	 *
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	public void refresh() throws SQLException, InterruptedException {
+		final List<DbFuture<ResultSet>> tables = new ArrayList<DbFuture<ResultSet>>();
+		final List<DbFuture<ResultSet>> columns = new ArrayList<DbFuture<ResultSet>>();
+		for(String nodeId : nodeIds) {
+			tables.add(dbManager.fetchAsync("" +
+					"SELECT c.relname, c.reltuples " +
+					"FROM pg_catalog.pg_class c " +
+					"JOIN pg_catalog.pg_namespace n ON n.oid = c.relnamespace " +
+					"WHERE c.relkind = 'r' AND n.nspname = 'public'", nodeId));
+			columns.add(dbManager.fetchAsync("" +
+					"SELECT tablename, attname, n_distinct, avg_width " +
+					"FROM pg_catalog.pg_stats " +
+					"WHERE schemaname = 'public'", nodeId));
+		}
+
+		Map<String, Long> newRowCounts = new HashMap<String, Long>();
+		List<Map<String, Long>> nodeRowCounts = new ArrayList<Map<String, Long>>();
+		for(DbFuture<ResultSet> future : tables) {
+			Map<String, Long> counts = new HashMap<String, Long>();
+			ResultSet rs = future.get();
+			while(rs.next()) {
+				String table = rs.getString(1).toLowerCase();
+				long count = Math.max(0, (long) rs.getFloat(2));
+				counts.put(table, count);
+				Long total = newRowCounts.get(table);
+				newRowCounts.put(table, (total == null ? 0 : total) + count);
+			}
+			nodeRowCounts.add(counts);
+		}
+
+		Map<String, Long> newDistinctCounts = new HashMap<String, Long>();
+		Map<String, Long> newWidths = new HashMap<String, Long>();
+		Map<String, Boolean> unique = new HashMap<String, Boolean>();
+		Map<String, Long> sums = new HashMap<String, Long>();
+		Map<String, Integer> holders = new HashMap<String, Integer>();
+		for(int i = 0; i < columns.size(); i++) {
+			ResultSet rs = columns.get(i).get();
+			while(rs.next()) {
+				String table = rs.getString(1).toLowerCase();
+				String key = table + "." + rs.getString(2).toLowerCase();
+				float nDistinct = rs.getFloat(3);
+				Long rows = nodeRowCounts.get(i).get(table);
+				// negative n_distinct is a fraction of the row count (-1 means unique)
+				long count = nDistinct >= 0 ? (long) nDistinct : (long) (-nDistinct * (rows == null ? 0 : rows));
+				Long max = newDistinctCounts.get(key);
+				newDistinctCounts.put(key, max == null ? count : Math.max(max, count));
+				Long sum = sums.get(key);
+				sums.put(key, (sum == null ? 0 : sum) + count);
+				Integer holding = holders.get(key);
+				holders.put(key, (holding == null ? 0 : holding) + (count > 0 ? 1 : 0));
+				Boolean wasUnique = unique.get(key);
+				unique.put(key, (wasUnique == null || wasUnique) && nDistinct == -1);
+				Long width = newWidths.get(key);
+				newWidths.put(key, Math.max(width == null ? 0 : width, rs.getLong(4)));
+			}
+		}
+		PartitioningCatalog placements;
+		synchronized(this) {
+			placements = partitioning;
+		}
+		for(Map.Entry<String, Boolean> e : unique.entrySet()) {
+			String key = e.getKey();
+			String table = key.substring(0, key.indexOf('.'));
+			PartitioningCatalog.Placement placement = placements.getPlacement(table);
+			if(e.getValue() || placement != null && placement.kind == PartitioningCatalog.Kind.PARTITIONED &&
+					placement.keys.containsKey(key.substring(key.indexOf('.') + 1))) {
+				// values disjoint on the nodes
+				newDistinctCounts.put(key, sums.get(key));
+			} else {
+				// values possibly on several nodes: each node holding some of them is
+				// assumed to add as many as the largest per-node number (as a sample would)
+				long extrapolated = newDistinctCounts.get(key) * Math.max(1, holders.get(key));
+				Long rows = newRowCounts.get(table);
+				newDistinctCounts.put(key, rows == null ? extrapolated : Math.min(extrapolated, Math.max(rows, newDistinctCounts.get(key))));
+			}
+		}
+
+		Map<String, Long> newRowWidths = new HashMap<String, Long>();
+		for(Map.Entry<String, Long> e : newWidths.entrySet()) {
+			String table = e.getKey().substring(0, e.getKey().indexOf('.'));
+			Long width = newRowWidths.get(table);
+			newRowWidths.put(table, (width == null ? 0 : width) + e.getValue());
+		}
+
+		synchronized(this) {
+			rowCounts = newRowCounts;
+			distinctCounts = newDistinctCounts;
+			rowWidths = newRowWidths;
+			refreshTime = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Returns the estimated number of rows of a table
+	 * over all nodes
+	 *
+	 * @param table name
+	 * @return row count, or UNKNOWN
+	 */
+	public synchronized long getRowCount(String table) {
+		Long count = rowCounts.get(table.toLowerCase());
+		return count == null ? UNKNOWN : count;
+	}
+
+	/**
+	 * Returns the estimated number of distinct values
+	 * of a column of a table over all nodes
+	 *
+	 * @param table name
+	 * @param column name
+	 * @return distinct value count, or UNKNOWN
+	 */
+	public synchronized long getDistinctCount(String table, String column) {
+		Long count = distinctCounts.get(table.toLowerCase() + "." + column.toLowerCase());
+		return count == null ? UNKNOWN : count;
+	}
+
+	/**
+	 * Returns the estimated average width of the rows 
+	 * of a table (sum of the widths of its columns)
+	 *
+	 * @param table name
+	 * @return width (in bytes), or UNKNOWN
+	 */
+	public synchronized long getRowWidth(String table) {
+		Long width = rowWidths.get(table.toLowerCase());
+		return width == null ? UNKNOWN : width;
+	}
+
+	/**
+	 * Returns the time of the last refresh
+	 *
+	 * @return time (in ms), 0 if never refreshed
+	 */
+	public synchronized long getRefreshTime() {
+		return refreshTime;
+	}
+
+	/**
+	 * Returns the number of nodes
+	 * the statistics are read from
+	 *
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return nodeIds.size();
+	}
+
+	/**
+	 * Prints the estimates to string
+	 */
+	@Override
+	public synchronized String toString() {
+		return "rows=" + rowCounts + " distinct=" + distinctCounts;
+	}
+
+}
@@ -1,13 +1,25 @@
 package ch.epfl.data.distribdb.execution;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.epfl.data.distribdb.parsing.NamedRelation;
+
 /**
  * Parent class from which all classes that 
  * represent an elementary execution step inherit
+ * Each step declares the relations it reads and 
+ * the ones it creates, which makes the list of steps 
+ * a dependency DAG: a step has to wait for the steps 
+ * creating the relations it reads, and only for them
  * 
  * @author Amer C (amer.chamseddine@epfl.ch)
  *
  */
-public class ExecStep {
+public abstract class ExecStep {
 
 	/**
 	 * Enumeration defining possible places where 
@@ -19,4 +31,77 @@ public class ExecStep {
 		ON_WORKERS
 	}
 	
+	/**
+	 * Returns the names of the relations read by this step
+	 * 
+	 * @return List<String> relation names, or null if unknown, 
+	 * in which case the step depends on all the steps before it
+	 */
+	public List<String> getInputs() {
+		return null;
+	}
+	
+	/**
+	 * Returns the names of the relations created by this step
+	 * 
+	 * @return List<String> relation names
+	 */
+	public List<String> getOutputs() {
+		return new ArrayList<String>();
+	}
+	
+	/**
+	 * Returns a copy of this step in which the names 
+	 * and literals it refers to are replaced according 
+	 * to the given bindings; this is how a cached plan 
+	 * (see PlanCache) is reused with fresh temporary 
+	 * tables and the literals of the query in hands
+	 * 
+	 * @param bindings replacement of each name or literal
+	 * @return the bound step
+	 */
+	public abstract ExecStep bind(Map<String, String> bindings);
+	
+	/**
+	 * Tokens that can be bound: quoted literals and words
+	 */
+	private static final Pattern TOKEN = Pattern.compile("'(?:[^']|'')*'|\\w+");
+	
+	/**
+	 * Helper function - replaces the tokens of a text 
+	 * (SQL query or relation name) according to the bindings
+	 * 
+	 * @param text
+	 * @param bindings replacement of each token
+	 * @return the bound text
+	 */
+	protected static String bind(String text, Map<String, String> bindings) {
+		Matcher matcher = TOKEN.matcher(text);
+		StringBuffer bound = new StringBuffer();
+		while(matcher.find()) {
+			String replacement = bindings.get(matcher.group());
+			matcher.appendReplacement(bound, Matcher.quoteReplacement(replacement == null ? matcher.group() : replacement));
+		}
+		matcher.appendTail(bound);
+		return bound.toString();
+	}
+	
+	/**
+	 * Helper function - same as above for a relation 
+	 * (its alias is kept)
+	 * 
+	 * @param relation
+	 * @param bindings replacement of each token
+	 * @return the bound relation
+	 */
+	protected static NamedRelation bind(NamedRelation relation, Map<String, String> bindings) {
+		String name = bind(relation.getName(), bindings);
+		if(name.equals(relation.getName()))
+			return relation;
+		NamedRelation bound = new NamedRelation(name);
+		if(relation.getAlias() != null)
+			bound.setAlias(relation.getAlias());
+		return bound;
+	}
+	
 }
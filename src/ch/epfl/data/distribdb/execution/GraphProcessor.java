@@ -1,5 +1,9 @@
 package ch.epfl.data.distribdb.execution;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -9,8 +13,12 @@ import java.util.Map;
 import java.util.Set;
 
 import ch.epfl.data.distribdb.execution.ExecStep.StepPlace;
+import ch.epfl.data.distribdb.parsing.Field;
+import ch.epfl.data.distribdb.parsing.NamedField;
 import ch.epfl.data.distribdb.parsing.NamedRelation;
+import ch.epfl.data.distribdb.parsing.Operand;
 import ch.epfl.data.distribdb.parsing.QueryRelation;
+import ch.epfl.data.distribdb.parsing.Qualifier;
 import ch.epfl.data.distribdb.tackling.PhysicalQueryVertex;
 import ch.epfl.data.distribdb.tackling.QueryEdge;
 import ch.epfl.data.distribdb.tackling.QueryGraph;
@@ -88,6 +96,49 @@ public class GraphProcessor {
 	 * and deleting them at the end
 	 */
 	TableManager tableManager;
+	/**
+	 * Size estimates of the tables stored on the nodes,
+	 * used to pick the cheapest order in which to eat edges
+	 * (null if not available, in which case all the tables 
+	 * are deemed the same size)
+	 */
+	ClusterStatistics statistics;
+	/**
+	 * Estimated row counts of the vertices created 
+	 * while processing the graph (results of sub-queries)
+	 */
+	Map<QueryVertex, Long> estimatedRows = new HashMap<QueryVertex, Long>();
+	/**
+	 * Vertices whose tuples were not moved while fusing 
+	 * the connected component of each picked vertex 
+	 * (see eatAllEdgesPhysical)
+	 */
+	Map<QueryVertex, Set<QueryVertex>> inPlaceVertices = new HashMap<QueryVertex, Set<QueryVertex>>();
+	/**
+	 * Placement of the tables on the nodes, used to 
+	 * join co-located tables without shipping anything 
+	 * (empty if not available)
+	 */
+	PartitioningCatalog partitioning;
+	/**
+	 * Estimated size (in bytes) under which a relation 
+	 * is broadcast to all nodes instead of being 
+	 * shipped through a Bloom filter
+	 */
+	long broadcastThreshold = DEFAULT_BROADCAST_THRESHOLD;
+	
+	/**
+	 * Default broadcast threshold (in bytes)
+	 */
+	public static final long DEFAULT_BROADCAST_THRESHOLD = 1024 * 1024;
+	/**
+	 * Row count assumed for tables without statistics
+	 */
+	private static final long DEFAULT_ROW_COUNT = 1000;
+	/**
+	 * Row width (in bytes) assumed for tables without statistics
+	 */
+	private static final long DEFAULT_ROW_WIDTH = 100;
 	
 	/**
 	 * Constructor - Initializes the object with the graph 
@@ -99,11 +150,52 @@ public class GraphProcessor {
 	 * @param QueryGraph of the query in hands
 	 */
 	public GraphProcessor(TableManager tableManager, QueryGraph graph) {
+		this(tableManager, graph, null);
+	}
+	
+	/**
+	 * Constructor - Same as above, with the statistics 
+	 * of the cluster used to estimate the cost of the plans
+	 * 
+	 * @param TableManager
+	 * @param QueryGraph of the query in hands
+	 * @param ClusterStatistics
+	 */
+	public GraphProcessor(TableManager tableManager, QueryGraph graph, ClusterStatistics statistics) {
+		this(tableManager, graph, statistics, new PartitioningCatalog());
+	}
+	
+	/**
+	 * Constructor - Same as above, with the placement 
+	 * of the tables on the nodes
+	 * 
+	 * @param TableManager
+	 * @param QueryGraph of the query in hands
+	 * @param ClusterStatistics
+	 * @param PartitioningCatalog
+	 */
+	public GraphProcessor(TableManager tableManager, QueryGraph graph, ClusterStatistics statistics, PartitioningCatalog partitioning) {
 		this.tableManager = tableManager;
 		this.graph = new QueryGraph(graph);
+		this.statistics = statistics;
+		this.partitioning = partitioning;
 		edges = this.graph.getEdges();
 	}
 	
+	/**
+	 * Sets the estimated size under which a relation 
+	 * is broadcast to all nodes to be joined 
+	 * (0 never broadcasts)
+	 * It is only used if statistics are available
+	 * 
+	 * @param broadcastThreshold size (in bytes)
+	 */
+	public void setBroadcastThreshold(long broadcastThreshold) {
+		if(broadcastThreshold < 0)
+			throw new IllegalArgumentException("Invalid broadcast threshold: " + broadcastThreshold);
+		this.broadcastThreshold = broadcastThreshold;
+	}
+	
 	/**
 	 * The interface function that can be called to process 
 	 * the graph that was given at the construction time
@@ -166,7 +258,7 @@ public class GraphProcessor {
 		// now that we dont have super nodes, do the logic
 		Set<QueryVertex> nodeChildren = new HashSet<QueryVertex>();
 		nodeChildren.addAll(sqv.getVertices());
-		List<StepSuperDuper> eatenEdgesSteps = new LinkedList<StepSuperDuper>();
+		List<ExecStep> eatenEdgesSteps = new LinkedList<ExecStep>();
 		PhysicalQueryVertex picked;
 		while((picked = pickConnectedPhysical(sqv.getVertices())) != null) {
 			eatAllEdgesPhysical(sqv.getVertices(), picked, eatenEdgesSteps);
@@ -178,37 +270,77 @@ public class GraphProcessor {
 		
 		// if we only have 1, we return
 		if(sqv.getVertices().size() == 1) {
-			for(StepSuperDuper es : eatenEdgesSteps) {
-				((QueryRelation) sqv.getQuery()).replaceRelation(es.fromRelation, (es.outRelation));
+			for(ExecStep es : eatenEdgesSteps) {
+				if(es instanceof StepSuperDuper)
+					((QueryRelation) sqv.getQuery()).replaceRelation(((StepSuperDuper) es).fromRelation, ((StepSuperDuper) es).outRelation);
+				else if(es instanceof StepShuffle)
+					sqv.getQuery().replaceRelation(((StepShuffle) es).fromRelation, ((StepShuffle) es).outRelation);
+				else if(es instanceof StepBroadcast)
+					sqv.getQuery().replaceRelation(((StepBroadcast) es).fromRelation, ((StepBroadcast) es).outRelation);
 			}
 			execSteps.addAll(eatenEdgesSteps);
 			PhysicalQueryVertex singleVertex = (PhysicalQueryVertex) sqv.getVertices().iterator().next();
+			long resultRows = estimateRows(singleVertex);
 			if(!sqv.isAggregate()) { // if not aggregate
 				PhysicalQueryVertex retVert = null;
 				if(!(singleVertex instanceof NDQueryVertex)) { // if distributed
 					retVert = PhysicalQueryVertex.newInstance(tableManager.generateTmpTblName(sqv.getAlias()));
-					execSteps.add(new StepRunSubquery(sqv.getQuery().toIntermediateString(), false, retVert.getName(), StepPlace.ON_WORKERS));
+					execSteps.add(new StepRunSubquery(sqv.getQuery().toIntermediateString(), false, retVert.getName(), StepPlace.ON_WORKERS, relationNames(sqv.getQuery())));
 					if(sqv.getAlias().equals("whole_query")){ // if top level
 						NamedRelation gathered = new NamedRelation(tableManager.generateTmpTblName(retVert.getName()));
-						execSteps.add(new StepGather(retVert.getName(), gathered.getName()));
-						execSteps.add(new StepRunSubquery(sqv.getQuery().toFinalString(gathered), false, tableManager.generateTmpTblName(retVert.getName()), StepPlace.ON_MASTER));
+						StepMergeSorted merge = StepMergeSorted.forQuery(sqv.getQuery(), retVert.getName(), gathered);
+						if(merge != null) { // ORDER BY ... LIMIT: the master merges the sorted intermediate results
+							execSteps.add(merge);
+						} else {
+							execSteps.add(new StepGather(retVert.getName(), gathered.getName()));
+							execSteps.add(new StepRunSubquery(sqv.getQuery().toFinalString(gathered), false, tableManager.generateTmpTblName(retVert.getName()), StepPlace.ON_MASTER, Arrays.asList(gathered.getName())));
+						}
 					}
 				} else {
 					retVert = NDQueryVertex.newInstance(tableManager.generateTmpTblName(sqv.getAlias()));
-					execSteps.add(new StepRunSubquery(sqv.getQuery().toUnaliasedString(), false, retVert.getName(), StepPlace.ON_MASTER));
+					execSteps.add(new StepRunSubquery(sqv.getQuery().toUnaliasedString(), false, retVert.getName(), StepPlace.ON_MASTER, relationNames(sqv.getQuery())));
 				}
+				estimatedRows.put(retVert, resultRows);
 				return retVert;
 			}
+			if(!(singleVertex instanceof NDQueryVertex) && isGroupingCoLocated(sqv.getQuery(), singleVertex)) {
+				// each group is on a single node: the whole query runs on the workers 
+				// and their results are only concatenated, with no final aggregation
+				QueryRelation query = sqv.getQuery();
+				String localTableName = tableManager.generateTmpTblName(singleVertex.getName());
+				if(query != graph.getQuery() && query.getOrdering() == null && 
+						query.getNumRows() == -1 && query.getOffset() == 0 && !query.areFieldsDistinct()) {
+					// sub-query: its results can stay on the workers
+					PhysicalQueryVertex retVert = PhysicalQueryVertex.newInstance(localTableName);
+					execSteps.add(new StepRunSubquery(query.toLocalString(), true, retVert.getName(), StepPlace.ON_WORKERS, relationNames(query)));
+					estimatedRows.put(retVert, resultRows);
+					return retVert;
+				}
+				NDQueryVertex newVertex = NDQueryVertex.newInstance(tableManager.generateTmpTblName(singleVertex.getName()));
+				estimatedRows.put(newVertex, resultRows);
+				execSteps.add(new StepRunSubquery(query.toLocalString(), true, localTableName, StepPlace.ON_WORKERS, relationNames(query)));
+				NDQueryVertex gathered = NDQueryVertex.newInstance(tableManager.generateTmpTblName(singleVertex.getName()));
+				execSteps.add(new StepGather(localTableName, gathered.getName()));
+				execSteps.add(new StepRunSubquery(query.toConcatenatedString(gathered.getRelation()), false, newVertex.getName(), StepPlace.ON_MASTER, Arrays.asList(gathered.getName())));
+				return newVertex;
+			}
 			NDQueryVertex newVertex = NDQueryVertex.newInstance(tableManager.generateTmpTblName(singleVertex.getName()));
+			estimatedRows.put(newVertex, sqv.getQuery().getGrouping() == null ? 1 : resultRows);
 			if(!(singleVertex instanceof NDQueryVertex)) { // if distributed
 				String intermediateTableName = tableManager.generateTmpTblName(singleVertex.getName());
-				execSteps.add(new StepRunSubquery(sqv.getQuery().toIntermediateString(), true, intermediateTableName, StepPlace.ON_WORKERS));
+				execSteps.add(new StepRunSubquery(sqv.getQuery().toIntermediateString(), true, intermediateTableName, StepPlace.ON_WORKERS, relationNames(sqv.getQuery())));
 				NDQueryVertex gathered = NDQueryVertex.newInstance(tableManager.generateTmpTblName(singleVertex.getName()));
+				StepMergeAggregates merge = sqv.getQuery() == graph.getQuery() ? 
+						StepMergeAggregates.forQuery(sqv.getQuery(), intermediateTableName, gathered.getRelation()) : null;
+				if(merge != null) { // top level: the master merges the intermediate results in memory
+					execSteps.add(merge);
+					return newVertex;
+				}
 				execSteps.add(new StepGather(intermediateTableName, gathered.getName()));
-				execSteps.add(new StepRunSubquery(sqv.getQuery().toFinalString(gathered.getRelation()), true, newVertex.getName(), StepPlace.ON_MASTER));
+				execSteps.add(new StepRunSubquery(sqv.getQuery().toFinalString(gathered.getRelation()), true, newVertex.getName(), StepPlace.ON_MASTER, Arrays.asList(gathered.getName())));
 				return newVertex;
 			}
-			execSteps.add(new StepRunSubquery(sqv.getQuery().toUnaliasedString(), true, newVertex.getName(), StepPlace.ON_MASTER));
+			execSteps.add(new StepRunSubquery(sqv.getQuery().toUnaliasedString(), true, newVertex.getName(), StepPlace.ON_MASTER, relationNames(sqv.getQuery())));
 			return newVertex;
 		}
 		
@@ -223,55 +355,316 @@ public class GraphProcessor {
 		if(!sqv.isAggregate()) { // if not aggregate
 			PhysicalQueryVertex retVert = null;
 			retVert = NDQueryVertex.newInstance(tableManager.generateTmpTblName(sqv.getAlias()));
-			execSteps.add(new StepRunSubquery(sqv.getQuery().toUnaliasedString(), false, retVert.getName(), StepPlace.ON_MASTER));
+			execSteps.add(new StepRunSubquery(sqv.getQuery().toUnaliasedString(), false, retVert.getName(), StepPlace.ON_MASTER, relationNames(sqv.getQuery())));
 			return retVert;
 		}
 		PhysicalQueryVertex newVertex = null;
 		newVertex = NDQueryVertex.newInstance(tableManager.generateTmpTblName(sqv.getAlias()));
-		execSteps.add(new StepRunSubquery(sqv.getQuery().toUnaliasedString(), true, newVertex.getName(), StepPlace.ON_MASTER));
+		execSteps.add(new StepRunSubquery(sqv.getQuery().toUnaliasedString(), true, newVertex.getName(), StepPlace.ON_MASTER, relationNames(sqv.getQuery())));
 		return newVertex;
 	}
 	
+	/**
+	 * Internal helper function - lists the names of the relations 
+	 * a query reads (FROM clause, and sub-queries of the WHERE 
+	 * and HAVING clauses), which are the inputs of the step 
+	 * running it
+	 * 
+	 * @param query
+	 * @return List<String> relation names
+	 */
+	private static List<String> relationNames(QueryRelation query) {
+		List<String> names = new ArrayList<String>();
+		collectRelationNames(query, names);
+		return names;
+	}
+	
+	/**
+	 * Internal helper function - recursive part of relationNames
+	 * 
+	 * @param operand relation or sub-query
+	 * @param names the output list of relation names
+	 */
+	private static void collectRelationNames(Operand operand, List<String> names) {
+		if(operand instanceof NamedRelation) {
+			if(!names.contains(((NamedRelation) operand).getName()))
+				names.add(((NamedRelation) operand).getName());
+			return;
+		}
+		if(!(operand instanceof QueryRelation))
+			return;
+		QueryRelation query = (QueryRelation) operand;
+		for(Operand relation : query.getRelations())
+			collectRelationNames(relation, names);
+		List<Qualifier> qualifiers = new ArrayList<Qualifier>();
+		if(query.getQualifiers() != null)
+			qualifiers.addAll(query.getQualifiers());
+		if(query.getGroupingQualifiers() != null)
+			qualifiers.addAll(query.getGroupingQualifiers());
+		for(Qualifier qualifier : qualifiers)
+			for(Operand o : qualifier.getOperands())
+				collectRelationNames(o, names);
+	}
+	
 	/**
 	 * Internal helper function - picks one connected D vertex
 	 * out of the vertices in the given set
-	 * Ultimately it should pick the vertex corresponding 
-	 * to the biggest table in the database, so that we minimize 
-	 * the number of tuples to be shipped
+	 * The picked vertex stays in place while all the vertices 
+	 * connected to it are shipped to it, so we pick the one for which 
+	 * the estimated number of shipped bytes is the least 
+	 * (see estimateComponentCost), which is typically the biggest table
+	 * Ties are broken by name so that the plan is the same across runs
 	 * 
 	 * @param vertices the set of vertices to pick from
 	 * @return the picked vertex
 	 */
 	private PhysicalQueryVertex pickConnectedPhysical(Set<QueryVertex> vertices) {
-		// TODO pick smartly (e.g. choose largest table, or table at top-most level)
-		for(QueryVertex qv : vertices)
-			if(!(qv instanceof NDQueryVertex))
-				if(edges.get(qv) != null)
-					return (PhysicalQueryVertex) qv;
-		return null;
+		PhysicalQueryVertex picked = null;
+		long pickedCost = 0;
+		for(PhysicalQueryVertex pqv : sortedByName(vertices)) {
+			if(!(pqv instanceof NDQueryVertex) && edges.get(pqv) != null) {
+				long cost = estimateComponentCost(pqv);
+				if(picked == null || cost < pickedCost) {
+					picked = pqv;
+					pickedCost = cost;
+				}
+			}
+		}
+		return picked;
 	}
 	
 	/**
 	 * Internal helper function - picks one connected ND vertex
 	 * out of the vertices in the given set
-	 * Ultimately it should pick the vertex corresponding 
-	 * to the biggest table in the database, so that we minimize 
-	 * the number of tuples to be shipped
+	 * Fusing ND vertices does not ship anything, so 
+	 * we only make sure to pick the same one across runs
 	 * 
 	 * @param vertices the set of vertices to pick from
 	 * @return the picked vertex
 	 */
 	private PhysicalQueryVertex pickConnectedND(Set<QueryVertex> vertices) {
-		// TODO pick smartly (e.g. choose largest table, or table at top-most level)
-		for(QueryVertex qv : vertices)
-			if(edges.get(qv) != null)
-				return (PhysicalQueryVertex) qv;
+		for(PhysicalQueryVertex pqv : sortedByName(vertices))
+			if(edges.get(pqv) != null)
+				return pqv;
 		return null;
 	}
 	
+	/**
+	 * Internal helper function - sorts the physical vertices 
+	 * of the given set by alias then name
+	 * 
+	 * @param vertices the set of vertices to sort
+	 * @return the sorted physical vertices
+	 */
+	private List<PhysicalQueryVertex> sortedByName(Set<QueryVertex> vertices) {
+		List<PhysicalQueryVertex> sorted = new ArrayList<PhysicalQueryVertex>();
+		for(QueryVertex qv : vertices)
+			if(qv instanceof PhysicalQueryVertex)
+				sorted.add((PhysicalQueryVertex) qv);
+		Collections.sort(sorted, new Comparator<PhysicalQueryVertex>() {
+			@Override
+			public int compare(PhysicalQueryVertex v1, PhysicalQueryVertex v2) {
+				return v1.toString().compareTo(v2.toString());
+			}
+		});
+		return sorted;
+	}
+	
+	/**
+	 * Internal helper function - estimates the number of bytes 
+	 * shipped if the connected component of the given vertex 
+	 * is fused into it
+	 * It simulates eatAllEdgesPhysical: starting from the given vertex, 
+	 * the cheapest edge leading to a vertex not reached yet is eaten 
+	 * until the whole component is reached
+	 * 
+	 * @param pqv the vertex that stays in place
+	 * @return the estimated number of shipped bytes
+	 */
+	private long estimateComponentCost(PhysicalQueryVertex pqv) {
+		Set<QueryVertex> reached = new HashSet<QueryVertex>();
+		reached.add(pqv);
+		long cost = 0;
+		while(true) {
+			QueryEdge cheapest = null;
+			long cheapestCost = 0;
+			for(QueryVertex qv : reached) {
+				if(edges.get(qv) == null)
+					continue;
+				for(QueryEdge e : edges.get(qv)) {
+					if(reached.contains(e.getEndPoint()))
+						continue;
+					long c;
+					if(isCoLocated(e, (PhysicalQueryVertex) qv))
+						c = 0;
+					else if(isBroadcastable((PhysicalQueryVertex) e.getEndPoint()))
+						c = estimateBroadcastCost((PhysicalQueryVertex) e.getEndPoint());
+					else
+						c = estimateSemiJoinCost(e, (PhysicalQueryVertex) qv);
+					if(cheapest == null || c < cheapestCost) {
+						cheapest = e;
+						cheapestCost = c;
+					}
+				}
+			}
+			if(cheapest == null)
+				return cost;
+			reached.add(cheapest.getEndPoint());
+			cost += cheapestCost;
+		}
+	}
+	
+	/**
+	 * Internal helper function - estimates the number of bytes 
+	 * shipped when eating an edge with a SuperDuper, i.e., the size 
+	 * of the tuples of the end point that survive the Bloom filter 
+	 * of the start point, times the number of nodes each of them 
+	 * is sent to (the nodes where its join value appears)
+	 * Tuples of an ND end point are sent to all nodes
+	 * 
+	 * @param edge the edge to eat
+	 * @param origin the vertex (before any fusion) whose 
+	 * field is the start point field of the edge
+	 * @return the estimated number of shipped bytes
+	 */
+	private long estimateSemiJoinCost(QueryEdge edge, PhysicalQueryVertex origin) {
+		PhysicalQueryVertex ep = (PhysicalQueryVertex) edge.getEndPoint();
+		String startField = edge.getJoinCondition().getStartPointField();
+		double rows = estimateRows(ep);
+		long startDistinct = estimateDistinct(origin, startField);
+		long endDistinct = estimateDistinct(ep, edge.getJoinCondition().getEndPointField());
+		if(startDistinct > 0 && endDistinct > 0)
+			rows *= Math.min(1.0, (double) startDistinct / endDistinct);
+		if(ep instanceof NDQueryVertex) {
+			rows *= nodeCount();
+		} else if(startDistinct > 0 && !isPartitionedOn(origin, startField)) {
+			// a join value appearing in several tuples is likely on several nodes
+			rows *= Math.min(nodeCount(), Math.max(1.0, (double) estimateRows(origin) / startDistinct));
+		}
+		return (long) Math.ceil(rows * estimateWidth(ep));
+	}
+	
+	/**
+	 * Internal helper function - estimates the number of bytes 
+	 * shipped when eating an edge with a Shuffle of both sides, 
+	 * i.e., the size of both sides, out of which the tuples 
+	 * already on their node are not shipped
+	 * 
+	 * @param edge the edge to eat
+	 * @param origin the vertex whose field is the start point field 
+	 * of the edge (nothing must have been fused to it yet)
+	 * @return the estimated number of shipped bytes
+	 */
+	private long estimateShuffleCost(QueryEdge edge, PhysicalQueryVertex origin) {
+		PhysicalQueryVertex ep = (PhysicalQueryVertex) edge.getEndPoint();
+		double bytes = (double) estimateRows(origin) * estimateWidth(origin) + (double) estimateRows(ep) * estimateWidth(ep);
+		return (long) Math.ceil(bytes * (nodeCount() - 1) / nodeCount());
+	}
+	
+	/**
+	 * Internal helper function - tells whether a vertex is 
+	 * estimated small enough to be broadcast to all nodes
+	 * Without statistics, sizes are not estimated and 
+	 * nothing is broadcast
+	 * 
+	 * @param pqv vertex
+	 * @return true if under the broadcast threshold
+	 */
+	private boolean isBroadcastable(PhysicalQueryVertex pqv) {
+		if(statistics == null || nodeCount() < 2)
+			return false;
+		return (double) estimateRows(pqv) * estimateWidth(pqv) <= broadcastThreshold;
+	}
+	
+	/**
+	 * Internal helper function - estimates the number of bytes 
+	 * shipped when broadcasting a vertex, i.e., its size 
+	 * times the number of nodes not holding its tuples yet
+	 * 
+	 * @param pqv vertex
+	 * @return the estimated number of shipped bytes
+	 */
+	private long estimateBroadcastCost(PhysicalQueryVertex pqv) {
+		return (long) Math.ceil((double) estimateRows(pqv) * estimateWidth(pqv) * (nodeCount() - 1));
+	}
+	
+	/**
+	 * Internal helper function - tells whether the tuples of a vertex 
+	 * having the same value for the given field are on the same node 
+	 * according to the partitioning catalog
+	 * 
+	 * @param pqv vertex
+	 * @param field name
+	 * @return true if partitioned on the field (or on a single node)
+	 */
+	private boolean isPartitionedOn(PhysicalQueryVertex pqv, String field) {
+		if(estimatedRows.containsKey(pqv))
+			return false;
+		PartitioningCatalog.Placement placement = partitioning.getPlacement(pqv.getName());
+		return placement != null && (placement.kind == PartitioningCatalog.Kind.SINGLE || 
+				(placement.kind == PartitioningCatalog.Kind.PARTITIONED && placement.keys.containsKey(field.toLowerCase())));
+	}
+	
+	/**
+	 * Internal helper function - number of nodes 
+	 * (1 if unknown)
+	 * 
+	 * @return number of nodes
+	 */
+	private int nodeCount() {
+		return statistics == null ? 1 : Math.max(1, statistics.getNodeCount());
+	}
+	
+	/**
+	 * Internal helper function - estimated row width of a vertex
+	 * 
+	 * @param pqv vertex
+	 * @return estimated width (in bytes)
+	 */
+	private long estimateWidth(PhysicalQueryVertex pqv) {
+		if(statistics != null && !estimatedRows.containsKey(pqv) && statistics.getRowWidth(pqv.getName()) != ClusterStatistics.UNKNOWN)
+			return statistics.getRowWidth(pqv.getName());
+		return DEFAULT_ROW_WIDTH;
+	}
+	
+	/**
+	 * Internal helper function - estimated row count of a vertex
+	 * 
+	 * @param pqv vertex
+	 * @return estimated row count
+	 */
+	private long estimateRows(PhysicalQueryVertex pqv) {
+		Long rows = estimatedRows.get(pqv);
+		if(rows != null)
+			return rows;
+		if(statistics != null && statistics.getRowCount(pqv.getName()) != ClusterStatistics.UNKNOWN)
+			return statistics.getRowCount(pqv.getName());
+		return DEFAULT_ROW_COUNT;
+	}
+	
+	/**
+	 * Internal helper function - estimated number of distinct 
+	 * values of a field of a vertex
+	 * 
+	 * @param pqv vertex
+	 * @param field name
+	 * @return estimated distinct value count, or ClusterStatistics.UNKNOWN
+	 */
+	private long estimateDistinct(PhysicalQueryVertex pqv, String field) {
+		if(statistics == null || estimatedRows.containsKey(pqv))
+			return ClusterStatistics.UNKNOWN;
+		return statistics.getDistinctCount(pqv.getName(), field);
+	}
+	
 	/**
 	 * Internal helper function - eats the edge connecting a D node to other nodes
-	 * It fuses the two nodes and the resulting operation is a SuperDuper
+	 * It fuses the two nodes and the resulting operation is a SuperDuper, 
+	 * unless the two nodes are co-located on the join fields (see isCoLocated), 
+	 * in which case nothing needs to be shipped and no step is added, 
+	 * or unless the end point is small enough to be replicated on all nodes 
+	 * (see isBroadcastable), in which case a Broadcast step is added, 
+	 * or unless shuffling both nodes on the join fields ships fewer bytes 
+	 * (large-large joins), in which case two Shuffle steps are added
 	 * When an edge is eaten the two vertices are merged meaning that the 
 	 * resulting vertex inherits all their links/edges
 	 * This function keeps on eating adjacent edges until it cannot do it anymore
@@ -284,18 +677,104 @@ public class GraphProcessor {
 	 * we start by eating edges adjacent to it and stop when 
 	 * we don't have edible edges anymore)
 	 * @param execSteps the output of the function meaning the list of 
-	 * SuperDuper steps that need to be performed; the number of elements 
-	 * in the list must be equal to the number of eaten edges
+	 * SuperDuper, Broadcast and Shuffle steps that need to be performed
 	 */
-	private void eatAllEdgesPhysical(Set<QueryVertex> vertices, PhysicalQueryVertex pqv, List<StepSuperDuper> execSteps) {
+	private void eatAllEdgesPhysical(Set<QueryVertex> vertices, PhysicalQueryVertex pqv, List<ExecStep> execSteps) {
 		Map<QueryEdge, PhysicalQueryVertex> history = new HashMap<QueryEdge, PhysicalQueryVertex>();
+		Map<QueryEdge, PhysicalQueryVertex> origin = new HashMap<QueryEdge, PhysicalQueryVertex>();
 		for(QueryEdge e : edges.get(pqv)) {
 			history.put(e, pqv);
+			origin.put(e, pqv);
 		}
+		// vertices whose tuples were not moved (the picked one and the ones fused locally)
+		Set<QueryVertex> inPlace = new HashSet<QueryVertex>();
+		inPlace.add(pqv);
+		boolean fused = false;
 		while(edges.get(pqv) != null) {
-			QueryEdge edge = edges.get(pqv).get(0);
+			// eat the edge shipping the least bytes first (co-located edges ship nothing)
+			QueryEdge edge = null;
+			long edgeCost = 0;
+			boolean edgeLocal = false;
+			boolean edgeShuffled = false;
+			boolean edgeBroadcast = false;
+			for(QueryEdge e : edges.get(pqv)) {
+				PhysicalQueryVertex o = origin.get(e);
+				boolean local = inPlace.contains(o) && isCoLocated(e, o);
+				long cost = local ? 0 : estimateSemiJoinCost(e, o);
+				boolean shuffled = false;
+				boolean broadcast = false;
+				// small end points are replicated rather than filtered
+				if(!local && isBroadcastable((PhysicalQueryVertex) e.getEndPoint())) {
+					cost = estimateBroadcastCost((PhysicalQueryVertex) e.getEndPoint());
+					broadcast = true;
+				}
+				// shuffling moves the picked vertex, so only before anything is fused to it
+				if(!local && !broadcast && !fused && o == pqv && nodeCount() > 1 && !(e.getEndPoint() instanceof NDQueryVertex)) {
+					long shuffleCost = estimateShuffleCost(e, o);
+					if(shuffleCost < cost) {
+						cost = shuffleCost;
+						shuffled = true;
+					}
+				}
+				if(edge == null || cost < edgeCost || (cost == edgeCost && e.toString().compareTo(edge.toString()) < 0)) {
+					edge = e;
+					edgeCost = cost;
+					edgeLocal = local;
+					edgeShuffled = shuffled;
+					edgeBroadcast = broadcast;
+				}
+			}
 			PhysicalQueryVertex sp = (PhysicalQueryVertex) edge.getStartPoint();
 			PhysicalQueryVertex ep = (PhysicalQueryVertex) edge.getEndPoint();
+			fused = true;
+			if(edgeLocal) {
+				// co-located join: the tuples of ep stay where they are, 
+				// and the sub-query joins them on each node
+				graph.removeEdges(sp, ep);
+				for(QueryEdge e : graph.inheritVertex(sp, ep)) {
+					history.put(e, ep);
+					origin.put(e, ep);
+				}
+				inPlace.add(ep);
+				vertices.remove(ep);
+				continue;
+			}
+			if(edgeBroadcast) {
+				// the whole end point is replicated on all nodes 
+				// so that the sub-query joins it on each node
+				PhysicalQueryVertex tempEPTbl = PhysicalQueryVertex.newInstance(tableManager.generateTmpTblName(ep.getName()));
+				execSteps.add(new StepBroadcast(ep.getRelation(), ep instanceof NDQueryVertex, 
+						new NamedRelation(tempEPTbl.getName())));
+				graph.removeEdges(sp, ep);
+				for(QueryEdge e : graph.inheritVertex(sp, ep)) {
+					history.put(e, tempEPTbl);
+					origin.put(e, ep);
+				}
+				vertices.remove(ep);
+				continue;
+			}
+			if(edgeShuffled) {
+				// both sides are hash-partitioned on the join fields 
+				// so that the sub-query joins them on each node
+				PhysicalQueryVertex tempSPTbl = PhysicalQueryVertex.newInstance(tableManager.generateTmpTblName(sp.getName()));
+				PhysicalQueryVertex tempEPTbl = PhysicalQueryVertex.newInstance(tableManager.generateTmpTblName(ep.getName()));
+				execSteps.add(new StepShuffle(sp.getRelation(), edge.getJoinCondition().getStartPointField(), 
+						new NamedRelation(tempSPTbl.getName())));
+				execSteps.add(new StepShuffle(ep.getRelation(), edge.getJoinCondition().getEndPointField(), 
+						new NamedRelation(tempEPTbl.getName())));
+				for(Map.Entry<QueryEdge, PhysicalQueryVertex> h : history.entrySet()) {
+					if(h.getValue() == sp)
+						h.setValue(tempSPTbl);
+				}
+				inPlace.remove(sp);
+				graph.removeEdges(sp, ep);
+				for(QueryEdge e : graph.inheritVertex(sp, ep)) {
+					history.put(e, tempEPTbl);
+					origin.put(e, ep);
+				}
+				vertices.remove(ep);
+				continue;
+			}
 			PhysicalQueryVertex tempEPTbl = PhysicalQueryVertex.newInstance(tableManager.generateTmpTblName(ep.getName()));
 			if(ep instanceof NDQueryVertex) {
 				execSteps.add(new StepSuperDuper(ep.getRelation(), history.get(edge).getRelation(), 
@@ -309,9 +788,63 @@ public class GraphProcessor {
 			graph.removeEdges(sp, ep);
 			for(QueryEdge e : graph.inheritVertex(sp, ep)) {
 				history.put(e, tempEPTbl);
+				origin.put(e, ep);
 			}
 			vertices.remove(ep);
 		}
+		inPlaceVertices.put(pqv, inPlace);
+	}
+	
+	/**
+	 * Internal helper function - tells whether each group 
+	 * of an aggregate query is computed from tuples stored 
+	 * on a single node, which is the case when the query groups 
+	 * on a field on which a table read in place is partitioned 
+	 * (each joined tuple is built on the node of its tuple of that table)
+	 * 
+	 * @param query the aggregate query
+	 * @param pqv the single vertex the query reads 
+	 * (after all its edges were eaten)
+	 * @return true if the groups are co-located
+	 */
+	private boolean isGroupingCoLocated(QueryRelation query, PhysicalQueryVertex pqv) {
+		if(query.getGrouping() == null)
+			return false;
+		Set<QueryVertex> inPlace = inPlaceVertices.containsKey(pqv) ? 
+				inPlaceVertices.get(pqv) : Collections.<QueryVertex>singleton(pqv);
+		for(Field field : query.getGrouping()) {
+			if(!(field instanceof NamedField))
+				continue;
+			for(QueryVertex qv : inPlace) {
+				PhysicalQueryVertex v = (PhysicalQueryVertex) qv;
+				if(((NamedField) field).getRelation() == v.getRelation() && 
+						isPartitionedOn(v, ((NamedField) field).getField()))
+					return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Internal helper function - tells whether an edge 
+	 * joins two tables which are co-located on the join fields 
+	 * according to the partitioning catalog, so that the join 
+	 * can run on each node without shipping anything
+	 * Only tables of the database (not intermediate results) 
+	 * can be co-located
+	 * 
+	 * @param edge the edge to eat
+	 * @param origin the vertex (before any fusion) whose 
+	 * field is the start point field of the edge
+	 * @return true if co-located
+	 */
+	private boolean isCoLocated(QueryEdge edge, PhysicalQueryVertex origin) {
+		PhysicalQueryVertex ep = (PhysicalQueryVertex) edge.getEndPoint();
+		if(ep instanceof NDQueryVertex || origin instanceof NDQueryVertex || 
+				estimatedRows.containsKey(ep) || estimatedRows.containsKey(origin))
+			return false;
+		return partitioning.isCoLocated(origin.getName(), edge.getJoinCondition().getStartPointField(), 
+				ep.getName(), edge.getJoinCondition().getEndPointField());
 	}
 	
 	/**
@@ -327,7 +860,7 @@ public class GraphProcessor {
 	 * description this function does not add any execution step because it fuses
 	 * ND vertices with ND vertices
 	 */
-	private void eatAllEdgesND(Set<QueryVertex> vertices, PhysicalQueryVertex pqv, List<StepSuperDuper> execSteps) {
+	private void eatAllEdgesND(Set<QueryVertex> vertices, PhysicalQueryVertex pqv, List<ExecStep> execSteps) {
 		while(edges.get(pqv) != null) {
 			QueryEdge edge = edges.get(pqv).get(0);
 			PhysicalQueryVertex sp = (PhysicalQueryVertex) edge.getStartPoint();
@@ -0,0 +1,467 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+
+import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
+
+/**
+ * IntermediateStore - Store of the intermediate relations
+ * (temporary tables) computed by the queries already run,
+ * so that later queries needing the same relations
+ * read them instead of computing them again
+ *
+ * The relations stored are the outputs of the RunSubquery
+ * and SuperDuper steps (e.g., filtered or Bloom-reduced
+ * tables). Each one is identified by a fingerprint of the
+ * step which computed it: the text of the step, where
+ * the relations it reads are replaced by the fingerprints
+ * of the steps which computed them, so that two steps have
+ * the same fingerprint iff they compute the same relation
+ * out of the same tables
+ * A stored relation is also kept along with the versions
+ * of the tables it is computed from (see TableVersions),
+ * and is dropped as soon as one of them changes
+ *
+ * Before a plan is run (see splice), its steps whose output
+ * is stored are removed, along with the steps computing
+ * relations only they read, and the stored relations are
+ * read in place of their outputs. After it is run (see store),
+ * the outputs of its steps are kept on the nodes (see
+ * TableManager.keep), up to a given storage size (summed over
+ * the nodes) and for a given time, evicting the least
+ * recently used ones
+ *
+ */
+public class IntermediateStore {
+
+	/**
+	 * Default storage size (in bytes) of the stored relations
+	 */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+	/**
+	 * Default time (in ms) relations are stored
+	 */
+	public static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+	/**
+	 * Helper class - a stored relation
+	 */
+	static class Entry {
+		final String relation;
+		final Map<String, Long> versions;
+		final long bytes;
+		final long storeTime;
+
+		Entry(String relation, Map<String, Long> versions, long bytes, long storeTime) {
+			this.relation = relation;
+			this.versions = versions;
+			this.bytes = bytes;
+			this.storeTime = storeTime;
+		}
+	}
+
+	/**
+	 * Helper class - a step of the plan being run whose output
+	 * can be stored: its fingerprint and the versions of the
+	 * tables it is computed from (read before the plan is run)
+	 */
+	static class Candidate {
+		final String fingerprint;
+		final Map<String, Long> versions;
+
+		Candidate(String fingerprint, Map<String, Long> versions) {
+			this.fingerprint = fingerprint;
+			this.versions = versions;
+		}
+	}
+
+	/**
+	 * Handle to DB manager used to measure the stored relations
+	 */
+	private final AsyncDatabaseManager dbManager;
+	/**
+	 * Nodes on which the relations are stored
+	 */
+	private final List<String> nodeIds;
+	/**
+	 * Versions of the tables stored on the nodes
+	 */
+	private final TableVersions tableVersions;
+	/**
+	 * Maximum storage size (in bytes) of the stored relations
+	 * (0 disables the store)
+	 */
+	private final long maxBytes;
+	/**
+	 * Time (in ms) relations are stored
+	 */
+	private long ttl = DEFAULT_TTL;
+	/**
+	 * Stored relations keyed by fingerprint, in least recently used order
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/**
+	 * Steps of the plan being run whose outputs can be stored
+	 */
+	private final Map<ExecStep, Candidate> candidates = new IdentityHashMap<ExecStep, Candidate>();
+	/**
+	 * Storage size (in bytes) of the stored relations
+	 */
+	private long bytes = 0;
+	/**
+	 * Counters of the steps whose output was found
+	 * in the store, and of the ones whose output was not
+	 */
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Constructor - Initializes an empty store
+	 *
+	 * @param AsyncDatabaseManager
+	 * @param List<String> nodeIds
+	 * @param TableVersions
+	 * @param maxBytes maximum storage size of the stored relations
+	 */
+	public IntermediateStore(AsyncDatabaseManager dbManager, List<String> nodeIds,
+			TableVersions tableVersions, long maxBytes) {
+		if(maxBytes < 0)
+			throw new IllegalArgumentException("Invalid intermediate store size: " + maxBytes);
+		this.dbManager = dbManager;
+		this.nodeIds = nodeIds;
+		this.tableVersions = tableVersions;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sets how long relations are stored
+	 *
+	 * @param ttl time to live (in ms)
+	 */
+	public synchronized void setTimeToLive(long ttl) {
+		if(ttl < 0)
+			throw new IllegalArgumentException("Invalid time to live: " + ttl);
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Splices the stored relations into a plan: the steps
+	 * computing them are removed, as well as the steps whose
+	 * outputs are then no longer read, and the remaining
+	 * steps read the stored relations instead
+	 * Stored relations which are out of date are released
+	 * to the table manager (and dropped with the temporary
+	 * tables of the plan)
+	 *
+	 * @param execSteps the plan
+	 * @param tableManager
+	 * @return List<ExecStep> the plan to run
+	 * @throws InterruptedException
+	 */
+	public synchronized List<ExecStep> splice(List<ExecStep> execSteps, TableManager tableManager) throws InterruptedException {
+		candidates.clear();
+		if(maxBytes == 0)
+			return execSteps;
+		Map<String, Long> current = tableVersions.read();
+		if(current == null)
+			return execSteps;
+		evictExpired(tableManager);
+
+		int last = execSteps.size() - 1;
+		// fingerprint and tables read (directly or not) by the steps, null if unknown
+		List<String> fingerprints = new ArrayList<String>();
+		List<Set<String>> tables = new ArrayList<Set<String>>();
+		Map<String, Integer> producers = new HashMap<String, Integer>();
+		Map<String, String> bindings = new HashMap<String, String>();
+		boolean[] removed = new boolean[execSteps.size()];
+		for(int i = 0; i < last; i++) {
+			ExecStep step = execSteps.get(i);
+			fingerprints.add(fingerprint(step, producers, fingerprints));
+			tables.add(tables(step, producers, tables));
+			for(String output : step.getOutputs())
+				producers.put(output, i);
+			if(fingerprints.get(i) == null || !storable(step))
+				continue;
+			Entry entry = entries.get(fingerprints.get(i));
+			if(entry != null && !TableVersions.unchanged(entry.versions, current)) {
+				if(DEBUG) System.out.println("IntermediateStore: tables changed since stored " + entry.versions);
+				remove(fingerprints.get(i), tableManager);
+				entry = null;
+			}
+			if(entry == null) {
+				misses++;
+				continue;
+			}
+			hits++;
+			removed[i] = true;
+			bindings.put(step.getOutputs().get(0), entry.relation);
+		}
+		if(bindings.isEmpty()) {
+			for(int i = 0; i < last; i++)
+				addCandidate(execSteps.get(i), execSteps.get(i), fingerprints.get(i), tables.get(i), current);
+			return execSteps;
+		}
+
+		// the steps whose outputs are no longer read are removed too
+		Set<String> read = new HashSet<String>(execSteps.get(last).getInputs() == null ?
+				producers.keySet() : execSteps.get(last).getInputs());
+		for(int i = last - 1; i >= 0; i--) {
+			if(!removed[i] && Collections.disjoint(read, execSteps.get(i).getOutputs()))
+				removed[i] = true;
+			if(!removed[i] && execSteps.get(i).getInputs() == null)
+				read.addAll(producers.keySet());
+			else if(!removed[i])
+				read.addAll(execSteps.get(i).getInputs());
+		}
+		List<ExecStep> spliced = new ArrayList<ExecStep>();
+		for(int i = 0; i <= last; i++) {
+			if(removed[i])
+				continue;
+			spliced.add(execSteps.get(i).bind(bindings));
+			if(i < last)
+				addCandidate(spliced.get(spliced.size() - 1), execSteps.get(i), fingerprints.get(i), tables.get(i), current);
+		}
+		if(DEBUG) System.out.println("IntermediateStore: plan spliced to " + spliced);
+		return spliced;
+	}
+
+	/**
+	 * Stores the outputs of the steps of a plan (spliced
+	 * with splice) once it has run, within the storage size
+	 *
+	 * @param execSteps the plan run
+	 * @param tableManager
+	 * @throws InterruptedException
+	 */
+	public synchronized void store(List<ExecStep> execSteps, TableManager tableManager) throws InterruptedException {
+		Map<String, Candidate> stored = new LinkedHashMap<String, Candidate>();
+		for(ExecStep step : execSteps) {
+			Candidate candidate = candidates.get(step);
+			if(candidate != null && !entries.containsKey(candidate.fingerprint))
+				stored.put(step.getOutputs().get(0), candidate);
+		}
+		candidates.clear();
+		if(stored.isEmpty())
+			return;
+		Map<String, Long> sizes = sizes(stored.keySet());
+		if(sizes == null)
+			return;
+		long now = System.currentTimeMillis();
+		for(Map.Entry<String, Candidate> candidate : stored.entrySet()) {
+			Long size = sizes.get(candidate.getKey());
+			if(size == null || size > maxBytes)
+				continue;
+			tableManager.keep(candidate.getKey());
+			entries.put(candidate.getValue().fingerprint, new Entry(candidate.getKey(),
+					candidate.getValue().versions, size, now));
+			bytes += size;
+		}
+		while(bytes > maxBytes)
+			remove(entries.keySet().iterator().next(), tableManager);
+	}
+
+	/**
+	 * Internal helper function - records a step of the
+	 * plan to run if its output can be stored
+	 *
+	 * @param step the step to run
+	 * @param original the step as planned
+	 * @param fingerprint its fingerprint (null if unknown)
+	 * @param tables tables it reads (null if unknown)
+	 * @param current current table versions
+	 */
+	private void addCandidate(ExecStep step, ExecStep original, String fingerprint,
+			Set<String> tables, Map<String, Long> current) {
+		if(fingerprint == null || tables == null || !storable(original))
+			return;
+		Map<String, Long> versions = TableVersions.select(tables, current);
+		if(versions != null)
+			candidates.put(step, new Candidate(fingerprint, versions));
+	}
+
+	/**
+	 * Internal helper function - whether the output of a step
+	 * can be stored
+	 *
+	 * @param step
+	 * @return true for RunSubquery and SuperDuper steps
+	 */
+	private static boolean storable(ExecStep step) {
+		return (step instanceof StepRunSubquery || step instanceof StepSuperDuper) &&
+				step.getOutputs().size() == 1;
+	}
+
+	/**
+	 * Internal helper function - the fingerprint of a step
+	 *
+	 * @param step
+	 * @param producers index of the step creating each relation
+	 * @param fingerprints fingerprints of the steps before
+	 * @return the fingerprint, or null if the step does not
+	 * tell which relations it reads, or reads a relation
+	 * whose fingerprint is unknown
+	 */
+	private static String fingerprint(ExecStep step, Map<String, Integer> producers, List<String> fingerprints) {
+		if(step.getInputs() == null)
+			return null;
+		Map<String, String> names = new HashMap<String, String>();
+		for(String input : step.getInputs()) {
+			if(!producers.containsKey(input))
+				continue;
+			String fingerprint = fingerprints.get(producers.get(input));
+			if(fingerprint == null)
+				return null;
+			names.put(input, "fp_" + fingerprint);
+		}
+		for(String output : step.getOutputs())
+			names.put(output, "fp_out");
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder hex = new StringBuilder();
+			for(byte b : digest.digest(step.bind(names).toString().getBytes("UTF-8")))
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Internal helper function - the tables a step reads,
+	 * directly or through the relations it reads
+	 *
+	 * @param step
+	 * @param producers index of the step creating each relation
+	 * @param tables tables read by the steps before
+	 * @return Set<String> table names, or null if unknown
+	 */
+	private static Set<String> tables(ExecStep step, Map<String, Integer> producers, List<Set<String>> tables) {
+		if(step.getInputs() == null)
+			return null;
+		Set<String> read = new HashSet<String>();
+		for(String input : step.getInputs()) {
+			if(!producers.containsKey(input)) {
+				read.add(input);
+			} else if(tables.get(producers.get(input)) == null) {
+				return null;
+			} else {
+				read.addAll(tables.get(producers.get(input)));
+			}
+		}
+		return read;
+	}
+
+	/**
+	 * Internal helper function - measures relations on the nodes
+	 *
+	 * @param relations relation names
+	 * @return Map<String, Long> storage size of each relation,
+	 * summed over the nodes, or null if it cannot be read
+	 * @throws InterruptedException
+	 */
+	private Map<String, Long> sizes(Set<String> relations) throws InterruptedException {
+		StringBuilder names = new StringBuilder();
+		for(String relation : relations)
+			names.append(names.length() == 0 ? "'" : ", '").append(relation).append("'");
+		Map<String, Long> sizes = new HashMap<String, Long>();
+		try {
+			for(ResultSet rs : dbManager.fetch("" +
+					"SELECT c.relname, pg_catalog.pg_total_relation_size(c.oid) " +
+					"FROM pg_catalog.pg_class c " +
+					"WHERE c.relname IN (" + names + ")", nodeIds)) {
+				while(rs.next()) {
+					Long size = sizes.get(rs.getString(1));
+					sizes.put(rs.getString(1), rs.getLong(2) + (size == null ? 0 : size));
+				}
+			}
+		} catch (SQLException e) {
+			if(DEBUG) System.out.println("IntermediateStore: cannot measure relations: " + e);
+			return null;
+		}
+		return sizes;
+	}
+
+	/**
+	 * Internal helper function - releases the stored
+	 * relations older than the time to live
+	 *
+	 * @param tableManager
+	 */
+	private void evictExpired(TableManager tableManager) {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry entry = it.next().getValue();
+			if(now - entry.storeTime < ttl)
+				continue;
+			it.remove();
+			bytes -= entry.bytes;
+			tableManager.release(entry.relation);
+		}
+	}
+
+	/**
+	 * Internal helper function - releases a stored relation
+	 *
+	 * @param fingerprint
+	 * @param tableManager
+	 */
+	private void remove(String fingerprint, TableManager tableManager) {
+		Entry entry = entries.remove(fingerprint);
+		if(entry == null)
+			return;
+		bytes -= entry.bytes;
+		tableManager.release(entry.relation);
+	}
+
+	/**
+	 * Empties the store, releasing the stored relations
+	 * to the table manager (they are dropped by its next
+	 * cleanTempTables)
+	 *
+	 * @param tableManager
+	 */
+	public synchronized void clear(TableManager tableManager) {
+		for(Entry entry : entries.values())
+			tableManager.release(entry.relation);
+		entries.clear();
+		candidates.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Prints the counters of the store to string
+	 */
+	@Override
+	public synchronized String toString() {
+		return "relations=" + entries.size() + " bytes=" + bytes + "/" + maxBytes +
+				" hits=" + hits + " misses=" + misses;
+	}
+
+}
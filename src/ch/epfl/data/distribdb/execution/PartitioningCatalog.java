@@ -0,0 +1,165 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * PartitioningCatalog - Declares how the tables are
+ * placed on the nodes, so that the GraphProcessor
+ * can run joins whose tuples already sit on the same
+ * node (co-located joins) locally, without shipping anything
+ *
+ * A table is either
+ * - partitioned: its tuples are spread over the nodes
+ * according to a partitioning scheme; each of its
+ * co-location columns is mapped to a key of the scheme,
+ * and tuples of two tables of the same scheme having the
+ * same value for columns mapped to the same key are on the
+ * same node (e.g., customers and their orders are on the
+ * same node, and so are orders and their line items)
+ * - single: all its tuples are on one node
+ *
+ * Tables which are not declared are assumed to be
+ * spread over the nodes in an unknown way
+ */
+public class PartitioningCatalog {
+
+	/**
+	 * Kinds of placement of a table
+	 */
+	public static enum Kind {
+		PARTITIONED, SINGLE
+	}
+
+	/**
+	 * Placement of one table
+	 */
+	public static class Placement {
+		/**
+		 * Kind of placement
+		 */
+		public final Kind kind;
+		/**
+		 * Partitioning scheme (PARTITIONED),
+		 * or node holding the table (SINGLE)
+		 */
+		public final String scheme;
+		/**
+		 * Key of the scheme of each co-location
+		 * column (keyed by lower-case column name)
+		 */
+		public final Map<String, String> keys;
+
+		public Placement(Kind kind, String scheme, Map<String, String> keys) {
+			this.kind = kind;
+			this.scheme = scheme;
+			this.keys = keys;
+		}
+
+		@Override
+		public String toString() {
+			return kind + (scheme == null ? "" : " " + scheme) + (keys.isEmpty() ? "" : " " + keys);
+		}
+	}
+
+	/**
+	 * Prefix of the properties declaring the placements
+	 */
+	public static final String PROPERTY_PREFIX = "partitioning.";
+
+	/**
+	 * Placement of each declared table
+	 * (keyed by lower-case table name)
+	 */
+	private final Map<String, Placement> placements = new HashMap<String, Placement>();
+
+	/**
+	 * Constructor - Initializes an empty catalog
+	 */
+	public PartitioningCatalog() {
+	}
+
+	/**
+	 * Builds a catalog out of the properties named
+	 * partitioning.<table>, whose values are one of
+	 *   partitioned <scheme> <column>=<key> [<column>=<key> ...]
+	 *   single <nodeId>
+	 * (a column without "=<key>" is its own key)
+	 *
+	 * @param properties
+	 * @return the catalog
+	 */
+	public static PartitioningCatalog fromProperties(Properties properties) {
+		PartitioningCatalog catalog = new PartitioningCatalog();
+		for(String name : properties.stringPropertyNames()) {
+			if(!name.startsWith(PROPERTY_PREFIX))
+				continue;
+			String table = name.substring(PROPERTY_PREFIX.length());
+			String[] words = properties.getProperty(name).trim().split("\\s+");
+			Kind kind = Kind.valueOf(words[0].toUpperCase());
+			if(words.length < 2)
+				throw new IllegalArgumentException("Missing scheme or node in " + name);
+			Map<String, String> keys = new HashMap<String, String>();
+			for(int i = 2; i < words.length; i++) {
+				String[] columnKey = words[i].split("=");
+				keys.put(columnKey[0].toLowerCase(), columnKey.length > 1 ? columnKey[1].toLowerCase() : columnKey[0].toLowerCase());
+			}
+			catalog.setPlacement(table, new Placement(kind, words[1], keys));
+		}
+		return catalog;
+	}
+
+	/**
+	 * Declares the placement of a table
+	 *
+	 * @param table name
+	 * @param placement
+	 */
+	public synchronized void setPlacement(String table, Placement placement) {
+		placements.put(table.toLowerCase(), placement);
+	}
+
+	/**
+	 * Returns the placement of a table
+	 *
+	 * @param table name
+	 * @return the placement, or null if not declared
+	 */
+	public synchronized Placement getPlacement(String table) {
+		return placements.get(table.toLowerCase());
+	}
+
+	/**
+	 * Tells whether the equi-join of two tables on the given
+	 * columns can be run on each node separately, i.e.,
+	 * whether all the tuples that join are on the same node
+	 *
+	 * @param table1 name
+	 * @param column1 name
+	 * @param table2 name
+	 * @param column2 name
+	 * @return true if the join is co-located
+	 */
+	public synchronized boolean isCoLocated(String table1, String column1, String table2, String column2) {
+		Placement p1 = getPlacement(table1);
+		Placement p2 = getPlacement(table2);
+		if(p1 == null || p2 == null)
+			return false;
+		if(p1.kind != p2.kind || !p1.scheme.equals(p2.scheme))
+			return false;
+		if(p1.kind == Kind.SINGLE)
+			return true;
+		String key1 = p1.keys.get(column1.toLowerCase());
+		return key1 != null && key1.equals(p2.keys.get(column2.toLowerCase()));
+	}
+
+	/**
+	 * Prints the catalog to string
+	 */
+	@Override
+	public synchronized String toString() {
+		return placements.toString();
+	}
+
+}
@@ -0,0 +1,591 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ch.epfl.data.distribdb.execution.GraphProcessor.QueryNotSupportedException;
+import ch.epfl.data.distribdb.parsing.Parser;
+import ch.epfl.data.distribdb.parsing.QueryRelation;
+import ch.epfl.data.distribdb.tackling.QueryGraph;
+
+import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
+
+/**
+ * PlanCache - Cache of the distributed query plans
+ * of the queries already run, so that repeated queries
+ * are not parsed and processed by the GraphProcessor again
+ *
+ * Queries are looked up by their normalized text:
+ * keywords and names in lower case, white space collapsed,
+ * and literals (strings and numbers, except row counts
+ * of LIMIT, OFFSET and FETCH, and column positions of
+ * GROUP BY and ORDER BY) replaced by placeholders,
+ * so that queries differing only by their literals
+ * share the same plan
+ * The cached plan (template) is obtained by processing
+ * the query with sentinel literals, and each time it is
+ * used the sentinels are bound to the literals of the
+ * query, and the temporary tables to fresh names
+ * (see ExecStep.bind)
+ *
+ * The cache holds at most a given number of plans,
+ * evicting the least recently used ones, and is emptied
+ * whenever the statistics the plans are based on are refreshed
+ *
+ * It also holds the queries prepared explicitly (see prepare),
+ * whose parameters ($1, $2...) are planned the same way; the 
+ * sub-queries reading only base tables are prepared on the 
+ * nodes once, and then executed with the parameters of each 
+ * execution, while the ones reading temporary tables (whose 
+ * names change on every execution) get the parameters in 
+ * their SQL text
+ *
+ */
+public class PlanCache {
+
+	/**
+	 * Default maximum number of cached plans
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Prefix of the sentinel string literals
+	 */
+	private static final String STRING_SENTINEL = "openplum_literal_";
+	/**
+	 * First sentinel number literal
+	 */
+	private static final long NUMBER_SENTINEL = 2000000000L;
+	/**
+	 * Prefix of the sentinel string literals of the parameters
+	 */
+	private static final String PARAMETER_SENTINEL = "openplum_parameter_";
+
+	/**
+	 * Quoted literals and names, and parameters ($1, $2...)
+	 */
+	private static final Pattern PARAMETER = Pattern.compile("'(?:[^']|'')*'|\"(?:[^\"]|\"\")*\"|\\$(\\d+)");
+	/**
+	 * Sentinels of the parameters
+	 */
+	private static final Pattern PARAMETER_SENTINEL_PATTERN = Pattern.compile("'" + PARAMETER_SENTINEL + "(\\d+)'");
+
+	/**
+	 * Statistics handed to the GraphProcessor (may be null)
+	 */
+	ClusterStatistics statistics;
+	/**
+	 * Placement of the tables handed to the GraphProcessor
+	 */
+	PartitioningCatalog partitioning;
+	/**
+	 * Broadcast threshold handed to the GraphProcessor
+	 */
+	long broadcastThreshold = GraphProcessor.DEFAULT_BROADCAST_THRESHOLD;
+	/**
+	 * Maximum number of cached plans (0 disables the cache)
+	 */
+	final int capacity;
+	/**
+	 * Cached plans keyed by normalized query,
+	 * in least recently used order
+	 */
+	final Map<String, List<ExecStep>> templates;
+	/**
+	 * Refresh time of the statistics the cached plans are based on
+	 */
+	long statisticsTime;
+	/**
+	 * Counters of the queries whose plan was found
+	 * in the cache, and of the ones which were planned
+	 * (including the ones whose plan is known not to be 
+	 * reusable, see getPlan)
+	 */
+	long hits = 0;
+	long misses = 0;
+	/**
+	 * Prepared queries by (lower case) name
+	 */
+	final Map<String, PreparedQuery> preparedQueries = new HashMap<String, PreparedQuery>();
+
+	/**
+	 * Helper class - a prepared query: its text, 
+	 * with parameters, and its plan template
+	 */
+	static class PreparedQuery {
+		final String query;
+		final int parameterCount;
+		/**
+		 * Plan template (empty if the plan depends 
+		 * on the parameters), and refresh time of 
+		 * the statistics it is based on
+		 */
+		List<ExecStep> template;
+		long statisticsTime;
+
+		PreparedQuery(String query, int parameterCount) {
+			this.query = query;
+			this.parameterCount = parameterCount;
+		}
+	}
+
+	/**
+	 * Constructor - Initializes an empty cache
+	 *
+	 * @param capacity maximum number of cached plans
+	 * @param ClusterStatistics
+	 * @param PartitioningCatalog
+	 */
+	public PlanCache(final int capacity, ClusterStatistics statistics, PartitioningCatalog partitioning) {
+		if(capacity < 0)
+			throw new IllegalArgumentException("Invalid plan cache capacity: " + capacity);
+		this.capacity = capacity;
+		this.statistics = statistics;
+		this.partitioning = partitioning;
+		this.statisticsTime = statistics == null ? 0 : statistics.getRefreshTime();
+		this.templates = new LinkedHashMap<String, List<ExecStep>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, List<ExecStep>> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * Sets the broadcast threshold handed to the GraphProcessor
+	 * (the cache is emptied since plans depend on it)
+	 *
+	 * @param broadcastThreshold size (in bytes)
+	 */
+	public synchronized void setBroadcastThreshold(long broadcastThreshold) {
+		this.broadcastThreshold = broadcastThreshold;
+		templates.clear();
+		for(PreparedQuery prepared : preparedQueries.values())
+			prepared.template = null;
+	}
+
+	/**
+	 * Returns the distributed query plan of a query, out
+	 * of the cache if possible, with temporary tables
+	 * allocated by the given table manager
+	 * A query is planned with sentinels only the first time:
+	 * if that plan cannot be reused for other literals, the 
+	 * cache remembers it and the query is then planned as is
+	 *
+	 * @param query SQL text
+	 * @param tableManager
+	 * @return List<ExecStep> the list of execution steps
+	 * @throws QueryNotSupportedException
+	 */
+	public List<ExecStep> getPlan(String query, TableManager tableManager) throws QueryNotSupportedException {
+		if(capacity == 0)
+			return plan(query, tableManager);
+		List<String> literals = new ArrayList<String>();
+		StringBuilder sentinelQuery = new StringBuilder();
+		String key = normalize(query, literals, sentinelQuery);
+
+		List<ExecStep> template;
+		synchronized(this) {
+			if(statistics != null && statistics.getRefreshTime() != statisticsTime) {
+				templates.clear();
+				statisticsTime = statistics.getRefreshTime();
+			}
+			template = templates.get(key);
+			// an empty template only records that the plan cannot be
+			// reused: the query is planned without its sentinels
+			if(template != null && !template.isEmpty())
+				hits++;
+			else
+				misses++;
+		}
+		if(template == null) {
+			List<String> sentinels = new ArrayList<String>();
+			for(int i = 0; i < literals.size(); i++)
+				sentinels.add(sentinel(literals.get(i), i));
+			template = planTemplate(sentinelQuery.toString(), sentinels);
+			synchronized(this) {
+				templates.put(key, template);
+			}
+		}
+		if(template.isEmpty()) // the plan cannot be reused for other literals
+			return plan(query, tableManager);
+
+		Map<String, String> bindings = new HashMap<String, String>();
+		for(int i = 0; i < literals.size(); i++)
+			bindings.put(sentinel(literals.get(i), i), literals.get(i));
+		for(ExecStep step : template)
+			for(String output : step.getOutputs())
+				bindings.put(output, tableManager.generateTmpTblName(output));
+		List<ExecStep> execSteps = new ArrayList<ExecStep>();
+		for(ExecStep step : template)
+			execSteps.add(step.bind(bindings));
+		return execSteps;
+	}
+
+	/**
+	 * Internal helper function - processes a query
+	 * (parsing, query graph and GraphProcessor)
+	 *
+	 * @param query SQL text
+	 * @param tableManager
+	 * @return List<ExecStep> the list of execution steps
+	 * @throws QueryNotSupportedException
+	 */
+	private List<ExecStep> plan(String query, TableManager tableManager) throws QueryNotSupportedException {
+		QueryRelation queryTree = Parser.parse(query);
+		if(DEBUG) System.out.println("\nQUERY: " + queryTree);
+		QueryGraph queryGraph = new QueryGraph(queryTree);
+		if(DEBUG) System.out.println("\nQUERY GRAPH:\n" + queryGraph);
+		GraphProcessor queryGraphProcessor = new GraphProcessor(tableManager, queryGraph, statistics, partitioning);
+		queryGraphProcessor.setBroadcastThreshold(broadcastThreshold);
+		return queryGraphProcessor.processGraph();
+	}
+
+	/**
+	 * Internal helper function - processes a query whose literals
+	 * were replaced by sentinels, with a scratch table manager
+	 * (the temporary tables of a template are never created)
+	 *
+	 * @param sentinelQuery SQL text with sentinel literals
+	 * @param sentinels the sentinels
+	 * @return List<ExecStep> the template, or an empty list 
+	 * if the sentinels do not all make it to the steps (e.g.,
+	 * the query cannot be processed with them), in which
+	 * case the plan depends on the literals
+	 */
+	private List<ExecStep> planTemplate(String sentinelQuery, List<String> sentinels) {
+		try {
+			return reusable(plan(sentinelQuery, new TableManager()), sentinels);
+		} catch (Exception e) {
+			return new ArrayList<ExecStep>();
+		}
+	}
+
+	/**
+	 * Internal helper function - checks that a plan 
+	 * can be reused as a template
+	 *
+	 * @param template the plan of a query with sentinels
+	 * @param sentinels the sentinels
+	 * @return List<ExecStep> the template, or an empty list 
+	 * if the sentinels do not all make it to the steps
+	 */
+	private static List<ExecStep> reusable(List<ExecStep> template, List<String> sentinels) {
+		String steps = template.toString();
+		for(String sentinel : sentinels) {
+			if(!steps.contains(sentinel))
+				return new ArrayList<ExecStep>();
+		}
+		return template;
+	}
+
+	/**
+	 * Internal helper function - the sentinel of a literal
+	 *
+	 * @param literal text of the literal
+	 * @param i index of the literal in the query
+	 * @return the sentinel text
+	 */
+	private static String sentinel(String literal, int i) {
+		if(literal.startsWith("'"))
+			return "'" + STRING_SENTINEL + i + "'";
+		return String.valueOf(NUMBER_SENTINEL + i);
+	}
+
+	/**
+	 * Internal helper function - normalizes a query: lower case
+	 * (except quoted literals and names), white space collapsed,
+	 * and literals replaced by placeholders
+	 *
+	 * @param query SQL text
+	 * @param literals the output list of the literals replaced
+	 * @param sentinelQuery the output query with the literals
+	 * replaced by their sentinels
+	 * @return the normalized query
+	 */
+	static String normalize(String query, List<String> literals, StringBuilder sentinelQuery) {
+		StringBuilder key = new StringBuilder();
+		// whether the numbers met are part of the plan (row counts and column positions)
+		boolean structural = false;
+		int i = 0;
+		while(i < query.length()) {
+			char c = query.charAt(i);
+			int end = i + 1;
+			if(c == '\'' || c == '"') {
+				// quoted literal or name ('' and "" are escaped quotes)
+				while(end < query.length()) {
+					if(query.charAt(end) == c) {
+						if(end + 1 < query.length() && query.charAt(end + 1) == c) {
+							end += 2;
+							continue;
+						}
+						break;
+					}
+					end++;
+				}
+				end = Math.min(end + 1, query.length());
+				String quoted = query.substring(i, end);
+				if(c == '\'') {
+					key.append("'?'");
+					sentinelQuery.append(sentinel(quoted, literals.size()));
+					literals.add(quoted);
+				} else {
+					key.append(quoted);
+					sentinelQuery.append(quoted);
+				}
+				structural = false;
+			} else if(Character.isWhitespace(c)) {
+				while(end < query.length() && Character.isWhitespace(query.charAt(end)))
+					end++;
+				if(key.length() > 0 && end < query.length())
+					key.append(' ');
+				sentinelQuery.append(' ');
+			} else if(Character.isDigit(c) || (c == '.' && end < query.length() && Character.isDigit(query.charAt(end)))) {
+				while(end < query.length() && (Character.isDigit(query.charAt(end)) || query.charAt(end) == '.'))
+					end++;
+				String number = query.substring(i, end);
+				if(structural) {
+					key.append(number);
+					sentinelQuery.append(number);
+				} else {
+					key.append('?');
+					sentinelQuery.append(sentinel(number, literals.size()));
+					literals.add(number);
+				}
+			} else if(Character.isLetter(c) || c == '_') {
+				while(end < query.length() && (Character.isLetterOrDigit(query.charAt(end)) || query.charAt(end) == '_' || query.charAt(end) == '$'))
+					end++;
+				String word = query.substring(i, end).toLowerCase();
+				structural = word.equals("limit") || word.equals("offset") || word.equals("first") || 
+						word.equals("next") || word.equals("by");
+				key.append(word);
+				sentinelQuery.append(query, i, end);
+			} else {
+				key.append(c);
+				sentinelQuery.append(c);
+				structural &= c == ',';
+			}
+			i = end;
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Prepares a query with parameters ($1, $2...), which 
+	 * can then be run with getPreparedPlan
+	 * The query is planned once with sentinels in place 
+	 * of its parameters (and again whenever the statistics 
+	 * are refreshed)
+	 *
+	 * @param name name of the prepared query (replaces 
+	 * any query prepared with that name)
+	 * @param query SQL text with parameters
+	 * @throws QueryNotSupportedException
+	 */
+	public void prepare(String name, String query) throws QueryNotSupportedException {
+		PreparedQuery prepared = new PreparedQuery(query, parameterCount(query));
+		// planned at once, so that unsupported queries are reported upon PREPARE
+		planPrepared(prepared, true);
+		synchronized(this) {
+			preparedQueries.put(name.toLowerCase(), prepared);
+		}
+	}
+
+	/**
+	 * Forgets a prepared query
+	 * (the statements prepared on the nodes are 
+	 * deallocated once they are no longer used,
+	 * see AbstractDatabaseManager.executePrepared)
+	 *
+	 * @param name name of the prepared query
+	 * @return whether the query was prepared
+	 */
+	public synchronized boolean deallocate(String name) {
+		return preparedQueries.remove(name.toLowerCase()) != null;
+	}
+
+	/**
+	 * Returns the distributed query plan of a prepared 
+	 * query, with temporary tables allocated by the given 
+	 * table manager, and the given parameters
+	 * The sub-queries reading the parameters and only base 
+	 * tables carry them (see StepRunSubquery.parameters): 
+	 * they are bound on the nodes; the other sub-queries 
+	 * would be prepared again on every execution, so they 
+	 * get the parameters in their SQL text
+	 *
+	 * @param name name of the prepared query
+	 * @param parameters SQL expressions of the parameters, in order
+	 * @param tableManager
+	 * @return List<ExecStep> the list of execution steps
+	 * @throws QueryNotSupportedException
+	 */
+	public List<ExecStep> getPreparedPlan(String name, List<String> parameters, TableManager tableManager) throws QueryNotSupportedException {
+		PreparedQuery prepared;
+		synchronized(this) {
+			prepared = preparedQueries.get(name.toLowerCase());
+		}
+		if(prepared == null)
+			throw new IllegalArgumentException("Prepared query " + name + " does not exist");
+		if(parameters.size() != prepared.parameterCount)
+			throw new IllegalArgumentException("Prepared query " + name + " takes " + 
+					prepared.parameterCount + " parameter(s), got " + parameters.size());
+		List<ExecStep> template = planPrepared(prepared, false);
+		if(template.isEmpty()) // the plan depends on the parameters
+			return getPlan(substituteParameters(prepared.query, parameters), tableManager);
+
+		Map<String, String> bindings = new HashMap<String, String>();
+		for(int i = 0; i < parameters.size(); i++)
+			bindings.put(parameterSentinel(i + 1), parameters.get(i));
+		Set<String> tmpTables = new HashSet<String>();
+		for(ExecStep step : template)
+			for(String output : step.getOutputs()) {
+				tmpTables.add(output);
+				bindings.put(output, tableManager.generateTmpTblName(output));
+			}
+		List<ExecStep> execSteps = new ArrayList<ExecStep>();
+		for(ExecStep step : template) {
+			if(!(step instanceof StepRunSubquery) || 
+					step.getInputs() == null || 
+					!Collections.disjoint(step.getInputs(), tmpTables)) {
+				execSteps.add(step.bind(bindings));
+				continue;
+			}
+			// the parameters read by the sub-query become its $1, $2...
+			StepRunSubquery subquery = (StepRunSubquery) step;
+			Map<String, String> subqueryBindings = new HashMap<String, String>(bindings);
+			List<String> subquerySentinels = new ArrayList<String>();
+			List<String> subqueryParameters = new ArrayList<String>();
+			Matcher matcher = PARAMETER_SENTINEL_PATTERN.matcher(subquery.query);
+			while(matcher.find()) {
+				if(subquerySentinels.contains(matcher.group()))
+					continue;
+				subquerySentinels.add(matcher.group());
+				subqueryParameters.add(parameters.get(Integer.parseInt(matcher.group(1)) - 1));
+				subqueryBindings.put(matcher.group(), "$" + subqueryParameters.size());
+			}
+			StepRunSubquery bound = subquery.bind(subqueryBindings);
+			execSteps.add(new StepRunSubquery(bound.query, bound.agg, bound.outRelation, 
+					bound.stepPlace, bound.inputs, subqueryParameters));
+		}
+		return execSteps;
+	}
+
+	/**
+	 * Internal helper function - returns the plan template 
+	 * of a prepared query, planning it again if the 
+	 * statistics were refreshed since it was planned
+	 *
+	 * @param prepared the prepared query
+	 * @param strict whether to report the errors of planning
+	 * @return List<ExecStep> the template, or an empty list
+	 * if the plan depends on the parameters
+	 * @throws QueryNotSupportedException
+	 */
+	private List<ExecStep> planPrepared(PreparedQuery prepared, boolean strict) throws QueryNotSupportedException {
+		long time = statistics == null ? 0 : statistics.getRefreshTime();
+		synchronized(prepared) {
+			if(prepared.template == null || prepared.statisticsTime != time) {
+				List<String> sentinels = new ArrayList<String>();
+				for(int i = 1; i <= prepared.parameterCount; i++)
+					sentinels.add(parameterSentinel(i));
+				String sentinelQuery = substituteParameters(prepared.query, sentinels);
+				if(strict)
+					prepared.template = reusable(plan(sentinelQuery, new TableManager()), sentinels);
+				else
+					prepared.template = planTemplate(sentinelQuery, sentinels);
+				prepared.statisticsTime = time;
+			}
+			return prepared.template;
+		}
+	}
+
+	/**
+	 * Internal helper function - the sentinel of a parameter
+	 *
+	 * @param n number of the parameter ($n)
+	 * @return the sentinel text
+	 */
+	private static String parameterSentinel(int n) {
+		return "'" + PARAMETER_SENTINEL + n + "'";
+	}
+
+	/**
+	 * Internal helper function - the number of parameters 
+	 * of a query (the highest $n it contains)
+	 *
+	 * @param query SQL text with parameters
+	 * @return the number of parameters
+	 */
+	static int parameterCount(String query) {
+		int count = 0;
+		Matcher matcher = PARAMETER.matcher(query);
+		while(matcher.find()) {
+			if(matcher.group(1) == null)
+				continue;
+			int n = Integer.parseInt(matcher.group(1));
+			if(n == 0)
+				throw new IllegalArgumentException("Invalid parameter: $0");
+			count = Math.max(count, n);
+		}
+		return count;
+	}
+
+	/**
+	 * Internal helper function - replaces the parameters 
+	 * of a query ($n) by the given values
+	 *
+	 * @param query SQL text with parameters
+	 * @param values value of each parameter, in order
+	 * @return the SQL text with the values
+	 */
+	static String substituteParameters(String query, List<String> values) {
+		Matcher matcher = PARAMETER.matcher(query);
+		StringBuffer substituted = new StringBuffer();
+		while(matcher.find()) {
+			String value = matcher.group(1) == null ? matcher.group() : 
+					values.get(Integer.parseInt(matcher.group(1)) - 1);
+			matcher.appendReplacement(substituted, Matcher.quoteReplacement(value));
+		}
+		matcher.appendTail(substituted);
+		return substituted.toString();
+	}
+
+	/**
+	 * Empties the cache
+	 */
+	public synchronized void clear() {
+		templates.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized int size() {
+		return templates.size();
+	}
+
+	/**
+	 * Prints the counters of the cache to string
+	 */
+	@Override
+	public synchronized String toString() {
+		return "plans=" + templates.size() + "/" + capacity + " hits=" + hits + " misses=" + misses + 
+				" prepared=" + preparedQueries.keySet();
+	}
+
+}
@@ -0,0 +1,322 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.rowset.CachedRowSet;
+
+import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
+
+/**
+ * ResultCache - Cache of the final results of the
+ * queries already run, so that queries run again
+ * against unchanged tables are answered by the master
+ * without any distributed execution
+ *
+ * Queries are looked up by their normalized text
+ * (see PlanCache.normalize) and their literals
+ * The results are kept along with the versions of
+ * the tables the query reads (see TableVersions),
+ * and are dropped as soon as one of these tables
+ * changes; if the versions cannot be read, nothing
+ * is cached
+ *
+ * The cache holds results up to a given (estimated)
+ * memory size, evicting the least recently used ones
+ *
+ */
+public class ResultCache {
+
+	/**
+	 * Default memory size (in bytes) of the cached results
+	 */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	/**
+	 * Functions whose results change from one run to
+	 * the next: queries calling them are never cached
+	 */
+	private static final String[] VOLATILE = {"random(", "now(", "current_date", "current_time",
+		"localtime", "clock_timestamp(", "nextval("};
+
+	/**
+	 * Helper class - cached results and the versions
+	 * of the tables they were computed from
+	 */
+	static class Entry {
+		final CachedRowSet results;
+		final Map<String, Long> versions;
+		final long bytes;
+
+		Entry(CachedRowSet results, Map<String, Long> versions, long bytes) {
+			this.results = results;
+			this.versions = versions;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Versions of the tables stored on the nodes
+	 */
+	private final TableVersions tableVersions;
+	/**
+	 * Maximum memory size (in bytes) of the cached results
+	 * (0 disables the cache)
+	 */
+	private final long maxBytes;
+	/**
+	 * Cached results keyed by query, in least recently used order
+	 */
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	/**
+	 * Table versions read when looking up the queries
+	 * not found in the cache, until their results are put
+	 */
+	private final Map<String, Map<String, Long>> pending = new HashMap<String, Map<String, Long>>();
+	/**
+	 * Memory size (in bytes) of the cached results
+	 */
+	private long bytes = 0;
+	/**
+	 * Counters of the queries whose results were found
+	 * in the cache, and of the ones whose results were not
+	 */
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Constructor - Initializes an empty cache
+	 *
+	 * @param TableVersions
+	 * @param maxBytes maximum memory size of the cached results
+	 */
+	public ResultCache(TableVersions tableVersions, long maxBytes) {
+		if(maxBytes < 0)
+			throw new IllegalArgumentException("Invalid result cache size: " + maxBytes);
+		this.tableVersions = tableVersions;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Looks up the results of a query
+	 *
+	 * @param query SQL text
+	 * @return ResultSet the cached results (positioned before
+	 * the first row), or null if they are not in the cache
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	public synchronized ResultSet get(String query) throws SQLException, InterruptedException {
+		String key = key(query);
+		if(key == null)
+			return null;
+		Map<String, Long> current = tableVersions.read();
+		if(current == null)
+			return null;
+		Entry entry = entries.get(key);
+		if(entry != null && !TableVersions.unchanged(entry.versions, current)) {
+			if(DEBUG) System.out.println("ResultCache: tables changed since cached " + entry.versions);
+			remove(key);
+			entry = null;
+		}
+		if(entry == null) {
+			misses++;
+			pending.put(key, current);
+			return null;
+		}
+		hits++;
+		return entry.results.createShared();
+	}
+
+	/**
+	 * Caches the results of a query looked up with get
+	 * and not found, if they fit in the cache
+	 *
+	 * @param query SQL text
+	 * @param execSteps the plan which computed the results
+	 * (it tells which tables the query reads)
+	 * @param results the results, positioned before the first row
+	 * @return ResultSet the results, to be used in place
+	 * of the ones given (which are read by this call,
+	 * until they are found too large to be cached)
+	 * @throws SQLException
+	 */
+	public synchronized ResultSet put(String query, List<ExecStep> execSteps, ResultSet results) throws SQLException {
+		String key = key(query);
+		Map<String, Long> before = key == null ? null : pending.remove(key);
+		Set<String> tables = tables(execSteps);
+		if(before == null || tables == null)
+			return results;
+		// versions from before the execution: a change made meanwhile invalidates the results
+		Map<String, Long> versions = TableVersions.select(tables, before);
+		if(versions == null)
+			return results;
+		// rows are copied until they are found too large to be cached
+		ResultSetMetaData meta = results.getMetaData();
+		int columns = meta.getColumnCount();
+		List<Object[]> rows = new ArrayList<Object[]>();
+		long size = 0;
+		while(size <= maxBytes && results.next()) {
+			Object[] row = new Object[columns];
+			for(int i = 0; i < columns; i++)
+				row[i] = results.getObject(i + 1);
+			rows.add(row);
+			size += size(row);
+		}
+		List<String> names = new ArrayList<String>();
+		List<Integer> types = new ArrayList<Integer>();
+		List<Integer> indexes = new ArrayList<Integer>();
+		for(int i = 0; i < columns; i++) {
+			names.add(meta.getColumnLabel(i + 1));
+			types.add(meta.getColumnType(i + 1));
+			indexes.add(i);
+		}
+		CachedRowSet copied = AggregateMerger.rowSet(names, types, indexes, rows);
+		if(size > maxBytes) {
+			if(DEBUG) System.out.println("ResultCache: results larger than " + maxBytes + " bytes");
+			return concat(copied, results);
+		}
+		remove(key);
+		entries.put(key, new Entry(copied, versions, size));
+		bytes += size;
+		while(bytes > maxBytes)
+			remove(entries.keySet().iterator().next());
+		return copied.createShared();
+	}
+
+	/**
+	 * Internal helper function - the cache key of a query
+	 *
+	 * @param query SQL text
+	 * @return the key, or null if the query is not to be cached
+	 */
+	private String key(String query) {
+		if(maxBytes == 0)
+			return null;
+		List<String> literals = new ArrayList<String>();
+		String key = PlanCache.normalize(query, literals, new StringBuilder());
+		for(String function : VOLATILE)
+			if(key.contains(function))
+				return null;
+		return key + " " + literals;
+	}
+
+	/**
+	 * Internal helper function - removes cached results
+	 *
+	 * @param key
+	 */
+	private void remove(String key) {
+		Entry entry = entries.remove(key);
+		if(entry != null)
+			bytes -= entry.bytes;
+	}
+
+	/**
+	 * Internal helper function - the tables read by a plan:
+	 * the relations its steps read and none of them creates
+	 *
+	 * @param execSteps
+	 * @return Set<String> table names, or null if some
+	 * step does not tell which relations it reads
+	 */
+	private static Set<String> tables(List<ExecStep> execSteps) {
+		Set<String> tables = new HashSet<String>();
+		Set<String> created = new HashSet<String>();
+		for(ExecStep step : execSteps) {
+			if(step.getInputs() == null)
+				return null;
+			tables.addAll(step.getInputs());
+			created.addAll(step.getOutputs());
+		}
+		tables.removeAll(created);
+		return tables;
+	}
+
+	/**
+	 * Internal helper function - estimates the memory size
+	 * of a row of results
+	 *
+	 * @param row values of the columns
+	 * @return size (in bytes)
+	 */
+	private static long size(Object[] row) {
+		long size = 16 + 8 * row.length;
+		for(Object value : row)
+			size += value instanceof String ? 40 + 2 * ((String) value).length() : 16;
+		return size;
+	}
+
+	/**
+	 * Internal helper function - the rows copied from
+	 * results followed by the rest of the results
+	 *
+	 * @param copied rows already read from the results
+	 * @param rest the results, positioned on the last row copied
+	 * @return ResultSet the whole results
+	 */
+	private static ResultSet concat(final CachedRowSet copied, final ResultSet rest) {
+		return (ResultSet) Proxy.newProxyInstance(
+				ResultSet.class.getClassLoader(),
+				new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+
+			private ResultSet current = copied;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("next") && current == copied) {
+					if(copied.next())
+						return true;
+					current = rest;
+				} else if(method.getName().equals("close")) {
+					copied.close();
+					rest.close();
+					return null;
+				}
+				try {
+					return method.invoke(current, args);
+				} catch (InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Empties the cache
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		pending.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Prints the counters of the cache to string
+	 */
+	@Override
+	public synchronized String toString() {
+		return "results=" + entries.size() + " bytes=" + bytes + "/" + maxBytes +
+				" hits=" + hits + " misses=" + misses;
+	}
+
+}
@@ -0,0 +1,223 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.DbFuture;
+
+import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
+
+/**
+ * SortedMerger - K-way merge operator run on the master
+ * to merge the intermediate results of a non-aggregate
+ * query with ORDER BY and LIMIT (see StepMergeSorted)
+ *
+ * The intermediate results of each worker are read in
+ * order through a cursor, and the next row of every worker
+ * is kept in a heap: the least of them is the next row of
+ * the final results, and is replaced by the following row
+ * of its worker. Reading stops as soon as the rows asked
+ * for (OFFSET plus LIMIT) are merged, and nothing is
+ * stored in any table
+ * Rows are only merged if they are ordered on values
+ * which the master compares as the nodes do (numbers,
+ * dates and times, booleans)
+ *
+ */
+public class SortedMerger {
+
+	/**
+	 * Handle to DB manager used to read the intermediate results
+	 */
+	private AsyncDatabaseManager dbManager;
+
+	/**
+	 * Continuation closing a cursor once it is open
+	 */
+	private static final DbFuture.Continuation<ResultSet, Void> CLOSE = new DbFuture.Continuation<ResultSet, Void>() {
+		@Override
+		public DbFuture<Void> apply(ResultSet cursor) throws SQLException {
+			cursor.close();
+			return DbFuture.completed(null);
+		}
+	};
+
+	/**
+	 * Helper class - cursor on the intermediate results
+	 * of a worker, and its current row
+	 */
+	private static class Stream {
+		final ResultSet rs;
+		final int[] columns;
+		Object[] row;
+
+		Stream(ResultSet rs, int[] columns) {
+			this.rs = rs;
+			this.columns = columns;
+		}
+
+		/**
+		 * Moves to the next row
+		 *
+		 * @return false if there are no more rows
+		 * @throws SQLException
+		 */
+		boolean next() throws SQLException {
+			if(!rs.next())
+				return false;
+			row = new Object[columns.length];
+			for(int i = 0; i < columns.length; i++)
+				if(columns[i] != 0)
+					row[i] = rs.getObject(columns[i]);
+			return true;
+		}
+	}
+
+	/**
+	 * Constructor - Initializes object with DB manager
+	 *
+	 * @param AsyncDatabaseManager
+	 */
+	public SortedMerger(AsyncDatabaseManager dbManager) {
+		this.dbManager = dbManager;
+	}
+
+	/**
+	 * Reads the intermediate results from the nodes
+	 * and merges them
+	 *
+	 * @param step the step to execute
+	 * @param nodeIds nodes storing the intermediate results
+	 * @return ResultSet the final results, or null if
+	 * they cannot be merged in memory (the step should
+	 * then gather them and run its final query)
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	public ResultSet merge(final StepMergeSorted step, List<String> nodeIds) throws SQLException, InterruptedException {
+		List<DbFuture<ResultSet>> futures = new ArrayList<DbFuture<ResultSet>>();
+		for(String nodeId : nodeIds)
+			futures.add(dbManager.openCursorAsync(step.toCursorString(), nodeId));
+		List<ResultSet> cursors = new ArrayList<ResultSet>();
+		int collected = 0;
+		try {
+			SQLException failure = null;
+			for(DbFuture<ResultSet> future : futures) {
+				try {
+					cursors.add(future.get());
+				} catch (SQLException e) {
+					failure = e;
+				}
+				collected++;
+			}
+			if(failure != null)
+				throw failure;
+			return mergeCursors(step, cursors);
+		} finally {
+			for(ResultSet cursor : cursors)
+				cursor.close();
+			// if interrupted, the cursors still being opened are closed once open
+			for(DbFuture<ResultSet> future : futures.subList(collected, futures.size()))
+				future.then(CLOSE);
+		}
+	}
+
+	/**
+	 * Internal helper function - merges the
+	 * intermediate results read by the cursors
+	 *
+	 * @param step the step to execute
+	 * @param cursors cursors of the nodes
+	 * @return ResultSet the final results, or null
+	 * if they cannot be merged in memory
+	 * @throws SQLException
+	 */
+	private ResultSet mergeCursors(final StepMergeSorted step, List<ResultSet> cursors) throws SQLException {
+		ResultSetMetaData meta = cursors.get(0).getMetaData();
+		Map<String, Integer> indexes = new HashMap<String, Integer>();
+		for(int i = 1; i <= meta.getColumnCount(); i++)
+			indexes.put(meta.getColumnLabel(i).toLowerCase(), i);
+		int[] columns = new int[step.columns.size()];
+		for(int i = 0; i < columns.length; i++) {
+			Integer column = step.columns.get(i) == null ? null : indexes.get(step.columns.get(i).toLowerCase());
+			columns[i] = column == null ? 0 : column;
+		}
+		for(int i = 0; i < step.orderColumns.size(); i++) {
+			int column = columns[step.orderColumns.get(i)];
+			if(column == 0 || !comparable(meta.getColumnType(column))) {
+				if(DEBUG) System.out.println("SortedMerger: cannot merge on " + step.columns.get(step.orderColumns.get(i)) +
+						(column == 0 ? "" : " (" + meta.getColumnTypeName(column) + ")"));
+				return null;
+			}
+		}
+		List<Integer> types = new ArrayList<Integer>();
+		for(int output : step.outputs) {
+			if(columns[output] == 0)
+				throw new SQLException("Column " + step.columns.get(output) + " not in the intermediate results");
+			types.add(meta.getColumnType(columns[output]));
+		}
+
+		PriorityQueue<Stream> heap = new PriorityQueue<Stream>(cursors.size(), new Comparator<Stream>() {
+			@Override
+			public int compare(Stream a, Stream b) {
+				return AggregateMerger.compareRows(a.row, b.row, step.orderColumns, step.orderDescending);
+			}
+		});
+		for(ResultSet cursor : cursors) {
+			Stream stream = new Stream(cursor, columns);
+			if(stream.next())
+				heap.add(stream);
+		}
+		List<Object[]> rows = new ArrayList<Object[]>();
+		int skipped = 0;
+		while(rows.size() < step.numRows && !heap.isEmpty()) {
+			Stream stream = heap.poll();
+			if(skipped < step.offset)
+				skipped++;
+			else
+				rows.add(stream.row);
+			if(stream.next())
+				heap.add(stream);
+		}
+		return AggregateMerger.rowSet(step.outputNames, types, step.outputs, rows);
+	}
+
+	/**
+	 * Internal helper function - tells whether values of
+	 * a type are compared on the master as on the nodes
+	 *
+	 * @param type SQL type (see java.sql.Types)
+	 * @return true if the values can be merged on the master
+	 */
+	static boolean comparable(int type) {
+		switch(type) {
+		case Types.BIGINT:
+		case Types.INTEGER:
+		case Types.SMALLINT:
+		case Types.TINYINT:
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+		case Types.DATE:
+		case Types.TIME:
+		case Types.TIMESTAMP:
+		case Types.BIT:
+		case Types.BOOLEAN:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+}
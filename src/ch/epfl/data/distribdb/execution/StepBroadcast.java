@@ -0,0 +1,81 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.data.distribdb.parsing.NamedRelation;
+
+/**
+ * Class encoding the elementary Broadcast step
+ * It replicates a (small) relation on all nodes:
+ * all its tuples are shipped to every node, so that
+ * it can then be joined on each node separately
+ * without computing any Bloom filter
+ * Instances of this class are added by the
+ * GraphProcessor to the list of execution steps
+ * Afterward this list is executed by the StepExecutor
+ *
+ */
+public class StepBroadcast extends ExecStep {
+
+	/**
+	 * Relation whose tuples will be replicated
+	 */
+	public final NamedRelation fromRelation;
+	/**
+	 * Boolean specifying whether the fromRelation is
+	 * distributed (its tuples are shipped from all nodes
+	 * to all nodes) or not (its tuples are shipped from
+	 * the master to all nodes)
+	 */
+	public final boolean distributeOnly;
+	/**
+	 * Name of the temporary table that will contain
+	 * all the tuples on each node
+	 */
+	public final NamedRelation outRelation;
+
+	/**
+	 * Constructor - Initializes the object with the different
+	 * parameters required to run a Broadcast
+	 *
+	 * @param fromRelation
+	 * @param distributeOnly
+	 * @param outRelation
+	 */
+	public StepBroadcast(NamedRelation fromRelation, boolean distributeOnly, NamedRelation outRelation) {
+		this.fromRelation = fromRelation;
+		this.distributeOnly = distributeOnly;
+		this.outRelation = outRelation;
+	}
+
+	@Override
+	public List<String> getInputs() {
+		return Arrays.asList(fromRelation.getName());
+	}
+
+	@Override
+	public List<String> getOutputs() {
+		return Arrays.asList(outRelation.getName());
+	}
+
+	@Override
+	public StepBroadcast bind(Map<String, String> bindings) {
+		return new StepBroadcast(bind(fromRelation, bindings), distributeOnly,
+				bind(outRelation, bindings));
+	}
+
+	/**
+	 * Prints the internal state of the object to string
+	 * This is used for debugging purposes only
+	 */
+	@Override
+	public String toString() {
+		return "\n" +
+				"STEP BROADCAST " + fromRelation +
+				(distributeOnly ? " FROM MASTER" : "") +
+				" INTO " + outRelation;
+	}
+
+}
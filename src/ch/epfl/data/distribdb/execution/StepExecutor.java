@@ -1,19 +1,29 @@
 package ch.epfl.data.distribdb.execution;
 
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import ch.epfl.data.distribdb.execution.ExecStep;
+import ch.epfl.data.distribdb.execution.StepBroadcast;
 import ch.epfl.data.distribdb.execution.StepGather;
 import ch.epfl.data.distribdb.execution.StepRunSubquery;
+import ch.epfl.data.distribdb.execution.StepShuffle;
 import ch.epfl.data.distribdb.execution.StepSuperDuper;
 import ch.epfl.data.distribdb.execution.ExecStep.StepPlace;
-import ch.epfl.data.distribdb.lowlevel.DatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.DbFuture;
 
 import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
 
@@ -28,6 +38,8 @@ import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
  * The method performs the actual 
  * execution, computes the final results, 
  * and returns them as a handle to ResultSet
+ * Steps which do not depend on each other (see 
+ * ExecStep.getInputs) are executed concurrently
  * 
  * @author Amer C (amer.chamseddine@epfl.ch)
  *
@@ -38,7 +50,7 @@ public class StepExecutor {
 	/**
 	 * Handle to DB manager used to send queries to nodes
 	 */
-	DatabaseManager dbManager;
+	AsyncDatabaseManager dbManager;
 	/**
 	 * Table Manager - responsible mainly for 
 	 * generating unique names for temporary tables,
@@ -50,22 +62,62 @@ public class StepExecutor {
 	 * List of all nodes
 	 */
 	List<String> allNodes;
+	/**
+	 * Statistics catalog handed to the SuperDuper 
+	 * (null if not available)
+	 */
+	ClusterStatistics statistics;
+	/**
+	 * Maximum number of steps executed at once 
+	 * (on the execution service of the DB manager)
+	 */
+	int maxParallelSteps = DEFAULT_MAX_PARALLEL_STEPS;
+	
+	/**
+	 * Default maximum number of steps executed at once
+	 */
+	public static final int DEFAULT_MAX_PARALLEL_STEPS = 4;
 	
 	/**
 	 * Constructor - Should pass it a handle to DB manager, table manager, 
 	 * and the list of all nodes
 	 * 
-	 * @param DatabaseManager
+	 * @param AsyncDatabaseManager
+	 * @param List<String> allNodes
+	 */
+	public StepExecutor(AsyncDatabaseManager dbManager, TableManager tableManager, List<String> allNodes) {
+		this(dbManager, tableManager, allNodes, null);
+	}
+	
+	/**
+	 * Constructor - Same as above, with the statistics catalog 
+	 * 
+	 * @param AsyncDatabaseManager
+	 * @param TableManager
 	 * @param List<String> allNodes
+	 * @param ClusterStatistics
 	 */
-	public StepExecutor(DatabaseManager dbManager, TableManager tableManager, List<String> allNodes) {
+	public StepExecutor(AsyncDatabaseManager dbManager, TableManager tableManager, List<String> allNodes, ClusterStatistics statistics) {
 
 		this.dbManager = dbManager;
 		this.tableManager = tableManager;
 		this.allNodes = allNodes;
+		this.statistics = statistics;
 		
 	}
 	
+	/**
+	 * Sets the maximum number of steps executed at once 
+	 * (1 executes them one after the other)
+	 * 
+	 * @param maxParallelSteps
+	 */
+	public void setMaxParallelSteps(int maxParallelSteps) {
+		if(maxParallelSteps < 1)
+			throw new IllegalArgumentException("Invalid maxParallelSteps: " + maxParallelSteps);
+		this.maxParallelSteps = maxParallelSteps;
+	}
+	
 	/** 
 	 * Call this to perform the actual execution of the distributed 
 	 * query plan that is given as argument
@@ -82,45 +134,165 @@ public class StepExecutor {
 			throw new IllegalStateException("execSteps cannot be null!");
 		}
 		ExecStep finalStep = execSteps.get(execSteps.size() - 1);
-		if(!(finalStep instanceof StepRunSubquery) || ((StepRunSubquery) finalStep).stepPlace != StepPlace.ON_MASTER) {
-			throw new IllegalStateException("Bad final step: should be a query on master");
+		if(!(finalStep instanceof StepMergeAggregates) && !(finalStep instanceof StepMergeSorted) && 
+				(!(finalStep instanceof StepRunSubquery) || ((StepRunSubquery) finalStep).stepPlace != StepPlace.ON_MASTER)) {
+			throw new IllegalStateException("Bad final step: should be a query or a merge on master");
 		}
 		if(DEBUG) System.out.println("\nEXECUTION:");
-		for(ExecStep step : execSteps) {
-			if(step instanceof StepGather) {
-				if(DEBUG) System.out.println("StepGather");
-				dbManager.execute("SELECT * FROM " + ((StepGather) step).fromRelation, allNodes, 
-						((StepGather) step).outRelation, allNodes.get(0));
-			} else if(step instanceof StepRunSubquery) {
-				if(DEBUG) System.out.println("StepRunSubquery");
-				if(step == finalStep) {
-					return dbManager.fetch(((StepRunSubquery) step).query, allNodes.get(0));
-				}
-				if(((StepRunSubquery) step).stepPlace == StepPlace.ON_WORKERS) {
-					dbManager.execute(((StepRunSubquery) step).query, allNodes, ((StepRunSubquery) step).outRelation);
-				} else if(((StepRunSubquery) step).stepPlace == StepPlace.ON_MASTER) {
-					dbManager.execute(((StepRunSubquery) step).query, allNodes.get(0), ((StepRunSubquery) step).outRelation);
-				}
-			} else if(step instanceof StepSuperDuper) {
-				if(DEBUG) System.out.println("StepSuperDuper");
-				SuperDuper sd = new SuperDuper(dbManager);
-				List<String> fromNodes = null;
-				if(((StepSuperDuper) step).distributeOnly) {
-					fromNodes = Arrays.asList(new String[]{allNodes.get(0)});
-				}else {
-					fromNodes = allNodes;
+		List<ExecStep> steps = execSteps.subList(0, execSteps.size() - 1);
+		// step j must run before step i if it creates a relation that i reads
+		List<List<Integer>> dependents = new ArrayList<List<Integer>>();
+		int[] missing = new int[steps.size()];
+		for(int i = 0; i < steps.size(); i++) {
+			dependents.add(new ArrayList<Integer>());
+			List<String> inputs = steps.get(i).getInputs();
+			for(int j = 0; j < i; j++) {
+				if(inputs == null || !Collections.disjoint(inputs, steps.get(j).getOutputs())) {
+					dependents.get(j).add(i);
+					missing[i]++;
 				}
-				Map<String, String> bloomFilters = new HashMap<String, String>();
-				for(String theNode : allNodes)
-					bloomFilters.put(theNode, tableManager.generateTmpTblName("bloomfilter_" + theNode));
-				sd.runSuperDuper(fromNodes, allNodes, 
-						((StepSuperDuper) step).fromRelation.getName(), ((StepSuperDuper) step).toRelation.getName(), 
-						((StepSuperDuper) step).fromColumn, ((StepSuperDuper) step).toColumn, 
-						bloomFilters, ((StepSuperDuper) step).outRelation.getName());
-				sd.shutDown();
 			}
 		}
-		throw new IllegalStateException("StepExecutor::executeSteps This should never happen");
+		
+		// run the ready steps, at most maxParallelSteps at once, in the order of the list
+		final BlockingQueue<Integer> finished = new LinkedBlockingQueue<Integer>();
+		Map<Integer, DbFuture<Void>> running = new HashMap<Integer, DbFuture<Void>>();
+		TreeSet<Integer> ready = new TreeSet<Integer>();
+		for(int i = 0; i < steps.size(); i++)
+			if(missing[i] == 0)
+				ready.add(i);
+		SQLException failure = null;
+		while(!running.isEmpty() || (failure == null && !ready.isEmpty())) {
+			while(failure == null && !ready.isEmpty() && running.size() < maxParallelSteps) {
+				final int i = ready.pollFirst();
+				final ExecStep step = steps.get(i);
+				running.put(i, dbManager.getExecutionService().submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						try {
+							executeStep(step);
+							return null;
+						} finally {
+							finished.add(i);
+						}
+					}
+				}));
+			}
+			int i = finished.take();
+			try {
+				running.remove(i).get();
+			} catch (SQLException e) {
+				if(failure == null)
+					failure = e;
+				continue;
+			}
+			for(int d : dependents.get(i))
+				if(--missing[d] == 0)
+					ready.add(d);
+		}
+		if(failure != null)
+			throw failure;
+		
+		if(finalStep instanceof StepMergeAggregates) {
+			if(DEBUG) System.out.println("StepMergeAggregates");
+			StepMergeAggregates merge = (StepMergeAggregates) finalStep;
+			ResultSet results = new AggregateMerger(dbManager).merge(merge, allNodes);
+			if(results != null)
+				return results;
+			// not mergeable in memory: the final query runs on the gathered intermediate results
+			executeStep(new StepGather(merge.fromRelation, merge.gatheredRelation));
+			return dbManager.fetch(merge.finalQuery, allNodes.get(0));
+		}
+		if(finalStep instanceof StepMergeSorted) {
+			if(DEBUG) System.out.println("StepMergeSorted");
+			StepMergeSorted merge = (StepMergeSorted) finalStep;
+			ResultSet results = new SortedMerger(dbManager).merge(merge, allNodes);
+			if(results != null)
+				return results;
+			// not mergeable in memory: the final query runs on the gathered intermediate results
+			executeStep(new StepGather(merge.fromRelation, merge.gatheredRelation));
+			return dbManager.fetch(merge.finalQuery, allNodes.get(0));
+		}
+		if(DEBUG) System.out.println("StepRunSubquery");
+		if(!((StepRunSubquery) finalStep).parameters.isEmpty())
+			return dbManager.fetchPrepared(((StepRunSubquery) finalStep).query, ((StepRunSubquery) finalStep).parameters, allNodes.get(0));
+		return dbManager.fetch(((StepRunSubquery) finalStep).query, allNodes.get(0));
+	}
+	
+	/**
+	 * Executes one step of the distributed query plan 
+	 * (except the final one, which fetches the results)
+	 * Called by executeSteps once the steps creating 
+	 * the relations it reads are done
+	 * 
+	 * @param ExecStep the step to execute
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	private void executeStep(ExecStep step) throws SQLException, InterruptedException {
+		if(step instanceof StepGather) {
+			if(DEBUG) System.out.println("StepGather");
+			dbManager.execute("SELECT * FROM " + ((StepGather) step).fromRelation, allNodes, 
+					((StepGather) step).outRelation, allNodes.get(0));
+		} else if(step instanceof StepRunSubquery) {
+			if(DEBUG) System.out.println("StepRunSubquery");
+			if(!((StepRunSubquery) step).parameters.isEmpty()) {
+				// prepared on the nodes and executed with the parameters bound
+				dbManager.executePrepared(((StepRunSubquery) step).query, ((StepRunSubquery) step).parameters, 
+						((StepRunSubquery) step).stepPlace == StepPlace.ON_WORKERS ? allNodes : Arrays.asList(allNodes.get(0)), 
+						((StepRunSubquery) step).outRelation);
+			} else if(((StepRunSubquery) step).stepPlace == StepPlace.ON_WORKERS) {
+				dbManager.execute(((StepRunSubquery) step).query, allNodes, ((StepRunSubquery) step).outRelation);
+			} else if(((StepRunSubquery) step).stepPlace == StepPlace.ON_MASTER) {
+				dbManager.execute(((StepRunSubquery) step).query, allNodes.get(0), ((StepRunSubquery) step).outRelation);
+			}
+		} else if(step instanceof StepSuperDuper) {
+			if(DEBUG) System.out.println("StepSuperDuper");
+			SuperDuper sd = new SuperDuper(dbManager, statistics);
+			List<String> fromNodes = null;
+			if(((StepSuperDuper) step).distributeOnly) {
+				fromNodes = Arrays.asList(new String[]{allNodes.get(0)});
+			}else {
+				fromNodes = allNodes;
+			}
+			Map<String, String> bloomFilters = new HashMap<String, String>();
+			for(String theNode : allNodes)
+				bloomFilters.put(theNode, tableManager.generateTmpTblName("bloomfilter_" + theNode));
+			sd.runSuperDuper(fromNodes, allNodes, 
+					((StepSuperDuper) step).fromRelation.getName(), ((StepSuperDuper) step).toRelation.getName(), 
+					((StepSuperDuper) step).fromColumn, ((StepSuperDuper) step).toColumn, 
+					bloomFilters, ((StepSuperDuper) step).outRelation.getName());
+		} else if(step instanceof StepBroadcast) {
+			if(DEBUG) System.out.println("StepBroadcast");
+			// every node holding tuples replicates them on all nodes
+			List<String> fromNodes = null;
+			if(((StepBroadcast) step).distributeOnly) {
+				fromNodes = Arrays.asList(new String[]{allNodes.get(0)});
+			}else {
+				fromNodes = allNodes;
+			}
+			List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
+			for(String fromNode : fromNodes) {
+				futures.add(dbManager.executeAsync("SELECT * FROM " + ((StepBroadcast) step).fromRelation.getName(), 
+						fromNode, ((StepBroadcast) step).outRelation.getName(), allNodes));
+			}
+			DbFuture.all(futures).get();
+		} else if(step instanceof StepShuffle) {
+			if(DEBUG) System.out.println("StepShuffle");
+			// every node reads its tuples once and sends each of them to the node its hash
+			// designates (hashing the values in the canonical form of their type)
+			ResultSet rs = dbManager.fetch(((StepShuffle) step).getTypeQuery(), allNodes.get(0));
+			ResultSetMetaData meta = rs.getMetaData();
+			int type = meta.getColumnType(1);
+			String typeName = meta.getColumnTypeName(1);
+			rs.close();
+			List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
+			for(String fromNode : allNodes) {
+				futures.add(dbManager.executePartitionedAsync(((StepShuffle) step).getPartitionQuery(allNodes.size(), type, typeName), 
+						fromNode, ((StepShuffle) step).outRelation.getName(), allNodes));
+			}
+			DbFuture.all(futures).get();
+		}
 	}
 
 }
@@ -1,5 +1,9 @@
 package ch.epfl.data.distribdb.execution;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Class holding the information needed by 
  * the Gather elementary step
@@ -34,6 +38,21 @@ public class StepGather extends ExecStep {
 		this.outRelation = outRelation;
 	}
 	
+	@Override
+	public List<String> getInputs() {
+		return Arrays.asList(fromRelation);
+	}
+	
+	@Override
+	public List<String> getOutputs() {
+		return Arrays.asList(outRelation);
+	}
+	
+	@Override
+	public StepGather bind(Map<String, String> bindings) {
+		return new StepGather(bind(fromRelation, bindings), bind(outRelation, bindings));
+	}
+	
 	/**
 	 * Method to represent the internal state of 
 	 * the object as a string
@@ -0,0 +1,294 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.data.distribdb.parsing.Aggregate;
+import ch.epfl.data.distribdb.parsing.AggregateField;
+import ch.epfl.data.distribdb.parsing.Field;
+import ch.epfl.data.distribdb.parsing.LiteralField;
+import ch.epfl.data.distribdb.parsing.NamedField;
+import ch.epfl.data.distribdb.parsing.NamedRelation;
+import ch.epfl.data.distribdb.parsing.Operand;
+import ch.epfl.data.distribdb.parsing.Operator;
+import ch.epfl.data.distribdb.parsing.OrderingItem;
+import ch.epfl.data.distribdb.parsing.OrderingType;
+import ch.epfl.data.distribdb.parsing.Qualifier;
+import ch.epfl.data.distribdb.parsing.QueryRelation;
+
+/**
+ * Class encoding the elementary MergeAggregates step
+ * It is the final step of an aggregate query whose
+ * intermediate results (see QueryRelation.toIntermediateString)
+ * are stored on the workers: the master reads them
+ * from all workers and merges the groups in memory
+ * (see AggregateMerger), then filters (HAVING),
+ * orders, and limits them, instead of gathering them
+ * in a table and running the final query on it
+ * The final query is kept in case the intermediate
+ * results cannot be merged in memory (e.g., types
+ * AggregateMerger does not know)
+ * Instances of this class are added by the
+ * GraphProcessor to the list of execution steps
+ * Afterward this list is executed by the StepExecutor
+ *
+ */
+public class StepMergeAggregates extends ExecStep {
+
+	/**
+	 * Name of the distributed table holding
+	 * the intermediate results
+	 */
+	public final String fromRelation;
+	/**
+	 * Columns of the intermediate results
+	 */
+	public final List<String> columns;
+	/**
+	 * Aggregate merging each column,
+	 * null for the columns of the group key
+	 */
+	public final List<Aggregate> aggregates;
+	/**
+	 * Columns of the final results (indexes in columns),
+	 * and their names
+	 */
+	public final List<Integer> outputs;
+	public final List<String> outputNames;
+	/**
+	 * HAVING conditions: column (index in columns)
+	 * compared by operator to literal (SQL text)
+	 */
+	public final List<Integer> havingColumns;
+	public final List<Operator> havingOperators;
+	public final List<String> havingLiterals;
+	/**
+	 * ORDER BY columns (indexes in columns),
+	 * and whether they are sorted in descending order
+	 */
+	public final List<Integer> orderColumns;
+	public final List<Boolean> orderDescending;
+	/**
+	 * Number of rows to skip, and to return (-1 for all)
+	 */
+	public final int offset;
+	public final int numRows;
+	/**
+	 * Name of the table on the master in which the
+	 * intermediate results are gathered, and final
+	 * query run on it, if they cannot be merged in memory
+	 */
+	public final String gatheredRelation;
+	public final String finalQuery;
+
+	/**
+	 * Constructor - Initializes the object with the different
+	 * parameters required to merge the intermediate results
+	 * (see forQuery)
+	 */
+	private StepMergeAggregates(String fromRelation, List<String> columns, List<Aggregate> aggregates,
+			List<Integer> outputs, List<String> outputNames,
+			List<Integer> havingColumns, List<Operator> havingOperators, List<String> havingLiterals,
+			List<Integer> orderColumns, List<Boolean> orderDescending, int offset, int numRows,
+			String gatheredRelation, String finalQuery) {
+		this.fromRelation = fromRelation;
+		this.columns = columns;
+		this.aggregates = aggregates;
+		this.outputs = outputs;
+		this.outputNames = outputNames;
+		this.havingColumns = havingColumns;
+		this.havingOperators = havingOperators;
+		this.havingLiterals = havingLiterals;
+		this.orderColumns = orderColumns;
+		this.orderDescending = orderDescending;
+		this.offset = offset;
+		this.numRows = numRows;
+		this.gatheredRelation = gatheredRelation;
+		this.finalQuery = finalQuery;
+	}
+
+	/**
+	 * Builds the step merging the intermediate results of
+	 * an aggregate query, if they can be merged in memory:
+	 * the query selects (and orders on) grouped fields and
+	 * plain SUM, COUNT, MIN, MAX and AVG aggregates, and its
+	 * HAVING clause compares such fields to literals
+	 *
+	 * @param query the aggregate query
+	 * @param fromRelation the distributed table holding
+	 * the intermediate results of the query
+	 * @param gathered the table in which to gather them
+	 * if they cannot be merged in memory
+	 * @return the step, or null if the query cannot be merged
+	 */
+	public static StepMergeAggregates forQuery(QueryRelation query, String fromRelation, NamedRelation gathered) {
+		if(query.areFieldsDistinct())
+			return null;
+		List<Field> intermediateFields = query.getIntermediateFields();
+		List<String> columns = new ArrayList<String>();
+		List<Aggregate> aggregates = new ArrayList<Aggregate>();
+		for(int i = 0; i < intermediateFields.size(); i++) {
+			Field field = intermediateFields.get(i);
+			if(field instanceof LiteralField) { // not in the intermediate results
+				columns.add(null);
+				aggregates.add(null);
+				continue;
+			}
+			if(field.isAggregate() && (!(field instanceof AggregateField) || ((AggregateField) field).isDistinct()))
+				return null;
+			columns.add(field.getAlias() != null ? field.getAlias() : Field.ALIAS_ANONYMOUS_PREFIX + (i + 1));
+			aggregates.add(field.isAggregate() ? ((AggregateField) field).getAggregate() : null);
+		}
+		List<Integer> outputs = new ArrayList<Integer>();
+		List<String> outputNames = new ArrayList<String>();
+		for(Field field : query.getFields()) {
+			int i = intermediateFields.indexOf(field);
+			if(columns.get(i) == null)
+				return null;
+			outputs.add(i);
+			if(field.getAlias() != null)
+				outputNames.add(field.getAlias());
+			else if(field instanceof NamedField)
+				outputNames.add(((NamedField) field).getField());
+			else if(field instanceof AggregateField)
+				outputNames.add(((AggregateField) field).getAggregate().toString().toLowerCase());
+			else
+				outputNames.add(columns.get(i));
+		}
+		List<Integer> havingColumns = new ArrayList<Integer>();
+		List<Operator> havingOperators = new ArrayList<Operator>();
+		List<String> havingLiterals = new ArrayList<String>();
+		if(query.getGroupingQualifiers() != null) {
+			for(Qualifier qualifier : query.getGroupingQualifiers()) {
+				Operator operator = comparison(qualifier);
+				if(operator == null)
+					return null;
+				Operand left = qualifier.getOperands().get(0);
+				Operand right = qualifier.getOperands().get(1);
+				if(left instanceof LiteralField && right instanceof Field && !(right instanceof LiteralField)) {
+					Operand swapped = left;
+					left = right;
+					right = swapped;
+					operator = reversed(operator);
+				}
+				if(!(right instanceof LiteralField) || !(left instanceof Field) ||
+						columns.get(intermediateFields.indexOf(left)) == null)
+					return null;
+				havingColumns.add(intermediateFields.indexOf(left));
+				havingOperators.add(operator);
+				havingLiterals.add(((LiteralField) right).getExpression());
+			}
+		}
+		List<Integer> orderColumns = new ArrayList<Integer>();
+		List<Boolean> orderDescending = new ArrayList<Boolean>();
+		if(query.getOrdering() != null) {
+			for(OrderingItem item : query.getOrdering()) {
+				int i = intermediateFields.indexOf(item.getField());
+				if(columns.get(i) == null)
+					return null;
+				orderColumns.add(i);
+				orderDescending.add(item.getOrderingType() == OrderingType.DESC);
+			}
+		}
+		return new StepMergeAggregates(fromRelation, columns, aggregates, outputs, outputNames,
+				havingColumns, havingOperators, havingLiterals, orderColumns, orderDescending,
+				query.getOffset(), query.getNumRows(), gathered.getName(), query.toFinalString(gathered));
+	}
+
+	/**
+	 * Internal helper function - the operator of
+	 * a qualifier comparing two operands
+	 *
+	 * @param qualifier
+	 * @return the operator, or null if the qualifier
+	 * is not a comparison
+	 */
+	private static Operator comparison(Qualifier qualifier) {
+		switch(qualifier.getOperator()) {
+		case LESS_THAN:
+		case LESS_THAN_OR_EQUALS:
+		case EQUALS:
+		case NOT_EQUALS:
+		case GREATER_THAN:
+		case GREATER_THAN_OR_EQUALS:
+			return qualifier.getOperator();
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Internal helper function - the operator comparing
+	 * the operands of a comparison in reverse order
+	 *
+	 * @param operator
+	 * @return the reversed operator
+	 */
+	private static Operator reversed(Operator operator) {
+		switch(operator) {
+		case LESS_THAN:
+			return Operator.GREATER_THAN;
+		case LESS_THAN_OR_EQUALS:
+			return Operator.GREATER_THAN_OR_EQUALS;
+		case GREATER_THAN:
+			return Operator.LESS_THAN;
+		case GREATER_THAN_OR_EQUALS:
+			return Operator.LESS_THAN_OR_EQUALS;
+		default:
+			return operator;
+		}
+	}
+
+	@Override
+	public List<String> getInputs() {
+		return Arrays.asList(fromRelation);
+	}
+
+	@Override
+	public List<String> getOutputs() {
+		return Arrays.asList(gatheredRelation);
+	}
+
+	@Override
+	public StepMergeAggregates bind(Map<String, String> bindings) {
+		List<String> boundLiterals = new ArrayList<String>();
+		for(String literal : havingLiterals)
+			boundLiterals.add(bind(literal, bindings));
+		return new StepMergeAggregates(bind(fromRelation, bindings), columns, aggregates, outputs, outputNames,
+				havingColumns, havingOperators, boundLiterals, orderColumns, orderDescending,
+				Integer.parseInt(bind(Integer.toString(offset), bindings)),
+				Integer.parseInt(bind(Integer.toString(numRows), bindings)),
+				bind(gatheredRelation, bindings), bind(finalQuery, bindings));
+	}
+
+	/**
+	 * Prints the internal state of the object to string
+	 * This is used for debugging purposes only
+	 */
+	@Override
+	public String toString() {
+		StringBuilder having = new StringBuilder();
+		for(int i = 0; i < havingColumns.size(); i++)
+			having.append(i == 0 ? " HAVING " : " AND ").append(columns.get(havingColumns.get(i)))
+					.append(" ").append(havingOperators.get(i)).append(" ").append(havingLiterals.get(i));
+		StringBuilder order = new StringBuilder();
+		for(int i = 0; i < orderColumns.size(); i++)
+			order.append(i == 0 ? " ORDER BY " : ", ").append(columns.get(orderColumns.get(i)))
+					.append(orderDescending.get(i) ? " DESC" : "");
+		StringBuilder merged = new StringBuilder();
+		for(int i = 0; i < columns.size(); i++)
+			if(columns.get(i) != null)
+				merged.append(merged.length() == 0 ? "" : ", ").append(aggregates.get(i) == null ?
+						columns.get(i) : aggregates.get(i) + "(" + columns.get(i) + ")");
+		return "\n" +
+				"STEP MERGE AGGREGATES " + fromRelation +
+				" {" + merged + "}" + having + order +
+				(offset > 0 ? " OFFSET " + offset : "") +
+				(numRows > -1 ? " LIMIT " + numRows : "") +
+				" ON MASTER OR GATHER INTO " + gatheredRelation +
+				" AND RUN {" + finalQuery + "}";
+	}
+
+}
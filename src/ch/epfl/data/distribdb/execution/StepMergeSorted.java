@@ -0,0 +1,189 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.data.distribdb.parsing.Field;
+import ch.epfl.data.distribdb.parsing.LiteralField;
+import ch.epfl.data.distribdb.parsing.NamedField;
+import ch.epfl.data.distribdb.parsing.NamedRelation;
+import ch.epfl.data.distribdb.parsing.OrderingItem;
+import ch.epfl.data.distribdb.parsing.OrderingType;
+import ch.epfl.data.distribdb.parsing.QueryRelation;
+
+/**
+ * Class encoding the elementary MergeSorted step
+ * It is the final step of a non-aggregate query with
+ * ORDER BY and LIMIT whose intermediate results (the first
+ * rows of each worker, see QueryRelation.toIntermediateString)
+ * are stored on the workers: the master reads them from all
+ * workers through cursors, in order, and merges the sorted
+ * streams (see SortedMerger), until it has the rows asked
+ * for, instead of gathering them in a table and running
+ * the final query on it
+ * The final query is kept in case the intermediate
+ * results cannot be merged in memory (e.g., rows
+ * ordered on strings, whose order depends on the
+ * collation of the nodes)
+ * Instances of this class are added by the
+ * GraphProcessor to the list of execution steps
+ * Afterward this list is executed by the StepExecutor
+ *
+ */
+public class StepMergeSorted extends ExecStep {
+
+	/**
+	 * Name of the distributed table holding
+	 * the intermediate results
+	 */
+	public final String fromRelation;
+	/**
+	 * Columns of the intermediate results
+	 */
+	public final List<String> columns;
+	/**
+	 * Columns of the final results (indexes in columns),
+	 * and their names
+	 */
+	public final List<Integer> outputs;
+	public final List<String> outputNames;
+	/**
+	 * ORDER BY columns (indexes in columns),
+	 * and whether they are sorted in descending order
+	 */
+	public final List<Integer> orderColumns;
+	public final List<Boolean> orderDescending;
+	/**
+	 * Number of rows to skip, and to return
+	 */
+	public final int offset;
+	public final int numRows;
+	/**
+	 * Name of the table on the master in which the
+	 * intermediate results are gathered, and final
+	 * query run on it, if they cannot be merged in memory
+	 */
+	public final String gatheredRelation;
+	public final String finalQuery;
+
+	/**
+	 * Constructor - Initializes the object with the different
+	 * parameters required to merge the intermediate results
+	 * (see forQuery)
+	 */
+	private StepMergeSorted(String fromRelation, List<String> columns,
+			List<Integer> outputs, List<String> outputNames,
+			List<Integer> orderColumns, List<Boolean> orderDescending, int offset, int numRows,
+			String gatheredRelation, String finalQuery) {
+		this.fromRelation = fromRelation;
+		this.columns = columns;
+		this.outputs = outputs;
+		this.outputNames = outputNames;
+		this.orderColumns = orderColumns;
+		this.orderDescending = orderDescending;
+		this.offset = offset;
+		this.numRows = numRows;
+		this.gatheredRelation = gatheredRelation;
+		this.finalQuery = finalQuery;
+	}
+
+	/**
+	 * Builds the step merging the intermediate results of
+	 * a non-aggregate query, if they can be merged in memory:
+	 * the query has ORDER BY and LIMIT but not DISTINCT,
+	 * and selects (and orders on) no literals
+	 *
+	 * @param query the non-aggregate query
+	 * @param fromRelation the distributed table holding
+	 * the intermediate results of the query
+	 * @param gathered the table in which to gather them
+	 * if they cannot be merged in memory
+	 * @return the step, or null if the query cannot be merged
+	 */
+	public static StepMergeSorted forQuery(QueryRelation query, String fromRelation, NamedRelation gathered) {
+		if(query.isAggregate() || query.areFieldsDistinct() ||
+				query.getOrdering() == null || query.getNumRows() < 0)
+			return null;
+		List<Field> intermediateFields = query.getIntermediateFields();
+		List<String> columns = new ArrayList<String>();
+		for(int i = 0; i < intermediateFields.size(); i++) {
+			Field field = intermediateFields.get(i);
+			columns.add(field instanceof LiteralField ? null : // not in the intermediate results
+				field.getAlias() != null ? field.getAlias() : Field.ALIAS_ANONYMOUS_PREFIX + (i + 1));
+		}
+		List<Integer> outputs = new ArrayList<Integer>();
+		List<String> outputNames = new ArrayList<String>();
+		for(Field field : query.getFields()) {
+			int i = intermediateFields.indexOf(field);
+			if(columns.get(i) == null)
+				return null;
+			outputs.add(i);
+			if(field.getAlias() != null)
+				outputNames.add(field.getAlias());
+			else if(field instanceof NamedField)
+				outputNames.add(((NamedField) field).getField());
+			else
+				outputNames.add(columns.get(i));
+		}
+		List<Integer> orderColumns = new ArrayList<Integer>();
+		List<Boolean> orderDescending = new ArrayList<Boolean>();
+		for(OrderingItem item : query.getOrdering()) {
+			int i = intermediateFields.indexOf(item.getField());
+			if(columns.get(i) == null)
+				return null;
+			orderColumns.add(i);
+			orderDescending.add(item.getOrderingType() == OrderingType.DESC);
+		}
+		return new StepMergeSorted(fromRelation, columns, outputs, outputNames,
+				orderColumns, orderDescending, query.getOffset(), query.getNumRows(),
+				gathered.getName(), query.toFinalString(gathered));
+	}
+
+	/**
+	 * Returns the query reading the intermediate results
+	 * of a worker in order
+	 *
+	 * @return SQL text
+	 */
+	public String toCursorString() {
+		StringBuilder string = new StringBuilder("SELECT * FROM " + fromRelation + " ORDER BY ");
+		for(int i = 0; i < orderColumns.size(); i++)
+			string.append(i == 0 ? "" : ", ").append(columns.get(orderColumns.get(i)))
+					.append(orderDescending.get(i) ? " DESC" : "");
+		return string.toString();
+	}
+
+	@Override
+	public List<String> getInputs() {
+		return Arrays.asList(fromRelation);
+	}
+
+	@Override
+	public List<String> getOutputs() {
+		return Arrays.asList(gatheredRelation);
+	}
+
+	@Override
+	public StepMergeSorted bind(Map<String, String> bindings) {
+		return new StepMergeSorted(bind(fromRelation, bindings), columns, outputs, outputNames,
+				orderColumns, orderDescending, offset, numRows,
+				bind(gatheredRelation, bindings), bind(finalQuery, bindings));
+	}
+
+	/**
+	 * Prints the internal state of the object to string
+	 * This is used for debugging purposes only
+	 */
+	@Override
+	public String toString() {
+		return "\n" +
+				"STEP MERGE SORTED {" + toCursorString() + "}" +
+				(offset > 0 ? " OFFSET " + offset : "") +
+				" LIMIT " + numRows +
+				" ON MASTER OR GATHER INTO " + gatheredRelation +
+				" AND RUN {" + finalQuery + "}";
+	}
+
+}
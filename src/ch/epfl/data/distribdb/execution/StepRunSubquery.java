@@ -1,5 +1,10 @@
 package ch.epfl.data.distribdb.execution;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Class to store information needed to perform 
  * the RunSubQuery elementary step
@@ -33,6 +38,18 @@ public class StepRunSubquery extends ExecStep {
 	 * Can be either on workers or on master
 	 */
 	public final StepPlace stepPlace;
+	/**
+	 * Names of the relations read by the sub-query 
+	 * (null if unknown)
+	 */
+	public final List<String> inputs;
+	/**
+	 * Parameters ($1, $2...) of the sub-query, in order 
+	 * (empty if the query has none); a sub-query with 
+	 * parameters is prepared on the nodes and 
+	 * executed with the parameters bound
+	 */
+	public final List<String> parameters;
 	
 	/**
 	 * Constructor - Initializes object with all the required parameters
@@ -43,10 +60,62 @@ public class StepRunSubquery extends ExecStep {
 	 * @param stepPlace
 	 */
 	public StepRunSubquery(String query, boolean agg, String outRelation, StepPlace stepPlace) {
+		this(query, agg, outRelation, stepPlace, null);
+	}
+	
+	/**
+	 * Constructor - Same as above, with the names 
+	 * of the relations read by the sub-query
+	 *  
+	 * @param query
+	 * @param agg
+	 * @param outRelation
+	 * @param stepPlace
+	 * @param inputs
+	 */
+	public StepRunSubquery(String query, boolean agg, String outRelation, StepPlace stepPlace, List<String> inputs) {
+		this(query, agg, outRelation, stepPlace, inputs, new ArrayList<String>());
+	}
+	
+	/**
+	 * Constructor - Same as above, with the parameters 
+	 * of the sub-query
+	 *  
+	 * @param query
+	 * @param agg
+	 * @param outRelation
+	 * @param stepPlace
+	 * @param inputs
+	 * @param parameters
+	 */
+	public StepRunSubquery(String query, boolean agg, String outRelation, StepPlace stepPlace, List<String> inputs, List<String> parameters) {
 		this.query = query;
 		this.agg = agg; // TODO not used anywhere, should remove
 		this.outRelation = outRelation;
 		this.stepPlace = stepPlace;
+		this.inputs = inputs;
+		this.parameters = parameters;
+	}
+	
+	@Override
+	public List<String> getInputs() {
+		return inputs;
+	}
+	
+	@Override
+	public List<String> getOutputs() {
+		return Arrays.asList(outRelation);
+	}
+	
+	@Override
+	public StepRunSubquery bind(Map<String, String> bindings) {
+		List<String> boundInputs = null;
+		if(inputs != null) {
+			boundInputs = new ArrayList<String>();
+			for(String input : inputs)
+				boundInputs.add(bind(input, bindings));
+		}
+		return new StepRunSubquery(bind(query, bindings), agg, bind(outRelation, bindings), stepPlace, boundInputs, parameters);
 	}
 	
 	/**
@@ -58,8 +127,9 @@ public class StepRunSubquery extends ExecStep {
 	public String toString() {
 		return "\n" + 
 				"STEP RUN " + (agg ? "AGG " : "") +
-				"SUB-QUERY {" + query +
-				"} INTO " + outRelation +
+				"SUB-QUERY {" + query + "}" +
+				(parameters.isEmpty() ? "" : " WITH " + parameters) +
+				" INTO " + outRelation +
 				" ON " + stepPlace;
 	}
 	
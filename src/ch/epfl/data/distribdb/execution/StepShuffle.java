@@ -0,0 +1,142 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.data.distribdb.parsing.NamedRelation;
+
+/**
+ * Class encoding the elementary Shuffle step
+ * It hash-partitions a distributed relation on
+ * one of its columns: every tuple is sent to exactly
+ * one node, chosen by hashing its value for that column
+ * Two relations shuffled on their join columns can then
+ * be joined on each node separately
+ * Instances of this class are added by the
+ * GraphProcessor to the list of execution steps
+ * Afterward this list is executed by the StepExecutor
+ *
+ */
+public class StepShuffle extends ExecStep {
+
+	/**
+	 * Relation whose tuples will be shuffled
+	 */
+	public final NamedRelation fromRelation;
+	/**
+	 * Name of column on which tuples are hashed
+	 */
+	public final String column;
+	/**
+	 * Name of the temporary table that will contain
+	 * the shuffled tuples on each node
+	 */
+	public final NamedRelation outRelation;
+
+	/**
+	 * Constructor - Initializes the object with the different
+	 * parameters required to run a Shuffle
+	 *
+	 * @param fromRelation
+	 * @param column
+	 * @param outRelation
+	 */
+	public StepShuffle(NamedRelation fromRelation, String column, NamedRelation outRelation) {
+		this.fromRelation = fromRelation;
+		this.column = column;
+		this.outRelation = outRelation;
+	}
+
+	/**
+	 * Returns the query reading the type of the column
+	 * on which tuples are hashed (no tuple is read)
+	 *
+	 * @return the query
+	 */
+	public String getTypeQuery() {
+		return "SELECT " + column + " FROM " + fromRelation.getName() + " LIMIT 0";
+	}
+
+	/**
+	 * Returns the query reading the tuples of a node,
+	 * each one preceded by the index of the node it is
+	 * to be sent to (see DatabaseManager.executePartitioned)
+	 * Values are hashed in a canonical form of their type,
+	 * so that values which compare equal are sent to the same
+	 * node even if they are of different types (e.g., integer
+	 * and numeric) or print differently (e.g., 1.5 and 1.50)
+	 *
+	 * @param nodeCount number of nodes
+	 * @param type SQL type of the column (see java.sql.Types)
+	 * @param typeName name of the type on the nodes
+	 * @return the query
+	 */
+	public String getPartitionQuery(int nodeCount, int type, String typeName) {
+		// hashtext may be negative, hence the double modulo
+		return String.format("SELECT ((hashtext(%s)::bigint %% %d) + %d) %% %d, * FROM %s",
+				canonicalText(type, typeName), nodeCount, nodeCount, nodeCount, fromRelation.getName());
+	}
+
+	/**
+	 * Internal helper function - the column as the text
+	 * of its value in a canonical form:
+	 * numbers as numerics without trailing zeros after the
+	 * decimal point, dates and timestamps as timestamps,
+	 * other values as they print
+	 *
+	 * @param type SQL type of the column (see java.sql.Types)
+	 * @param typeName name of the type on the nodes
+	 * @return SQL text
+	 */
+	private String canonicalText(int type, String typeName) {
+		switch(type) {
+		case Types.BIGINT:
+		case Types.INTEGER:
+		case Types.SMALLINT:
+		case Types.TINYINT:
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+		case Types.REAL:
+		case Types.FLOAT:
+		case Types.DOUBLE:
+			return "regexp_replace(CAST(CAST(" + column + " AS NUMERIC) AS TEXT), '(\\.[0-9]*[1-9])0+$|\\.0+$', '\\1')";
+		case Types.DATE:
+		case Types.TIMESTAMP:
+			return "CAST(CAST(" + column + " AS TIMESTAMP) AS TEXT)";
+		default:
+			if("timestamptz".equals(typeName))
+				return "CAST(CAST(" + column + " AS TIMESTAMP) AS TEXT)";
+			return "CAST(" + column + " AS TEXT)";
+		}
+	}
+
+	@Override
+	public List<String> getInputs() {
+		return Arrays.asList(fromRelation.getName());
+	}
+
+	@Override
+	public List<String> getOutputs() {
+		return Arrays.asList(outRelation.getName());
+	}
+
+	@Override
+	public StepShuffle bind(Map<String, String> bindings) {
+		return new StepShuffle(bind(fromRelation, bindings), column,
+				bind(outRelation, bindings));
+	}
+
+	/**
+	 * Prints the internal state of the object to string
+	 * This is used for debugging purposes only
+	 */
+	@Override
+	public String toString() {
+		return "\n" +
+				"STEP SHUFFLE " + fromRelation + " (" + column + ")" +
+				" INTO " + outRelation;
+	}
+
+}
@@ -1,5 +1,9 @@
 package ch.epfl.data.distribdb.execution;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
 import ch.epfl.data.distribdb.parsing.NamedRelation;
 
 /**
@@ -70,6 +74,24 @@ public class StepSuperDuper extends ExecStep {
 		this.outRelation = outRelation;
 	}
 
+	@Override
+	public List<String> getInputs() {
+		return Arrays.asList(fromRelation.getName(), toRelation.getName());
+	}
+	
+	@Override
+	public List<String> getOutputs() {
+		return Arrays.asList(outRelation.getName());
+	}
+	
+	@Override
+	public StepSuperDuper bind(Map<String, String> bindings) {
+		return new StepSuperDuper(bind(fromRelation, bindings), 
+				bind(toRelation, bindings), 
+				fromColumn, toColumn, distributeOnly, 
+				bind(outRelation, bindings));
+	}
+
 	/**
 	 * Prints the internal state of the object to string
 	 * This is used for debugging purposes only
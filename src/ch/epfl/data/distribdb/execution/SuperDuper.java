@@ -3,16 +3,13 @@ package ch.epfl.data.distribdb.execution;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import ch.epfl.data.distribdb.lowlevel.AbstractDatabaseManager;
-import ch.epfl.data.distribdb.lowlevel.DatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.DbFuture;
 
 /**
  * SuperDuper operator implementation 
@@ -25,21 +22,35 @@ import ch.epfl.data.distribdb.lowlevel.DatabaseManager;
 public class SuperDuper {
 	/**
 	 * Handle to DB manager used to send queries to various nodes
+	 * Its asynchronous operations are used to parallelize the job
 	 */
-	private DatabaseManager dbManager;
+	private AsyncDatabaseManager dbManager;
 	/**
-	 * Pool of threads used to parallelize the job
+	 * Statistics catalog used to estimate the number of 
+	 * distinct values to be put in the Bloom filters 
+	 * (null if not available)
 	 */
-	private final ExecutorService pool;
+	private ClusterStatistics statistics;
 	
 	/**
 	 * Constructor - Initializes object with DB manager
 	 * 
-	 * @param DatabaseManager
+	 * @param AsyncDatabaseManager
 	 */
-	public SuperDuper(DatabaseManager dbManager) {
+	public SuperDuper(AsyncDatabaseManager dbManager) {
+		this(dbManager, null);
+	}
+	
+	/**
+	 * Constructor - Initializes object with DB manager 
+	 * and statistics catalog
+	 * 
+	 * @param AsyncDatabaseManager
+	 * @param ClusterStatistics
+	 */
+	public SuperDuper(AsyncDatabaseManager dbManager, ClusterStatistics statistics) {
 		this.dbManager = dbManager;
-		this.pool = Executors.newCachedThreadPool();
+		this.statistics = statistics;
 	}
 
 	/**
@@ -81,75 +92,113 @@ public class SuperDuper {
 			final Map<String, String> bloomFilters, final String outRelation) 
 					throws SQLException, InterruptedException {
 		
-		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
-        final List<SQLException> exceptions = Collections.synchronizedList(new ArrayList<SQLException>());
-        
+		runSuperDuperAsync(fromNodeIds, toNodeIds, fromRelation, toRelation, 
+				fromColumn, toColumn, bloomFilters, outRelation).get();
+	}
+	
+	/**
+	 * Asynchronous version of runSuperDuper
+	 * Starts the SuperDuper and returns right away
+	 * For each node in toNodeIds, the operations are chained 
+	 * on each other (holder creation and sampling of fromRelation, 
+	 * then bloom filter computation and replication, 
+	 * then filtering and shipment) so no thread waits between them
+	 * The returned future completes once all the nodes in toNodeIds 
+	 * received their tuples
+	 * 
+	 * @param fromNodeIds
+	 * @param toNodeIds
+	 * @param fromRelation
+	 * @param toRelation
+	 * @param fromColumn
+	 * @param toColumn
+	 * @param Map<String, String> bloomFilters
+	 * @param outRelation
+	 * @return DbFuture<Void> completion of the whole operation
+	 */
+	public DbFuture<Void> runSuperDuperAsync(final List<String> fromNodeIds, final List<String> toNodeIds, 
+			final String fromRelation, final String toRelation,
+			final String fromColumn, final String toColumn,
+			final Map<String, String> bloomFilters, final String outRelation) {
+		
+		final List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
+		
 		for (final String nodeId : toNodeIds) {
-			tasks.add(new Callable<Void>() {
+			final String bloomFilterTableName = bloomFilters.get(nodeId);
+			
+			// create holder
+			// no need to drop-if-exists before, table manager ensures that the name is unique 
+			final DbFuture<Void> holderCreated = dbManager.executeAsync(String.format("SELECT createemptybloomfilter('%s')", bloomFilterTableName), fromNodeIds);
+			
+			// meanwhile, get the size and the schema of the fromRelation
+			// the size comes from the statistics catalog if it knows the relation, 
+			// otherwise it is counted on a random node and extrapolated to all nodes
+			String sampleFromNodeId = fromNodeIds.get(new Random().nextInt(fromNodeIds.size()));
+			final long knownCount = statistics == null ? ClusterStatistics.UNKNOWN : statistics.getDistinctCount(fromRelation, fromColumn);
+			final DbFuture<ResultSet> countFetched = knownCount != ClusterStatistics.UNKNOWN ? 
+					DbFuture.<ResultSet>completed(null) : 
+					dbManager.fetchAsync("SELECT COUNT(DISTINCT " + fromColumn + ") FROM " + fromRelation, sampleFromNodeId);
+			final DbFuture<ResultSet> schemaFetched = dbManager.fetchAsync("SELECT * FROM " + fromRelation + " WHERE 1=2", sampleFromNodeId);
+			
+			futures.add(holderCreated.then(new DbFuture.Continuation<Void, ResultSet>() {
 				@Override
-				public Void call() throws Exception {
-                    try {
-                    	String bloomFilterTableName = bloomFilters.get(nodeId);
-                    	
-                    	// create holder
-                    	// no need to drop-if-exists before, table manager ensures that the name is unique 
-                    	SuperDuper.this.dbManager.execute(String.format("SELECT createemptybloomfilter('%s')", bloomFilterTableName), fromNodeIds);
-                    	
-                    	String sampleFromNodeId = fromNodeIds.get(new Random().nextInt(fromNodeIds.size()));
-                    	ResultSet rs = SuperDuper.this.dbManager.fetch("SELECT COUNT(DISTINCT " + fromColumn + ") FROM " + fromRelation, sampleFromNodeId);
-                    	rs.next();
-                    	int fromRelationCount = rs.getInt(1) * fromNodeIds.size();
-                    	
-                    	ResultSet rs1 = SuperDuper.this.dbManager.fetch("SELECT * FROM " + fromRelation + " WHERE 1=2", sampleFromNodeId);
-                    	String fromSchema = AbstractDatabaseManager.tableSchemaFromMetaData(rs1.getMetaData());
-                    	
-            			// create bloom filter on the toRelation and replicate it on all nodes
-                    	SuperDuper.this.dbManager.execute(
-            					String.format("SELECT * FROM computebloomfilter(%s, '%s', 'SELECT CAST(%s AS TEXT) FROM %s')",
-            							fromRelationCount, toColumn, toColumn, toRelation
-            					),
-            					nodeId,
-            					bloomFilterTableName,
-            					fromNodeIds
-            			);
-                    	
-            			// apply the bloom join on the left node and ship the result to the right node
-                    	SuperDuper.this.dbManager.execute(
-            					String.format("SELECT * FROM filterbybloom(%s, '%s', 'SELECT * FROM %s WHERE ?', '%s') AS tbl(%s)",
-            							fromRelationCount, fromColumn, fromRelation, bloomFilterTableName, fromSchema
-            					), 
-            					fromNodeIds,
-            					outRelation,
-            					nodeId
-            			);
-                    	
-                    	// cleanup holder
-                    	// no need to clean anymore, table manager takes care of it
-
-                    } catch (SQLException e) {
-                        exceptions.add(e);
-                    }
-                    
-                    return null;
+				public DbFuture<ResultSet> apply(Void value) {
+					return countFetched;
+				}
+			}).then(new DbFuture.Continuation<ResultSet, Void>() {
+				@Override
+				public DbFuture<Void> apply(ResultSet rs) throws SQLException {
+					final long fromRelationCount;
+					if(rs == null) {
+						fromRelationCount = Math.max(1, knownCount);
+					} else {
+						rs.next();
+						fromRelationCount = rs.getLong(1) * fromNodeIds.size();
+					}
+					
+					return schemaFetched.then(new DbFuture.Continuation<ResultSet, Void>() {
+						@Override
+						public DbFuture<Void> apply(ResultSet rs1) throws SQLException {
+							final String fromSchema = AbstractDatabaseManager.tableSchemaFromMetaData(rs1.getMetaData());
+							
+							// create bloom filter on the toRelation and replicate it on all nodes
+							return dbManager.executeAsync(
+									String.format("SELECT * FROM computebloomfilter(%s, '%s', 'SELECT CAST(%s AS TEXT) FROM %s')",
+											fromRelationCount, toColumn, toColumn, toRelation
+									),
+									nodeId,
+									bloomFilterTableName,
+									fromNodeIds
+							).then(new DbFuture.Continuation<Void, Void>() {
+								@Override
+								public DbFuture<Void> apply(Void value) {
+									
+									// apply the bloom join on the left node and ship the result to the right node
+									return dbManager.executeAsync(
+											String.format("SELECT * FROM filterbybloom(%s, '%s', 'SELECT * FROM %s WHERE ?', '%s') AS tbl(%s)",
+													fromRelationCount, fromColumn, fromRelation, bloomFilterTableName, fromSchema
+											), 
+											fromNodeIds,
+											outRelation,
+											nodeId
+									);
+									
+									// cleanup holder
+									// no need to clean anymore, table manager takes care of it
+								}
+							});
+						}
+					});
 				}
-			});
+			}));
 		}
 		
-        this.pool.invokeAll(tasks);
-        
-        if (!exceptions.isEmpty()) {
-            throw exceptions.get(0);
-        }
-	}
-	
-	/**
-	 * After finishing a SuperDuper operation this has to be called
-	 * to shut down the pool of threads
-	 * Failing to call this function may result in the main program 
-	 * hanging (not exiting)
-	 */
-	public void shutDown() {
-        this.pool.shutdown();
+		return DbFuture.all(futures).then(new DbFuture.Continuation<List<Void>, Void>() {
+			@Override
+			public DbFuture<Void> apply(List<Void> values) {
+				return DbFuture.completed(null);
+			}
+		});
 	}
 	
 }
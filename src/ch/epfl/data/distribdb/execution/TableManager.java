@@ -3,15 +3,14 @@ package ch.epfl.data.distribdb.execution;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 
-import ch.epfl.data.distribdb.lowlevel.DatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.lowlevel.DbFuture;
 
 /**
  * Manage Temporary Tables that get created 
@@ -35,6 +34,11 @@ public class TableManager {
 	 * query plan
 	 */
 	List<String> tempTblNames = new LinkedList<String>();
+	/**
+	 * Temporary tables kept across queries (see keep),
+	 * which cleanTempTables leaves on the nodes
+	 */
+	Set<String> keptTblNames = new HashSet<String>();
 	
 	/**
 	 * Constructor - initializes the object 
@@ -47,47 +51,23 @@ public class TableManager {
 	 * in the given list of nodes, according to the saved
 	 * list of temporary table names
 	 * 
-	 * @param DatabaseManager
+	 * @param AsyncDatabaseManager
 	 * @param List<String> nodeIds
 	 * @throws SQLException
 	 * @throws InterruptedException
 	 */
-	public synchronized void cleanTempTables(final DatabaseManager dbManager, final List<String> nodeIds) 
+	public synchronized void cleanTempTables(final AsyncDatabaseManager dbManager, final List<String> nodeIds) 
 			throws SQLException, InterruptedException {
 		if(tempTblNames.isEmpty())
 			return;
 		
-		final ExecutorService pool = Executors.newCachedThreadPool();
-		
-		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
-        final List<SQLException> exceptions = Collections.synchronizedList(new ArrayList<SQLException>());
-        
-		for (final String nodeId : nodeIds) {
-			tasks.add(new Callable<Void>() {
-				@Override
-				public Void call() throws Exception {
-                    try {
-                    	StringBuilder sb = new StringBuilder();
-                    	for(String tbl : tempTblNames) {
-                    		sb.append("DROP TABLE IF EXISTS " + tbl + ";");
-                    	}
-                    	dbManager.execute(sb.toString(), nodeId);
-                    } catch (SQLException e) {
-                        exceptions.add(e);
-                    }
-                    return null;
-				}
-			});
+		StringBuilder sb = new StringBuilder();
+		for(String tbl : tempTblNames) {
+			sb.append("DROP TABLE IF EXISTS " + tbl + ";");
 		}
+		dbManager.executeAsync(sb.toString(), nodeIds).get();
 		
-        pool.invokeAll(tasks);
-        pool.shutdown();
-        
-        if (!exceptions.isEmpty()) {
-            throw exceptions.get(0);
-        }
-        
-        tempTblNames.clear();
+		tempTblNames.clear();
 	}
 	
 	/**
@@ -99,41 +79,31 @@ public class TableManager {
 	 * queries) because it might drop tables that
 	 * are currently used by them
 	 * 
+	 * @param AsyncDatabaseManager
 	 * @param List<String> nodeIds
 	 * @throws SQLException
 	 * @throws InterruptedException
 	 */
-	public void cleanAllTmpTables(final DatabaseManager dbManager, final List<String> nodeIds) 
+	public void cleanAllTmpTables(final AsyncDatabaseManager dbManager, final List<String> nodeIds) 
 			throws SQLException, InterruptedException {
-		final ExecutorService pool = Executors.newCachedThreadPool();;
-		final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
-        final List<SQLException> exceptions = Collections.synchronizedList(new ArrayList<SQLException>());
+		final List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
 		for (final String nodeId : nodeIds) {
-			tasks.add(new Callable<Void>() {
+			futures.add(dbManager.fetchAsync("" +
+					"SELECT tablename " +
+					"FROM pg_catalog.pg_tables " +
+					"WHERE tablename LIKE 'tmp_%'" , nodeId
+			).then(new DbFuture.Continuation<ResultSet, Void>() {
 				@Override
-				public Void call() throws Exception {
-                    try {
-                    	ResultSet rs = dbManager.fetch("" +
-                    			"SELECT tablename " +
-                    			"FROM pg_catalog.pg_tables " +
-                    			"WHERE tablename LIKE 'tmp_%'" , nodeId);
-                    	StringBuilder sb = new StringBuilder();
-                    	while(rs.next()) {
-                    		sb.append("DROP TABLE " + rs.getString(1) + ";");
-                    	}
-                    	dbManager.execute(sb.toString(), nodeId);
-                    } catch (SQLException e) {
-                        exceptions.add(e);
-                    }
-                    return null;
+				public DbFuture<Void> apply(ResultSet rs) throws SQLException {
+					StringBuilder sb = new StringBuilder();
+					while(rs.next()) {
+						sb.append("DROP TABLE " + rs.getString(1) + ";");
+					}
+					return dbManager.executeAsync(sb.toString(), nodeId);
 				}
-			});
+			}));
 		}
-        pool.invokeAll(tasks);
-        pool.shutdown();
-        if (!exceptions.isEmpty()) {
-            throw exceptions.get(0);
-        }
+		DbFuture.all(futures).get();
 	}
 
 	/**
@@ -152,9 +122,32 @@ public class TableManager {
 	public synchronized String generateTmpTblName(String orig) {
 		do{
 			orig = "tmp_" + new Random().nextInt(1000000);
-		} while(tempTblNames.contains(orig));
+		} while(tempTblNames.contains(orig) || keptTblNames.contains(orig));
 		tempTblNames.add(orig);
 		return orig;
 	}
 
+	/**
+	 * Keeps a temporary table on the nodes: it is 
+	 * no longer cleaned by cleanTempTables, until 
+	 * it is released (see IntermediateStore)
+	 * 
+	 * @param tbl temporary table name
+	 */
+	public synchronized void keep(String tbl) {
+		if(tempTblNames.remove(tbl))
+			keptTblNames.add(tbl);
+	}
+
+	/**
+	 * Releases a temporary table kept with keep:
+	 * it is cleaned by the next cleanTempTables
+	 * 
+	 * @param tbl temporary table name
+	 */
+	public synchronized void release(String tbl) {
+		if(keptTblNames.remove(tbl))
+			tempTblNames.add(tbl);
+	}
+
 }
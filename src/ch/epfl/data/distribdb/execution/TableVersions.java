@@ -0,0 +1,146 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+
+import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
+
+/**
+ * TableVersions - Versions of the tables stored on the
+ * nodes, used to tell whether results computed from
+ * them (see ResultCache and IntermediateStore) are
+ * still up to date
+ *
+ * Triggers on the nodes count the changes made to each
+ * table in the table_versions table (see
+ * tools/create_version_triggers.sql); the version of
+ * a table is the sum of its counters over the nodes,
+ * which changes as soon as the table changes on any node
+ * The counters are read from the nodes at most once
+ * per check interval, so the versions may be out of
+ * date by that much
+ */
+public class TableVersions {
+
+	/**
+	 * Default time (in ms) the versions are used
+	 * before being read from the nodes again
+	 */
+	public static final long DEFAULT_CHECK_INTERVAL = 0;
+
+	/**
+	 * Query reading the table versions of a node
+	 */
+	private static final String VERSIONS_QUERY = "SELECT tablename, version FROM table_versions";
+
+	/**
+	 * Handle to DB manager used to read the versions
+	 */
+	private final AsyncDatabaseManager dbManager;
+	/**
+	 * Nodes from which the versions are read
+	 */
+	private final List<String> nodeIds;
+	/**
+	 * Time (in ms) the versions are used before being read again
+	 */
+	private long checkInterval = DEFAULT_CHECK_INTERVAL;
+	/**
+	 * Versions of the tables (keyed by lower-case table name)
+	 * and time (in ms) they were read, null if they were
+	 * never read or could not be
+	 */
+	private Map<String, Long> versions = null;
+	private long readTime = 0;
+
+	/**
+	 * Constructor - Initializes the object with the DB manager
+	 * and the list of nodes; no versions are read yet
+	 *
+	 * @param AsyncDatabaseManager
+	 * @param List<String> nodeIds
+	 */
+	public TableVersions(AsyncDatabaseManager dbManager, List<String> nodeIds) {
+		this.dbManager = dbManager;
+		this.nodeIds = nodeIds;
+	}
+
+	/**
+	 * Sets how long the versions are used
+	 * before being read from the nodes again
+	 *
+	 * @param checkInterval time (in ms), 0 to read
+	 * them upon every call to read
+	 */
+	public synchronized void setCheckInterval(long checkInterval) {
+		if(checkInterval < 0)
+			throw new IllegalArgumentException("Invalid check interval: " + checkInterval);
+		this.checkInterval = checkInterval;
+	}
+
+	/**
+	 * Returns the versions of the tables, reading them
+	 * from the nodes if they are older than the check interval
+	 *
+	 * @return Map<String, Long> the versions, keyed by lower-case
+	 * table name, or null if they cannot be read (e.g., the
+	 * nodes have no table_versions table)
+	 * @throws InterruptedException
+	 */
+	public synchronized Map<String, Long> read() throws InterruptedException {
+		if(readTime != 0 && System.currentTimeMillis() - readTime < checkInterval)
+			return versions;
+		Map<String, Long> read = new HashMap<String, Long>();
+		try {
+			for(ResultSet rs : dbManager.fetch(VERSIONS_QUERY, nodeIds)) {
+				while(rs.next()) {
+					String table = rs.getString(1).toLowerCase();
+					Long version = read.get(table);
+					read.put(table, rs.getLong(2) + (version == null ? 0 : version));
+				}
+			}
+		} catch (SQLException e) {
+			if(DEBUG) System.out.println("TableVersions: cannot read table versions: " + e);
+			read = null;
+		}
+		versions = read;
+		readTime = System.currentTimeMillis();
+		return versions;
+	}
+
+	/**
+	 * Returns the versions of the given tables
+	 *
+	 * @param tables table names
+	 * @param versions versions of all tables (see read)
+	 * @return Map<String, Long> the versions of the tables, keyed by
+	 * lower-case table name, or null if some of them have no version
+	 */
+	public static Map<String, Long> select(Iterable<String> tables, Map<String, Long> versions) {
+		Map<String, Long> selected = new HashMap<String, Long>();
+		for(String table : tables) {
+			Long version = versions.get(table.toLowerCase());
+			if(version == null) // table without version counter
+				return null;
+			selected.put(table.toLowerCase(), version);
+		}
+		return selected;
+	}
+
+	/**
+	 * Tells whether tables are still at the given versions
+	 *
+	 * @param selected versions of some tables (see select)
+	 * @param versions versions of all tables (see read)
+	 * @return true if none of the tables changed
+	 */
+	public static boolean unchanged(Map<String, Long> selected, Map<String, Long> versions) {
+		return versions.entrySet().containsAll(selected.entrySet());
+	}
+
+}
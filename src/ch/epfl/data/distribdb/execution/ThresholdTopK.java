@@ -0,0 +1,310 @@
+package ch.epfl.data.distribdb.execution;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ch.epfl.data.distribdb.lowlevel.AsyncDatabaseManager;
+import ch.epfl.data.distribdb.parsing.Aggregate;
+
+import static ch.epfl.data.distribdb.app.AbstractApp.DEBUG;
+
+/**
+ * ThresholdTopK - Distributed top-k selection of the groups
+ * of an aggregate query ordered (descending) on a SUM or a
+ * COUNT with LIMIT k, run before merging its intermediate
+ * results (see AggregateMerger), so that only the groups
+ * which can still make the top k are read from the workers
+ *
+ * It follows the three-phase uniform threshold algorithm
+ * (TPUT): the score of a group is the sum of its partial
+ * scores on the m workers
+ * 1. each worker sends its k best groups; the k-th best
+ * sum of their partial scores, t1, is a lower bound of
+ * the score of the k-th group
+ * 2. each worker sends its groups whose partial score is at
+ * least t1/m (a group none of them sends scores less than t1);
+ * the k-th best sum of the partial scores sent, t2, is a
+ * better lower bound, and a group whose partial scores sent
+ * plus t1/m for each worker which did not send it is less
+ * than t2 cannot make the top k
+ * 3. the intermediate results of the remaining groups
+ * (candidates) are read from all workers and merged
+ * The bounds only hold for non-negative scores, so groups
+ * are not pruned if some partial score is negative or null
+ *
+ */
+public class ThresholdTopK {
+
+	/**
+	 * Number of intermediate results under which groups
+	 * are not pruned: reading them all costs less
+	 * than the round trips of the threshold algorithm
+	 */
+	public static final long MIN_ROWS = 10000;
+
+	/**
+	 * Number of decimal digits of the threshold (t1/m)
+	 * beyond the ones of the partial scores
+	 */
+	private static final int THRESHOLD_SCALE = 6;
+
+	/**
+	 * Handle to DB manager used to read the partial scores
+	 */
+	private AsyncDatabaseManager dbManager;
+
+	/**
+	 * Constructor - Initializes object with DB manager
+	 *
+	 * @param AsyncDatabaseManager
+	 */
+	public ThresholdTopK(AsyncDatabaseManager dbManager) {
+		this.dbManager = dbManager;
+	}
+
+	/**
+	 * Selects the groups which can make the top k
+	 *
+	 * @param step the step merging the intermediate results
+	 * @param nodeIds nodes storing the intermediate results
+	 * @return SQL condition on the intermediate results
+	 * selecting the candidate groups, or null if the
+	 * groups cannot (or need not) be pruned
+	 * @throws SQLException
+	 * @throws InterruptedException
+	 */
+	public String candidates(StepMergeAggregates step, List<String> nodeIds) throws SQLException, InterruptedException {
+		if(step.numRows <= 0 || !step.havingColumns.isEmpty() || step.orderColumns.isEmpty() ||
+				!step.orderDescending.get(0))
+			return null;
+		Aggregate aggregate = step.aggregates.get(step.orderColumns.get(0));
+		if(aggregate != Aggregate.SUM && aggregate != Aggregate.COUNT)
+			return null;
+		String score = step.columns.get(step.orderColumns.get(0));
+		List<String> keys = new ArrayList<String>();
+		for(int i = 0; i < step.columns.size(); i++)
+			if(step.columns.get(i) != null && step.aggregates.get(i) == null)
+				keys.add(step.columns.get(i));
+		if(keys.isEmpty())
+			return null;
+		int k = step.offset + step.numRows;
+		int m = nodeIds.size();
+		String select = "SELECT " + join(keys, ", ") + ", " + score + " FROM " + step.fromRelation;
+
+		long rows = 0;
+		for(ResultSet rs : dbManager.fetchAsync("SELECT count(*), count(" + score + "), min(" + score + "), max(" + score +
+				") FROM " + step.fromRelation, nodeIds).get()) {
+			rs.next();
+			if(rs.getLong(1) == 0)
+				continue;
+			BigDecimal min = decimal(rs.getObject(3));
+			if(rs.getLong(1) != rs.getLong(2) || min == null || min.signum() < 0 || decimal(rs.getObject(4)) == null) {
+				if(DEBUG) System.out.println("ThresholdTopK: null, negative or infinite partial scores");
+				return null;
+			}
+			rows += rs.getLong(1);
+		}
+		if(rows <= MIN_ROWS)
+			return null;
+
+		// phase 1: the k best groups of each worker
+		Map<List<Object>, BigDecimal> partialSums = new HashMap<List<Object>, BigDecimal>();
+		List<ResultSet> results = dbManager.fetchAsync(select + " ORDER BY " + score + " DESC FETCH NEXT " + k + " ROWS ONLY", nodeIds).get();
+		if(!keyTypes(results.get(0).getMetaData(), keys.size()))
+			return null;
+		for(ResultSet rs : results)
+			add(rs, keys.size(), partialSums, null);
+		BigDecimal t1 = kth(partialSums.values(), k);
+		if(t1 == null || t1.signum() == 0) // every group would be sent
+			return null;
+		BigDecimal threshold = t1.divide(BigDecimal.valueOf(m), Math.max(t1.scale(), 0) + THRESHOLD_SCALE, RoundingMode.FLOOR);
+
+		// phase 2: the groups of each worker scoring at least t1/m
+		partialSums.clear();
+		Map<List<Object>, Integer> senders = new HashMap<List<Object>, Integer>();
+		for(ResultSet rs : dbManager.fetchAsync(select + " WHERE " + score + " >= " + threshold.toPlainString(), nodeIds).get())
+			add(rs, keys.size(), partialSums, senders);
+		BigDecimal t2 = kth(partialSums.values(), k);
+		if(t2 == null)
+			return null;
+		List<List<Object>> candidates = new ArrayList<List<Object>>();
+		for(Map.Entry<List<Object>, BigDecimal> group : partialSums.entrySet()) {
+			BigDecimal upper = group.getValue().add(threshold.multiply(BigDecimal.valueOf(m - senders.get(group.getKey()))));
+			if(upper.compareTo(t2) >= 0)
+				candidates.add(group.getKey());
+		}
+		if(DEBUG) System.out.println("ThresholdTopK: t1=" + t1 + " t2=" + t2 + " " + candidates.size() +
+				" candidates out of " + partialSums.size() + " groups sent (" + rows + " intermediate results)");
+		if((long) candidates.size() * m * 2 > rows) // most results would be read anyway
+			return null;
+
+		// phase 3: the candidates, read by the caller
+		return condition(keys, candidates);
+	}
+
+	/**
+	 * Internal helper function - adds the partial scores
+	 * read from a worker to the sums of partial scores
+	 *
+	 * @param rs keys and partial scores of the groups
+	 * @param numKeys number of key columns
+	 * @param partialSums sums of partial scores, by group key
+	 * @param senders numbers of workers which sent each
+	 * group, or null if not counted
+	 * @throws SQLException
+	 */
+	private static void add(ResultSet rs, int numKeys, Map<List<Object>, BigDecimal> partialSums,
+			Map<List<Object>, Integer> senders) throws SQLException {
+		while(rs.next()) {
+			List<Object> key = new ArrayList<Object>();
+			for(int i = 1; i <= numKeys; i++) {
+				Object value = rs.getObject(i);
+				key.add(value instanceof BigDecimal ? ((BigDecimal) value).stripTrailingZeros() : value);
+			}
+			BigDecimal partialScore = decimal(rs.getObject(numKeys + 1));
+			BigDecimal sum = partialSums.get(key);
+			partialSums.put(key, sum == null ? partialScore : sum.add(partialScore));
+			if(senders != null) {
+				Integer count = senders.get(key);
+				senders.put(key, count == null ? 1 : count + 1);
+			}
+		}
+	}
+
+	/**
+	 * Internal helper function - the k-th greatest value
+	 *
+	 * @param values
+	 * @param k
+	 * @return the value, or null if there are less than k values
+	 */
+	private static BigDecimal kth(Iterable<BigDecimal> values, int k) {
+		List<BigDecimal> sorted = new ArrayList<BigDecimal>();
+		for(BigDecimal value : values)
+			sorted.add(value);
+		if(sorted.size() < k)
+			return null;
+		Collections.sort(sorted, Collections.reverseOrder());
+		return sorted.get(k - 1);
+	}
+
+	/**
+	 * Internal helper function - a partial score as a BigDecimal
+	 *
+	 * @param value a number
+	 * @return BigDecimal, or null if the value
+	 * is null or not a finite number
+	 */
+	private static BigDecimal decimal(Object value) {
+		if(value == null)
+			return null;
+		try {
+			return new BigDecimal(value.toString());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Internal helper function - tells whether the keys of the
+	 * groups can be written as SQL literals (see condition)
+	 *
+	 * @param meta metadata of the keys (first columns)
+	 * @param numKeys number of key columns
+	 * @return true if they can
+	 * @throws SQLException
+	 */
+	private static boolean keyTypes(ResultSetMetaData meta, int numKeys) throws SQLException {
+		for(int i = 1; i <= numKeys; i++) {
+			switch(meta.getColumnType(i)) {
+			case Types.BIGINT:
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.DATE:
+			case Types.BIT:
+			case Types.BOOLEAN:
+				break;
+			default:
+				if(DEBUG) System.out.println("ThresholdTopK: cannot select groups on " + meta.getColumnTypeName(i));
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Internal helper function - the SQL condition
+	 * selecting the given groups
+	 *
+	 * @param keys key columns
+	 * @param groups keys of the groups
+	 * @return SQL text
+	 */
+	private static String condition(List<String> keys, List<List<Object>> groups) {
+		List<String> terms = new ArrayList<String>();
+		if(keys.size() == 1) {
+			List<String> values = new ArrayList<String>();
+			for(List<Object> group : groups) {
+				if(group.get(0) == null)
+					terms.add(keys.get(0) + " IS NULL");
+				else
+					values.add(literal(group.get(0)));
+			}
+			if(!values.isEmpty())
+				terms.add(keys.get(0) + " IN (" + join(values, ", ") + ")");
+		} else {
+			for(List<Object> group : groups) {
+				List<String> equalities = new ArrayList<String>();
+				for(int i = 0; i < keys.size(); i++)
+					equalities.add(keys.get(i) + (group.get(i) == null ? " IS NULL" : " = " + literal(group.get(i))));
+				terms.add("(" + join(equalities, " AND ") + ")");
+			}
+		}
+		return terms.isEmpty() ? "FALSE" : "(" + join(terms, " OR ") + ")";
+	}
+
+	/**
+	 * Internal helper function - the SQL literal of a value
+	 *
+	 * @param value a number, string, date or boolean
+	 * @return SQL text
+	 */
+	private static String literal(Object value) {
+		if(value instanceof BigDecimal)
+			return ((BigDecimal) value).toPlainString();
+		if(value instanceof Number || value instanceof Boolean)
+			return value.toString();
+		return "'" + value.toString().replace("'", "''") + "'";
+	}
+
+	/**
+	 * Internal helper function - joins strings
+	 *
+	 * @param strings
+	 * @param separator
+	 * @return the strings separated by separator
+	 */
+	private static String join(List<String> strings, String separator) {
+		StringBuilder string = new StringBuilder();
+		String prefix = "";
+		for(String s : strings) {
+			string.append(prefix).append(s);
+			prefix = separator;
+		}
+		return string.toString();
+	}
+
+}
@@ -1,29 +1,64 @@
 package ch.epfl.data.distribdb.lowlevel;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetMetaDataImpl;
+import javax.sql.rowset.RowSetProvider;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyOperation;
+import org.postgresql.copy.CopyOut;
 
 /**
  * Abstract implementation of DatabaseManager, essentially to handle connection
- * and disconnection and manage nodes.
+ * and disconnection and manage nodes. The asynchronous operations run the
+ * corresponding synchronous ones in the thread pool (see submit).
  * 
  * @author tranbaoduy
  * 
  */
-public abstract class AbstractDatabaseManager implements DatabaseManager {
+public abstract class AbstractDatabaseManager implements AsyncDatabaseManager {
 	
 	public static boolean DEBUG = false;
 
+    /**
+     * Number of tuples fetched at once from the source node when shipping
+     * results, if no batch size is configured.
+     */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
+    /**
+     * Maximum number of statements kept prepared on each connection (see
+     * executePrepared); the least recently used ones are deallocated.
+     */
+    public static final int MAX_PREPARED_STATEMENTS = 64;
+
     /**
      * Batch size for data shipment (number of tuples for each INSERT query
      * typically used to ship results from source node(s) to destination
@@ -32,22 +67,102 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
     private int batchSize;
 
     /**
-     * Repository of active node connections.
+     * Mode used for data shipment from source node(s) to destination node(s).
+     */
+    private ShipmentMode shipmentMode;
+
+    /**
+     * Maximum number of batches waiting between the source node and the
+     * destination node during data shipment.
+     */
+    private int queueSize;
+
+    /**
+     * Compression of the binary COPY data held on the master, by default and
+     * for specific node pairs (keyed by "sourceNodeId>destinationNodeId").
+     */
+    private ShipmentCompression compression;
+    private final Map<String, ShipmentCompression> pairCompressions;
+
+    /**
+     * Counters of the binary COPY shipments.
+     */
+    private final ShipmentStatistics statistics;
+
+    /**
+     * Memory the results materialized on the master may take, in total, before
+     * being spilled to disk (only by executeAndGenerateShipmentQuery).
+     */
+    private volatile SpillBuffer.Budget memoryBudget;
+
+    /**
+     * Minimum (opened upfront) and maximum number of connections per node.
+     */
+    private int minPoolSize;
+    private int maxPoolSize;
+
+    /**
+     * Repository of connection pools to the active nodes.
+     */
+    private final Map<String, NodeConnectionPool> nodes;
+
+    /**
+     * Statements prepared on each connection: statement names by query, in
+     * least recently used order.
+     */
+    private final Map<Connection, LinkedHashMap<String, String>> preparedStatements;
+    private final AtomicLong preparedStatementCount;
+
+    /**
+     * Pool of threads used to run tasks in parallel (e.g. writing to the
+     * destination node while reading from the source node).
      */
-    private final Map<String, Connection> nodes;
+    protected final ExecutionService pool;
 
     /**
-     * Default constructor.
+     * Default constructor; uses a pool of threads of its own.
      */
     public AbstractDatabaseManager() {
+
+        this(new ExecutionService("db", ExecutionService.defaultMaxThreads()));
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param pool
+     *            Pool of threads, shared with the other components of the
+     *            engine (shut down along with this manager)
+     */
+    public AbstractDatabaseManager(ExecutionService pool) {
         
         this.batchSize = 0;
-        this.nodes = new HashMap<String, Connection>();
+        this.shipmentMode = ShipmentMode.PREPARED_BATCH;
+        this.queueSize = 4;
+        this.compression = ShipmentCompression.NONE;
+        this.pairCompressions = new HashMap<String, ShipmentCompression>();
+        this.statistics = new ShipmentStatistics();
+        this.memoryBudget = new SpillBuffer.Budget(
+                Runtime.getRuntime().maxMemory() / 4);
+        this.minPoolSize = 1;
+        this.maxPoolSize = 4;
+        this.nodes = new HashMap<String, NodeConnectionPool>();
+        this.preparedStatements = Collections
+                .synchronizedMap(new WeakHashMap<Connection, LinkedHashMap<String, String>>());
+        this.preparedStatementCount = new AtomicLong();
+        this.pool = pool;
     }
 
     @Override
     public void shutDown() {
-        // Nothing to do
+
+        this.pool.shutDown();
+    }
+
+    @Override
+    public ExecutionService getExecutionService() {
+
+        return this.pool;
     }
 
     @Override
@@ -67,6 +182,118 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
         return this.batchSize;
     }
 
+    @Override
+    public void setResultShipmentMode(ShipmentMode mode) {
+
+        if (mode == null) {
+            throw new IllegalArgumentException("Shipment mode cannot be null");
+        }
+
+        this.shipmentMode = mode;
+    }
+
+    @Override
+    public ShipmentMode getResultShipmentMode() {
+
+        return this.shipmentMode;
+    }
+
+    @Override
+    public void setResultShipmentQueueSize(int queueSize) {
+
+        if (queueSize < 1) {
+            throw new IllegalArgumentException("Invalid queueSize: "
+                    + queueSize);
+        }
+
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public int getResultShipmentQueueSize() {
+
+        return this.queueSize;
+    }
+
+    @Override
+    public void setResultShipmentCompression(ShipmentCompression compression) {
+
+        if (compression == null) {
+            throw new IllegalArgumentException("Compression cannot be null");
+        }
+
+        this.compression = compression;
+    }
+
+    @Override
+    public synchronized void setResultShipmentCompression(String sourceNodeId,
+            String destinationNodeId, ShipmentCompression compression) {
+
+        if (compression == null) {
+            this.pairCompressions.remove(sourceNodeId + ">"
+                    + destinationNodeId);
+        } else {
+            this.pairCompressions.put(sourceNodeId + ">" + destinationNodeId,
+                    compression);
+        }
+    }
+
+    @Override
+    public synchronized ShipmentCompression getResultShipmentCompression(
+            String sourceNodeId, String destinationNodeId) {
+
+        final ShipmentCompression pairCompression = this.pairCompressions
+                .get(sourceNodeId + ">" + destinationNodeId);
+        return pairCompression != null ? pairCompression : this.compression;
+    }
+
+    @Override
+    public void setResultShipmentMemoryBudget(long bytes) {
+
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Invalid memory budget: "
+                    + bytes);
+        }
+
+        this.memoryBudget = new SpillBuffer.Budget(bytes);
+    }
+
+    @Override
+    public long getResultShipmentMemoryBudget() {
+
+        return this.memoryBudget.getLimit();
+    }
+
+    @Override
+    public ShipmentStatistics getShipmentStatistics() {
+
+        return this.statistics;
+    }
+
+    @Override
+    public void setConnectionPoolSize(int minSize, int maxSize) {
+
+        if (minSize < 1 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid pool size: minSize="
+                    + minSize + ", maxSize=" + maxSize);
+        }
+
+        this.minPoolSize = minSize;
+        this.maxPoolSize = maxSize;
+    }
+
+    @Override
+    public int getConnectionPoolMinSize() {
+
+        return this.minPoolSize;
+    }
+
+    @Override
+    public int getConnectionPoolMaxSize() {
+
+        return this.maxPoolSize;
+    }
+
     @Override
     public void connect(String nodeId, String jdbcUrl, String username,
             String password) throws SQLException {
@@ -75,10 +302,11 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
         connectionProps.put("user", username);
         connectionProps.put("password", password);
 
-        Connection conn = DriverManager.getConnection(jdbcUrl, connectionProps);
+        NodeConnectionPool connPool = new NodeConnectionPool(jdbcUrl,
+                connectionProps, this.minPoolSize, this.maxPoolSize);
 
         //System.out.println("Connected to node [" + nodeId + "] @ " + jdbcUrl);
-        this.nodes.put(nodeId, conn);
+        this.nodes.put(nodeId, connPool);
     }
 
     @Override
@@ -111,7 +339,18 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
 
         this.checkNodeId(nodeId);
         if(DEBUG) System.out.println("AbstractDatabaseManager::execute {" + query + "} on " + nodeId);
-        this.nodes.get(nodeId).createStatement().execute(query);
+
+        final Connection conn = this.checkOut(nodeId);
+        try {
+            final Statement stmt = conn.createStatement();
+            try {
+                stmt.execute(query);
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            this.checkIn(nodeId, conn);
+        }
     }
 
     @Override
@@ -137,12 +376,20 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
             String resultTableSchema, String destinationNodeId)
             throws SQLException {
 
-        List<String> subQueries = this.executeAndGenerateShipmentQuery(query,
-                sourceNodeId, resultTableSchema);
+        if (this.shipmentMode == ShipmentMode.COPY_BINARY) {
+            this.executeAndCopy(query, sourceNodeId, resultTableSchema,
+                    Arrays.asList(destinationNodeId));
+            return;
+        }
 
-        for (final String subQuery : subQueries) {
-            this.execute(subQuery, destinationNodeId);
+        if (this.shipmentMode == ShipmentMode.PREPARED_BATCH) {
+            this.executeAndBatch(query, sourceNodeId, resultTableSchema,
+                    Arrays.asList(destinationNodeId));
+            return;
         }
+
+        this.executeAndStream(query, sourceNodeId, resultTableSchema,
+                Arrays.asList(destinationNodeId));
     }
 
     @Override
@@ -150,142 +397,1538 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
 
         this.checkNodeId(nodeId);
         if(DEBUG) System.out.println("AbstractDatabaseManager::fetch {" + query + "} on " + nodeId);
-        return this.nodes.get(nodeId).createStatement().executeQuery(query);
+
+        // The rows are copied so that the statement can be closed and the
+        // connection returned before the caller iterates over them
+        final Connection conn = this.checkOut(nodeId);
+        try {
+            final Statement stmt = conn.createStatement();
+            try {
+                return cache(stmt.executeQuery(query));
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            this.checkIn(nodeId, conn);
+        }
     }
 
     @Override
-    public void copyTable(String sourceRelationName, String sourceNodeId,
-            String targetRelationSchema, String destinationNodeId)
-            throws SQLException {
+    public void executePrepared(final String query,
+            final List<String> parameters, List<String> nodeIds,
+            final String resultTableName) throws SQLException,
+            InterruptedException {
 
-        this.execute("SELECT * FROM " + sourceRelationName, sourceNodeId,
-                targetRelationSchema, destinationNodeId);
+        final List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
+        for (final String nodeId : nodeIds) {
+            futures.add(this.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    AbstractDatabaseManager.this.executePrepared(query,
+                            parameters, nodeId, resultTableName);
+                    return null;
+                }
+            }));
+        }
+
+        this.allDone(futures).get();
     }
 
     /**
-     * Executes the given query on the given node and uses the results to
-     * construct one "CREATE TABLE" and multiple INSERT queries
-     * (one for each batch, according to the configured batch size).
+     * Executes a query with parameters on the node and stores the results in
+     * a new table on the same node (see executePrepared).
      * 
      * @param query
-     *            Single query string
+     *            Single query, with parameters
+     * @param parameters
+     *            SQL expressions of the parameters, in order
      * @param nodeId
      *            Single node ID
-     * @param resultTableSchema
-     *            Result table schema
-     * 
-     * @return Query strings
+     * @param resultTableName
+     *            Name of the result table (created by this call)
      * 
      * @throws SQLException
      */
-    protected List<String> executeAndGenerateShipmentQuery(String query,
-            String nodeId, String resultTableSchema) throws SQLException {
+    protected void executePrepared(String query, List<String> parameters,
+            String nodeId, String resultTableName) throws SQLException {
 
-        final ResultSet rs = this.fetch(query, nodeId);
-        final ResultSetMetaData rsMetaData = rs.getMetaData();
-        final List<String> insertQueries = new ArrayList<String>();
+        this.checkNodeId(nodeId);
+        if(DEBUG) System.out.println("AbstractDatabaseManager::executePrepared {" + query + "} " + parameters + " on " + nodeId);
 
-        StringBuilder insertValues = new StringBuilder("");
-        int count = 0;
+        final Connection conn = this.checkOut(nodeId);
+        try {
+            final Statement stmt = conn.createStatement();
+            try {
+                stmt.execute("CREATE TABLE " + resultTableName + " AS "
+                        + this.generateExecuteQuery(conn, query, parameters));
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            this.checkIn(nodeId, conn);
+        }
+    }
 
-        while (rs.next()) {
+    @Override
+    public ResultSet fetchPrepared(String query, List<String> parameters,
+            String nodeId) throws SQLException {
 
-            insertValues.append("(");
+        this.checkNodeId(nodeId);
+        if(DEBUG) System.out.println("AbstractDatabaseManager::fetchPrepared {" + query + "} " + parameters + " on " + nodeId);
 
-            for (int i = 1; i <= rsMetaData.getColumnCount(); i++) {
+        // As in fetch, the rows are copied before the connection is returned
+        final Connection conn = this.checkOut(nodeId);
+        try {
+            final Statement stmt = conn.createStatement();
+            try {
+                return cache(stmt.executeQuery(this.generateExecuteQuery(conn,
+                        query, parameters)));
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            this.checkIn(nodeId, conn);
+        }
+    }
 
-                if (i != 1) {
-                    insertValues.append(",");
-                }
+    @Override
+    public ResultSet openCursor(String query, final String nodeId)
+            throws SQLException {
 
-                if (rsMetaData.getColumnType(i) == Types.VARCHAR
-                        || rsMetaData.getColumnType(i) == Types.CHAR
-                        || rsMetaData.getColumnType(i) == Types.DATE
-                        || rsMetaData.getColumnType(i) == Types.ARRAY) {
+        this.checkNodeId(nodeId);
+        if(DEBUG) System.out.println("AbstractDatabaseManager::openCursor {" + query + "} on " + nodeId);
 
-                    insertValues.append("'" + rs.getString(i) + "'");
+        final Connection conn = this.checkOut(nodeId);
+        Statement stmt = null;
+        final ResultSet rs;
+        try {
 
-                } else {
-                    insertValues.append(rs.getString(i));
+            // PostgreSQL only fetches tuples in chunks within a transaction
+            conn.setAutoCommit(false);
+
+            stmt = conn.createStatement();
+            stmt.setFetchSize(this.batchSize != 0 ? this.batchSize
+                    : DEFAULT_FETCH_SIZE);
+
+            rs = stmt.executeQuery(query);
+
+        } catch (SQLException e) {
+
+            try {
+                if (stmt != null) {
+                    stmt.close();
                 }
+            } finally {
+                this.closeCursor(nodeId, conn);
+            }
+            throw e;
+        }
+        final Statement cursorStmt = stmt;
 
+        // Closing the result set closes its statement, ends the transaction
+        // and returns the connection
+        return (ResultSet) Proxy.newProxyInstance(
+                ResultSet.class.getClassLoader(),
+                new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+
+                    private boolean closed = false;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+
+                        if (method.getName().equals("close")
+                                && method.getParameterTypes().length == 0) {
+                            if (!this.closed) {
+                                this.closed = true;
+                                try {
+                                    rs.close();
+                                } finally {
+                                    try {
+                                        cursorStmt.close();
+                                    } finally {
+                                        AbstractDatabaseManager.this
+                                                .closeCursor(nodeId, conn);
+                                    }
+                                }
+                            }
+                            return null;
+                        }
+
+                        try {
+                            return method.invoke(rs, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Ends the transaction of a cursor opened by openCursor, and returns its
+     * connection.
+     * 
+     * @param nodeId
+     *            Single node ID
+     * @param conn
+     *            Connection of the cursor
+     */
+    private void closeCursor(String nodeId, Connection conn) {
+
+        try {
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
             }
+        } catch (SQLException e) {
+            // The pool discards the connection if still not in auto-commit
+        }
 
-            insertValues.append("),");
-            count++;
+        this.checkIn(nodeId, conn);
+    }
 
-            if (this.batchSize != 0 && count % this.batchSize == 0) {
-                
-                insertQueries.add(this.generateInsertQuery(resultTableSchema,
-                        insertValues));
+    @Override
+    public void copyTable(String sourceRelationName, String sourceNodeId,
+            String targetRelationSchema, String destinationNodeId)
+            throws SQLException {
+
+        this.execute("SELECT * FROM " + sourceRelationName, sourceNodeId,
+                targetRelationSchema, destinationNodeId);
+    }
 
-                insertValues = new StringBuilder("");
+    @Override
+    public DbFuture<Void> executeAsync(final String query, final String nodeId) {
+
+        return this.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AbstractDatabaseManager.this.execute(query, nodeId);
+                return null;
             }
+        });
+    }
+
+    @Override
+    public DbFuture<Void> executeAsync(String query, List<String> nodeIds) {
+
+        final List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
+        for (final String nodeId : nodeIds) {
+            futures.add(this.executeAsync(query, nodeId));
         }
 
-        insertQueries.add(this.generateInsertQuery(resultTableSchema,
-                insertValues));
+        return this.allDone(futures);
+    }
 
-        final List<String> queries = new ArrayList<String>();
-        for (final String insertQuery : insertQueries) {
-            if (!insertQuery.isEmpty()) {
-                queries.add(insertQuery);
+    @Override
+    public DbFuture<ResultSet> fetchAsync(final String query,
+            final String nodeId) {
+
+        return this.submit(new Callable<ResultSet>() {
+            @Override
+            public ResultSet call() throws Exception {
+                return AbstractDatabaseManager.this.fetch(query, nodeId);
             }
+        });
+    }
+
+    @Override
+    public DbFuture<List<ResultSet>> fetchAsync(String query,
+            List<String> nodeIds) {
+
+        final List<DbFuture<ResultSet>> futures = new ArrayList<DbFuture<ResultSet>>();
+        for (final String nodeId : nodeIds) {
+            futures.add(this.fetchAsync(query, nodeId));
         }
 
-        //if (!queries.isEmpty()) {
+        return DbFuture.all(futures);
+    }
 
-            queries.add(0, this.generateCreateTableQueryIfNotExists(
-                    rsMetaData,
-                    resultTableSchema.contains("(") ? resultTableSchema
-                            .substring(0, resultTableSchema.indexOf("("))
-                            : resultTableSchema));
-        //}
+    @Override
+    public DbFuture<ResultSet> openCursorAsync(final String query,
+            final String nodeId) {
 
-        return queries;
+        return this.submit(new Callable<ResultSet>() {
+            @Override
+            public ResultSet call() throws Exception {
+                return AbstractDatabaseManager.this.openCursor(query, nodeId);
+            }
+        });
     }
 
-    private String generateInsertQuery(String resultTableSchema,
-            final StringBuilder insertQueryValues) throws SQLException {
+    @Override
+    public DbFuture<Void> executeAsync(final String query,
+            final String nodeId, final String resultTableSchema) {
 
-        if (insertQueryValues.length() < 1) {
-            return "";
+        return this.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AbstractDatabaseManager.this.execute(query, nodeId,
+                        resultTableSchema);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public DbFuture<Void> executeAsync(String query, List<String> nodeIds,
+            String resultTableSchema) {
+
+        final List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
+        for (final String nodeId : nodeIds) {
+            futures.add(this.executeAsync(query, nodeId, resultTableSchema));
         }
 
-        // delete last comma
-        insertQueryValues.deleteCharAt(insertQueryValues.length() - 1);
+        return this.allDone(futures);
+    }
 
-        String insertQuery = String.format("INSERT INTO " + resultTableSchema
-                + " VALUES %s", insertQueryValues.toString());
+    @Override
+    public DbFuture<Void> executeAsync(final String query,
+            final String sourceNodeId, final String resultTableSchema,
+            final String destinationNodeId) {
 
-        return insertQuery;
+        return this.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AbstractDatabaseManager.this.execute(query, sourceNodeId,
+                        resultTableSchema, destinationNodeId);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public DbFuture<Void> executeAsync(String query,
+            List<String> sourceNodeIds, String resultTableSchema,
+            String destinationNodeId) {
+
+        final List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
+        for (final String sourceNodeId : sourceNodeIds) {
+            futures.add(this.executeAsync(query, sourceNodeId,
+                    resultTableSchema, destinationNodeId));
+        }
+
+        return this.allDone(futures);
+    }
+
+    @Override
+    public DbFuture<Void> executeAsync(final String query,
+            final String sourceNodeId, final String resultTableSchema,
+            final List<String> destinationNodeIds) {
+
+        return this.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AbstractDatabaseManager.this.execute(query, sourceNodeId,
+                        resultTableSchema, destinationNodeIds);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public DbFuture<Void> executePartitionedAsync(final String query,
+            final String sourceNodeId, final String resultTableSchema,
+            final List<String> destinationNodeIds) {
+
+        return this.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                AbstractDatabaseManager.this.executePartitioned(query,
+                        sourceNodeId, resultTableSchema, destinationNodeIds);
+                return null;
+            }
+        });
     }
 
     /**
-     * Constructs a query that creates a table if it doesn't exist yet.
-     * 
-     * @param rsMetaData
-     *            Meta-data from result set
-     * @param tableName
-     *            Table name
+     * Runs the given task in the thread pool.
      * 
-     * @return CREATE TABLE query string
+     * @param task
+     *            Task
      * 
-     * @throws SQLException
+     * @return Future of the task result
      */
-    private String generateCreateTableQueryIfNotExists(
-            ResultSetMetaData rsMetaData, String tableName) throws SQLException {
-    	
-    	return String.format("select createtableifnotexists('%s', '%s');", 
-    			tableName, tableSchemaFromMetaData(rsMetaData));
-    	
+    protected <T> DbFuture<T> submit(Callable<T> task) {
+
+        return this.pool.submit(task);
     }
-    
+
     /**
-     * Builds the table schema from the data set meta data.
+     * Runs the given task on the calling thread and completes the given future
+     * with its outcome.
      * 
-     * @param rsMetaData
-     *            Meta-data from result set
+     * @param task
+     *            Task
+     * @param future
+     *            Future to complete
+     */
+    protected static <T> void runInto(Callable<T> task, DbFuture<T> future) {
+
+        try {
+            future.complete(task.call());
+        } catch (SQLException e) {
+            future.fail(e);
+        } catch (Exception e) {
+            future.fail(new SQLException(e));
+        }
+    }
+
+    /**
+     * Combines the given futures into a single one, which completes once all
+     * of them have.
+     * 
+     * @param futures
+     *            Futures
+     * 
+     * @return Future of completion
+     */
+    protected DbFuture<Void> allDone(List<DbFuture<Void>> futures) {
+
+        return DbFuture.all(futures).then(
+                new DbFuture.Continuation<List<Void>, Void>() {
+                    @Override
+                    public DbFuture<Void> apply(List<Void> values) {
+                        return DbFuture.completed(null);
+                    }
+                });
+    }
+
+    /**
+     * Executes the given query on the given node, through a cursor, and uses
+     * the results to construct one "CREATE TABLE" and multiple INSERT queries
+     * (one for each batch, according to the configured batch size). The
+     * queries are kept in memory within the configured memory budget and
+     * spilled to disk beyond it; the returned buffer must be closed once
+     * replayed. Only SequentialDatabaseManager uses it, in the INSERT shipment
+     * mode: the other shipments stream the results.
+     * 
+     * @param query
+     *            Single query string
+     * @param nodeId
+     *            Single node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * 
+     * @return Query strings
+     * 
+     * @throws SQLException
+     */
+    protected SpillBuffer<String> executeAndGenerateShipmentQuery(
+            String query, String nodeId, String resultTableSchema)
+            throws SQLException {
+
+        this.checkNodeId(nodeId);
+
+        if(DEBUG) System.out.println("AbstractDatabaseManager::executeAndGenerateShipmentQuery {" + query + "} on " + nodeId);
+
+        final SpillBuffer<String> queries = new SpillBuffer<String>(
+                SpillBuffer.STRINGS, this.memoryBudget);
+        final Connection conn = this.checkOut(nodeId);
+        Statement stmt = null;
+
+        try {
+
+            // PostgreSQL only fetches tuples in chunks within a transaction
+            conn.setAutoCommit(false);
+
+            stmt = conn.createStatement();
+            stmt.setFetchSize(this.batchSize != 0 ? this.batchSize
+                    : DEFAULT_FETCH_SIZE);
+
+            final ResultSet rs = stmt.executeQuery(query);
+            final ResultSetMetaData rsMetaData = rs.getMetaData();
+
+            queries.add(this.generateCreateTableQueryIfNotExists(rsMetaData,
+                    this.tableNameFromSchema(resultTableSchema)));
+
+            String insertQuery;
+            while ((insertQuery = this.generateNextInsertQuery(rs, rsMetaData,
+                    resultTableSchema)) != null) {
+                queries.add(insertQuery);
+            }
+
+            conn.commit();
+
+        } catch (SQLException e) {
+
+            queries.close();
+            throw e;
+
+        } finally {
+
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (SQLException e) {
+                    // The connection is still returned to the pool
+                }
+            }
+
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                // The pool discards the connection if still not in auto-commit
+            }
+
+            this.checkIn(nodeId, conn);
+        }
+
+        return queries;
+    }
+
+    /**
+     * Executes the given query on the source node, through a cursor, and
+     * streams the results into the given table on each destination node. One
+     * batch of tuples (according to the configured batch size) is turned into
+     * an INSERT query and run on every destination node while the next one is
+     * being fetched from the source node; only a bounded number of batches
+     * (according to the configured queue size) is held on the master for each
+     * destination node.
+     * 
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeIds
+     *            Destination node IDs
+     * 
+     * @throws SQLException
+     */
+    protected void executeAndStream(String query, String sourceNodeId,
+            final String resultTableSchema, List<String> destinationNodeIds)
+            throws SQLException {
+
+        this.checkNodeId(sourceNodeId);
+
+        final List<String> remoteNodeIds = new ArrayList<String>();
+        for (final String destinationNodeId : destinationNodeIds) {
+
+            this.checkNodeId(destinationNodeId);
+
+            if (destinationNodeId.equals(sourceNodeId)) {
+                this.execute(this.generateInsertQueryFromQuery(query,
+                        resultTableSchema), destinationNodeId);
+            } else if (!remoteNodeIds.contains(destinationNodeId)) {
+                remoteNodeIds.add(destinationNodeId);
+            }
+        }
+
+        if (remoteNodeIds.isEmpty()) {
+            return;
+        }
+
+        if(DEBUG) System.out.println("AbstractDatabaseManager::executeAndStream {" + query + "} from " + sourceNodeId + " to " + remoteNodeIds);
+
+        final List<String> involvedNodeIds = new ArrayList<String>(
+                remoteNodeIds);
+        involvedNodeIds.add(sourceNodeId);
+
+        final Map<String, Connection> conns = this.checkOut(involvedNodeIds);
+        final Connection conn = conns.get(sourceNodeId);
+        final List<Statement> statements = new ArrayList<Statement>();
+
+        try {
+
+            // PostgreSQL only fetches tuples in chunks within a transaction
+            conn.setAutoCommit(false);
+
+            final Statement stmt = conn.createStatement();
+            statements.add(stmt);
+            stmt.setFetchSize(this.batchSize != 0 ? this.batchSize
+                    : DEFAULT_FETCH_SIZE);
+
+            final ResultSet rs = stmt.executeQuery(query);
+            final ResultSetMetaData rsMetaData = rs.getMetaData();
+            final String createQuery = this.generateCreateTableQueryIfNotExists(
+                    rsMetaData, this.tableNameFromSchema(resultTableSchema));
+
+            final List<ShipmentPipeline.Consumer<String>> consumers = new ArrayList<ShipmentPipeline.Consumer<String>>();
+            for (final String destinationNodeId : remoteNodeIds) {
+
+                final Statement destinationStmt = conns.get(destinationNodeId)
+                        .createStatement();
+                statements.add(destinationStmt);
+                consumers.add(new ShipmentPipeline.Consumer<String>() {
+
+                    @Override
+                    public void consume(String subQuery) throws SQLException {
+
+                        if(DEBUG) System.out.println("AbstractDatabaseManager::executeAndStream {" + subQuery + "} on " + destinationNodeId);
+                        destinationStmt.execute(subQuery);
+                    }
+                });
+            }
+
+            new ShipmentPipeline<String>(this.pool, this.queueSize).run(
+                    new ShipmentPipeline.Producer<String>() {
+
+                        private boolean created = false;
+
+                        @Override
+                        public String produce() throws SQLException {
+
+                            if (!this.created) {
+                                this.created = true;
+                                return createQuery;
+                            }
+
+                            return AbstractDatabaseManager.this
+                                    .generateNextInsertQuery(rs, rsMetaData,
+                                            resultTableSchema);
+                        }
+                    }, consumers);
+
+            conn.commit();
+
+        } finally {
+
+            for (final Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // The connection is still returned to the pool
+                }
+            }
+
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                // The pool discards the connection if still not in auto-commit
+            }
+
+            this.checkIn(conns);
+        }
+    }
+
+    /**
+     * Executes the given query on the source node, through a cursor, and
+     * inserts the results into the given table on each destination node with
+     * a prepared INSERT statement, run in JDBC batches. Tuple values keep
+     * their types (except for types the driver cannot bind, which are shipped
+     * as text and cast by the destination node), and a batch is inserted
+     * while the next one is being fetched.
+     * 
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeIds
+     *            Destination node IDs
+     * 
+     * @throws SQLException
+     */
+    protected void executeAndBatch(String query, String sourceNodeId,
+            final String resultTableSchema, List<String> destinationNodeIds)
+            throws SQLException {
+
+        this.checkNodeId(sourceNodeId);
+
+        final List<String> remoteNodeIds = new ArrayList<String>();
+        for (final String destinationNodeId : destinationNodeIds) {
+
+            this.checkNodeId(destinationNodeId);
+
+            if (destinationNodeId.equals(sourceNodeId)) {
+                this.execute(this.generateInsertQueryFromQuery(query,
+                        resultTableSchema), destinationNodeId);
+            } else if (!remoteNodeIds.contains(destinationNodeId)) {
+                remoteNodeIds.add(destinationNodeId);
+            }
+        }
+
+        if (remoteNodeIds.isEmpty()) {
+            return;
+        }
+
+        if(DEBUG) System.out.println("AbstractDatabaseManager::executeAndBatch {" + query + "} from " + sourceNodeId + " to " + remoteNodeIds);
+
+        final List<String> involvedNodeIds = new ArrayList<String>(
+                remoteNodeIds);
+        involvedNodeIds.add(sourceNodeId);
+
+        final Map<String, Connection> conns = this.checkOut(involvedNodeIds);
+        final Connection conn = conns.get(sourceNodeId);
+        final int rowsPerBatch = this.batchSize != 0 ? this.batchSize
+                : DEFAULT_FETCH_SIZE;
+        final List<Statement> statements = new ArrayList<Statement>();
+
+        try {
+
+            // PostgreSQL only fetches tuples in chunks within a transaction
+            conn.setAutoCommit(false);
+
+            final Statement stmt = conn.createStatement();
+            statements.add(stmt);
+            stmt.setFetchSize(rowsPerBatch);
+
+            final ResultSet rs = stmt.executeQuery(query);
+            final ResultSetMetaData rsMetaData = rs.getMetaData();
+            final int columnCount = rsMetaData.getColumnCount();
+
+            final String createQuery = this.generateCreateTableQueryIfNotExists(
+                    rsMetaData, this.tableNameFromSchema(resultTableSchema));
+            final Map<String, PreparedStatement> inserts = new HashMap<String, PreparedStatement>();
+
+            for (final String destinationNodeId : remoteNodeIds) {
+
+                final Connection destinationConn = conns.get(destinationNodeId);
+                final Statement create = destinationConn.createStatement();
+                statements.add(create);
+                create.execute(createQuery);
+                final PreparedStatement insert = destinationConn
+                        .prepareStatement(this.generatePreparedInsertQuery(
+                                resultTableSchema, columnCount));
+                statements.add(insert);
+                inserts.put(destinationNodeId, insert);
+            }
+
+            final int[] columnTypes = new int[columnCount];
+            final boolean[] asText = new boolean[columnCount];
+            for (int i = 1; i <= columnCount; i++) {
+                columnTypes[i - 1] = rsMetaData.getColumnType(i);
+                asText[i - 1] = isShippedAsText(columnTypes[i - 1]);
+            }
+
+            // One writer per destination, each with its own prepared INSERT
+            final List<ShipmentPipeline.Consumer<List<Object[]>>> consumers = new ArrayList<ShipmentPipeline.Consumer<List<Object[]>>>();
+            for (final PreparedStatement insert : inserts.values()) {
+
+                consumers.add(new ShipmentPipeline.Consumer<List<Object[]>>() {
+
+                    @Override
+                    public void consume(List<Object[]> rows)
+                            throws SQLException {
+
+                        for (final Object[] row : rows) {
+                            for (int i = 0; i < columnCount; i++) {
+                                if (row[i] == null) {
+                                    insert.setNull(i + 1, columnTypes[i]);
+                                } else if (asText[i]) {
+                                    insert.setObject(i + 1, row[i], Types.OTHER);
+                                } else {
+                                    insert.setObject(i + 1, row[i]);
+                                }
+                            }
+                            insert.addBatch();
+                        }
+
+                        insert.executeBatch();
+                    }
+                });
+            }
+
+            new ShipmentPipeline<List<Object[]>>(this.pool, this.queueSize).run(
+                    new ShipmentPipeline.Producer<List<Object[]>>() {
+
+                        @Override
+                        public List<Object[]> produce() throws SQLException {
+
+                            final List<Object[]> rows = new ArrayList<Object[]>(
+                                    rowsPerBatch);
+
+                            while (rows.size() < rowsPerBatch && rs.next()) {
+
+                                final Object[] row = new Object[columnCount];
+                                for (int i = 0; i < columnCount; i++) {
+                                    row[i] = asText[i] ? rs.getString(i + 1)
+                                            : rs.getObject(i + 1);
+                                }
+                                rows.add(row);
+                            }
+
+                            return rows.isEmpty() ? null : rows;
+                        }
+                    }, consumers);
+
+            conn.commit();
+
+        } finally {
+
+            for (final Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // The connection is still returned to the pool
+                }
+            }
+
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                // The pool discards the connection if still not in auto-commit
+            }
+
+            this.checkIn(conns);
+        }
+    }
+
+    /**
+     * Executes the given query on the source node, through a cursor, and
+     * sends each result tuple to the destination node its first column
+     * designates (see DatabaseManager.executePartitioned). The source node
+     * is read once, whatever the number of destination nodes, and each
+     * destination node (the source node included) has its own writer, which
+     * inserts its tuples with a prepared INSERT statement, run in JDBC
+     * batches, whatever the shipment mode.
+     * 
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeIds
+     *            Destination node IDs
+     * 
+     * @throws SQLException
+     */
+    @Override
+    public void executePartitioned(String query, String sourceNodeId,
+            final String resultTableSchema,
+            final List<String> destinationNodeIds) throws SQLException {
+
+        this.checkNodeId(sourceNodeId);
+        for (final String destinationNodeId : destinationNodeIds) {
+            this.checkNodeId(destinationNodeId);
+        }
+
+        if(DEBUG) System.out.println("AbstractDatabaseManager::executePartitioned {" + query + "} from " + sourceNodeId + " to " + destinationNodeIds);
+
+        // One connection reads the source node and one writes to each
+        // destination node; they are checked out in node ID order (see
+        // checkOut), the two of the source node in a row
+        final TreeSet<String> involvedNodeIds = new TreeSet<String>(
+                destinationNodeIds);
+        involvedNodeIds.add(sourceNodeId);
+
+        Connection conn = null;
+        final Map<String, Connection> conns = new HashMap<String, Connection>();
+        try {
+            for (final String nodeId : involvedNodeIds) {
+                if (nodeId.equals(sourceNodeId)) {
+                    conn = this.checkOut(nodeId);
+                }
+                if (destinationNodeIds.contains(nodeId)) {
+                    conns.put(nodeId, this.checkOut(nodeId));
+                }
+            }
+        } catch (SQLException e) {
+            if (conn != null) {
+                this.checkIn(sourceNodeId, conn);
+            }
+            this.checkIn(conns);
+            throw e;
+        }
+
+        final int rowsPerBatch = this.batchSize != 0 ? this.batchSize
+                : DEFAULT_FETCH_SIZE;
+        final List<Statement> statements = new ArrayList<Statement>();
+
+        try {
+
+            // PostgreSQL only fetches tuples in chunks within a transaction
+            conn.setAutoCommit(false);
+
+            final Statement stmt = conn.createStatement();
+            statements.add(stmt);
+            stmt.setFetchSize(rowsPerBatch);
+
+            final ResultSet rs = stmt.executeQuery(query);
+            final ResultSetMetaData rsMetaData = rs.getMetaData();
+
+            // The first column is the destination, the other ones the tuple
+            final int columnCount = rsMetaData.getColumnCount() - 1;
+            final String createQuery = this.generateCreateTableQueryIfNotExists(
+                    copyMetaData(rsMetaData, 2),
+                    this.tableNameFromSchema(resultTableSchema));
+            final String insertQuery = this.generatePreparedInsertQuery(
+                    resultTableSchema, columnCount);
+
+            final int[] columnTypes = new int[columnCount];
+            final boolean[] asText = new boolean[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                columnTypes[i] = rsMetaData.getColumnType(i + 2);
+                asText[i] = isShippedAsText(columnTypes[i]);
+            }
+
+            // One writer per destination, inserting the tuples sent to it
+            final List<ShipmentPipeline.Consumer<List<Object[]>>> consumers = new ArrayList<ShipmentPipeline.Consumer<List<Object[]>>>();
+            for (final Map.Entry<String, Connection> entry : conns.entrySet()) {
+
+                final Statement create = entry.getValue().createStatement();
+                statements.add(create);
+                create.execute(createQuery);
+
+                final PreparedStatement insert = entry.getValue()
+                        .prepareStatement(insertQuery);
+                statements.add(insert);
+
+                final boolean[] sentHere = new boolean[destinationNodeIds.size()];
+                for (int i = 0; i < sentHere.length; i++) {
+                    sentHere[i] = destinationNodeIds.get(i).equals(entry.getKey());
+                }
+
+                consumers.add(new ShipmentPipeline.Consumer<List<Object[]>>() {
+
+                    @Override
+                    public void consume(List<Object[]> rows)
+                            throws SQLException {
+
+                        int count = 0;
+                        for (final Object[] row : rows) {
+                            if (!sentHere[(Integer) row[0]]) {
+                                continue;
+                            }
+                            for (int i = 0; i < columnCount; i++) {
+                                if (row[i + 1] == null) {
+                                    insert.setNull(i + 1, columnTypes[i]);
+                                } else if (asText[i]) {
+                                    insert.setObject(i + 1, row[i + 1], Types.OTHER);
+                                } else {
+                                    insert.setObject(i + 1, row[i + 1]);
+                                }
+                            }
+                            insert.addBatch();
+                            count++;
+                        }
+
+                        if (count > 0) {
+                            insert.executeBatch();
+                        }
+                    }
+                });
+            }
+
+            new ShipmentPipeline<List<Object[]>>(this.pool, this.queueSize).run(
+                    new ShipmentPipeline.Producer<List<Object[]>>() {
+
+                        @Override
+                        public List<Object[]> produce() throws SQLException {
+
+                            final List<Object[]> rows = new ArrayList<Object[]>(
+                                    rowsPerBatch);
+
+                            while (rows.size() < rowsPerBatch && rs.next()) {
+
+                                final Object[] row = new Object[columnCount + 1];
+                                final int destination = rs.getInt(1);
+                                if (rs.wasNull() || destination < 0
+                                        || destination >= destinationNodeIds.size()) {
+                                    throw new SQLException("Invalid destination "
+                                            + rs.getString(1) + " of a tuple");
+                                }
+                                row[0] = destination;
+                                for (int i = 0; i < columnCount; i++) {
+                                    row[i + 1] = asText[i] ? rs.getString(i + 2)
+                                            : rs.getObject(i + 2);
+                                }
+                                rows.add(row);
+                            }
+
+                            return rows.isEmpty() ? null : rows;
+                        }
+                    }, consumers);
+
+            conn.commit();
+
+        } finally {
+
+            for (final Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // The connection is still returned to the pool
+                }
+            }
+
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                // The pool discards the connection if still not in auto-commit
+            }
+
+            this.checkIn(sourceNodeId, conn);
+            this.checkIn(conns);
+        }
+    }
+
+    /**
+     * Tells whether values of the given SQL type are shipped as text (and
+     * bound with an unspecified type, to be cast by the destination node)
+     * rather than as Java objects, which are tied to the source connection or
+     * cannot be bound back by the driver (arrays, intervals, ...).
+     * 
+     * @param columnType
+     *            SQL type from java.sql.Types
+     * 
+     * @return True if shipped as text
+     */
+    private static boolean isShippedAsText(int columnType) {
+
+        switch (columnType) {
+        case Types.ARRAY:
+        case Types.OTHER:
+        case Types.STRUCT:
+        case Types.JAVA_OBJECT:
+        case Types.DISTINCT:
+        case Types.SQLXML:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Reads the next batch of tuples (according to the configured batch size)
+     * from the given result set and turns it into an INSERT query.
+     * 
+     * @param rs
+     *            Result set
+     * @param rsMetaData
+     *            Meta-data from result set
+     * @param resultTableSchema
+     *            Result table schema
+     * 
+     * @return INSERT query string, or null if there are no more tuples
+     * 
+     * @throws SQLException
+     */
+    private String generateNextInsertQuery(ResultSet rs,
+            ResultSetMetaData rsMetaData, String resultTableSchema)
+            throws SQLException {
+
+        final StringBuilder insertValues = new StringBuilder("");
+        int count = 0;
+
+        while ((this.batchSize == 0 || count < this.batchSize) && rs.next()) {
+
+            insertValues.append("(");
+
+            for (int i = 1; i <= rsMetaData.getColumnCount(); i++) {
+
+                if (i != 1) {
+                    insertValues.append(",");
+                }
+
+                if (rsMetaData.getColumnType(i) == Types.VARCHAR
+                        || rsMetaData.getColumnType(i) == Types.CHAR
+                        || rsMetaData.getColumnType(i) == Types.DATE
+                        || rsMetaData.getColumnType(i) == Types.ARRAY) {
+
+                    insertValues.append("'" + rs.getString(i) + "'");
+
+                } else {
+                    insertValues.append(rs.getString(i));
+                }
+
+            }
+
+            insertValues.append("),");
+            count++;
+        }
+
+        if (count == 0) {
+            return null;
+        }
+
+        return this.generateInsertQuery(resultTableSchema, insertValues);
+    }
+
+    /**
+     * Executes the given query on the source node and streams the results
+     * into the given table on each of the destination nodes, using PostgreSQL
+     * binary COPY. The result table is created on the destination nodes if it
+     * does not exist yet. A destination which is the source node itself gets
+     * the results directly, without any data going through the master.
+     * 
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeIds
+     *            Destination node IDs
+     * 
+     * @throws SQLException
+     */
+    protected void executeAndCopy(String query, String sourceNodeId,
+            String resultTableSchema, List<String> destinationNodeIds)
+            throws SQLException {
+
+        this.executeAndCopy(query, sourceNodeId, resultTableSchema,
+                destinationNodeIds, null);
+    }
+
+    /**
+     * Same as executeAndCopy(query, sourceNodeId, resultTableSchema,
+     * destinationNodeIds), using the given compression for the COPY data held
+     * on the master.
+     * 
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeIds
+     *            Destination node IDs
+     * @param compression
+     *            Compression, or null to use the one configured for the
+     *            shipment's node pairs (compressed if any pair is)
+     * 
+     * @throws SQLException
+     */
+    protected void executeAndCopy(String query, String sourceNodeId,
+            String resultTableSchema, List<String> destinationNodeIds,
+            ShipmentCompression compression) throws SQLException {
+
+        this.checkNodeId(sourceNodeId);
+
+        final List<String> remoteNodeIds = new ArrayList<String>();
+        for (final String destinationNodeId : destinationNodeIds) {
+
+            this.checkNodeId(destinationNodeId);
+
+            if (destinationNodeId.equals(sourceNodeId)) {
+                this.execute(this.generateInsertQueryFromQuery(query,
+                        resultTableSchema), destinationNodeId);
+            } else if (!remoteNodeIds.contains(destinationNodeId)) {
+                remoteNodeIds.add(destinationNodeId);
+            }
+        }
+
+        if (remoteNodeIds.isEmpty()) {
+            return;
+        }
+
+        final String createQuery = this.generateCreateTableQueryIfNotExists(
+                this.describe(query, sourceNodeId),
+                this.tableNameFromSchema(resultTableSchema));
+        for (final String destinationNodeId : remoteNodeIds) {
+            this.execute(createQuery, destinationNodeId);
+        }
+
+        if (compression == null) {
+            compression = ShipmentCompression.NONE;
+            for (final String destinationNodeId : remoteNodeIds) {
+                if (this.getResultShipmentCompression(sourceNodeId,
+                        destinationNodeId) != ShipmentCompression.NONE) {
+                    compression = this.getResultShipmentCompression(
+                            sourceNodeId, destinationNodeId);
+                }
+            }
+        }
+
+        if(DEBUG) System.out.println("AbstractDatabaseManager::executeAndCopy {" + query + "} from " + sourceNodeId + " to " + remoteNodeIds + " compression " + compression);
+
+        // A COPY holds its connection until it ends, so all the connections
+        // are checked out (in node ID order) before any COPY starts.
+        final List<String> involvedNodeIds = new ArrayList<String>(
+                remoteNodeIds);
+        involvedNodeIds.add(sourceNodeId);
+        Collections.sort(involvedNodeIds);
+
+        final Map<String, CopyOperation> copies = new HashMap<String, CopyOperation>();
+        final Map<String, Connection> conns = this.checkOut(involvedNodeIds);
+
+        try {
+
+            for (final String nodeId : involvedNodeIds) {
+
+                if (nodeId.equals(sourceNodeId)) {
+                    copies.put(nodeId, this.getCopyConnection(nodeId, conns)
+                            .getCopyAPI().copyOut(String.format(
+                                    "COPY (%s) TO STDOUT (FORMAT binary)",
+                                    query)));
+                } else {
+                    copies.put(nodeId, this.getCopyConnection(nodeId, conns)
+                            .getCopyAPI().copyIn(String.format(
+                                    "COPY %s FROM STDIN (FORMAT binary)",
+                                    resultTableSchema)));
+                }
+            }
+
+            final CopyOut copyOut = (CopyOut) copies.get(sourceNodeId);
+            final ShipmentCompression codec = compression;
+            final ShipmentStatistics statistics = this.statistics;
+            statistics.recordShipment();
+
+            // One writer per destination, each decompressing on its own
+            final List<ShipmentPipeline.Consumer<CopyBlock>> consumers = new ArrayList<ShipmentPipeline.Consumer<CopyBlock>>();
+            for (final String destinationNodeId : remoteNodeIds) {
+
+                final CopyIn copyIn = (CopyIn) copies.get(destinationNodeId);
+                consumers.add(new ShipmentPipeline.Consumer<CopyBlock>() {
+
+                    @Override
+                    public void consume(CopyBlock block) throws SQLException {
+
+                        final long start = System.nanoTime();
+                        final byte[] raw = codec.decompress(block.data,
+                                block.rawLength);
+                        statistics.recordDecompression(System.nanoTime()
+                                - start);
+
+                        copyIn.writeToCopy(raw, 0, block.rawLength);
+                    }
+                });
+            }
+
+            new ShipmentPipeline<CopyBlock>(this.pool, this.queueSize).run(
+                    new ShipmentPipeline.Producer<CopyBlock>() {
+
+                        private final byte[] buffer = new byte[codec == ShipmentCompression.NONE ? 0
+                                : ShipmentCompression.BLOCK_SIZE];
+
+                        /**
+                         * Chunk read but not yet put into a block.
+                         */
+                        private byte[] pending = null;
+                        private boolean finished = false;
+
+                        @Override
+                        public CopyBlock produce() throws SQLException {
+
+                            byte[] chunk = this.next();
+                            if (chunk == null) {
+                                return null;
+                            }
+
+                            if (chunk.length >= this.buffer.length) {
+                                // No compression, or chunk as large as a block
+                                return this.compress(chunk, chunk.length);
+                            }
+
+                            // Gather chunks into a block
+                            int length = 0;
+                            while (chunk != null
+                                    && length + chunk.length <= this.buffer.length) {
+                                System.arraycopy(chunk, 0, this.buffer, length,
+                                        chunk.length);
+                                length += chunk.length;
+                                chunk = this.next();
+                            }
+                            this.pending = chunk;
+
+                            return this.compress(this.buffer, length);
+                        }
+
+                        private byte[] next() throws SQLException {
+
+                            if (this.pending != null) {
+                                final byte[] chunk = this.pending;
+                                this.pending = null;
+                                return chunk;
+                            }
+
+                            if (this.finished) {
+                                return null;
+                            }
+
+                            final byte[] chunk = copyOut.readFromCopy();
+                            this.finished = chunk == null;
+                            return chunk;
+                        }
+
+                        private CopyBlock compress(byte[] raw, int length) {
+
+                            final long start = System.nanoTime();
+                            final byte[] data = codec.compress(raw, length);
+                            statistics.recordBlock(length, data.length,
+                                    System.nanoTime() - start);
+
+                            return new CopyBlock(data, length);
+                        }
+                    }, consumers);
+
+            for (final String destinationNodeId : remoteNodeIds) {
+                ((CopyIn) copies.get(destinationNodeId)).endCopy();
+            }
+
+        } finally {
+
+            for (final CopyOperation copy : copies.values()) {
+                if (copy.isActive()) {
+                    try {
+                        copy.cancelCopy();
+                    } catch (SQLException e) {
+                        // Already failing, keep the original exception
+                    }
+                }
+            }
+
+            this.checkIn(conns);
+        }
+    }
+
+    /**
+     * Executes the given query on the given node without fetching any tuple,
+     * only to retrieve the meta-data of its results.
+     * 
+     * @param query
+     *            Single query string
+     * @param nodeId
+     *            Single node ID
+     * 
+     * @return Meta-data of the query results
+     * 
+     * @throws SQLException
+     */
+    protected ResultSetMetaData describe(String query, String nodeId)
+            throws SQLException {
+
+        this.checkNodeId(nodeId);
+
+        final Connection conn = this.checkOut(nodeId);
+        try {
+            final PreparedStatement stmt = conn.prepareStatement(query);
+            try {
+                // The meta-data is read before the statement is closed
+                return copyMetaData(stmt.getMetaData(), 1);
+            } finally {
+                stmt.close();
+            }
+        } finally {
+            this.checkIn(nodeId, conn);
+        }
+    }
+
+    /**
+     * Copies query results in memory, so that they stay readable once their
+     * statement is closed and its connection returned to the pool.
+     * 
+     * @param rs
+     *            Query results, positioned before the first row
+     * 
+     * @return Copied results, positioned before the first row
+     * 
+     * @throws SQLException
+     */
+    private static CachedRowSet cache(ResultSet rs) throws SQLException {
+
+        final CachedRowSet rowSet = RowSetProvider.newFactory()
+                .createCachedRowSet();
+        rowSet.populate(rs);
+        return rowSet;
+    }
+
+    /**
+     * Copies the meta-data of the given columns of query results, so that it
+     * stays readable once their statement is closed.
+     * 
+     * @param rsMetaData
+     *            Meta-data of the query results
+     * @param firstColumn
+     *            First column copied (the following ones are copied too)
+     * 
+     * @return Meta-data of the copied columns
+     * 
+     * @throws SQLException
+     */
+    private static ResultSetMetaData copyMetaData(
+            ResultSetMetaData rsMetaData, int firstColumn) throws SQLException {
+
+        final RowSetMetaDataImpl copy = new RowSetMetaDataImpl();
+        copy.setColumnCount(rsMetaData.getColumnCount() - firstColumn + 1);
+        for (int i = firstColumn; i <= rsMetaData.getColumnCount(); i++) {
+            final int j = i - firstColumn + 1;
+            copy.setColumnName(j, rsMetaData.getColumnName(i));
+            copy.setColumnLabel(j, rsMetaData.getColumnLabel(i));
+            copy.setColumnType(j, rsMetaData.getColumnType(i));
+            copy.setColumnTypeName(j, rsMetaData.getColumnTypeName(i));
+            copy.setColumnDisplaySize(j,
+                    Math.max(0, rsMetaData.getColumnDisplaySize(i)));
+            copy.setPrecision(j, Math.max(0, rsMetaData.getPrecision(i)));
+            copy.setScale(j, Math.max(0, rsMetaData.getScale(i)));
+            copy.setNullable(j, rsMetaData.isNullable(i));
+        }
+        return copy;
+    }
+
+    /**
+     * Checks out a connection to the given node from its pool, waiting if all
+     * of them are in use. The connection must be returned with checkIn.
+     * 
+     * @param nodeId
+     *            Single node ID
+     * 
+     * @return Connection
+     * 
+     * @throws SQLException
+     */
+    protected Connection checkOut(String nodeId) throws SQLException {
+
+        this.checkNodeId(nodeId);
+        return this.nodes.get(nodeId).checkOut();
+    }
+
+    /**
+     * Checks out one connection to each of the given nodes. Connections are
+     * checked out in node ID order, so that concurrent callers needing
+     * several nodes at once can never wait on each other.
+     * 
+     * @param nodeIds
+     *            Node IDs
+     * 
+     * @return Connections, by node ID
+     * 
+     * @throws SQLException
+     */
+    protected Map<String, Connection> checkOut(Collection<String> nodeIds)
+            throws SQLException {
+
+        final List<String> sortedNodeIds = new ArrayList<String>(nodeIds);
+        Collections.sort(sortedNodeIds);
+
+        final Map<String, Connection> conns = new HashMap<String, Connection>();
+
+        try {
+            for (final String nodeId : sortedNodeIds) {
+                if (!conns.containsKey(nodeId)) {
+                    conns.put(nodeId, this.checkOut(nodeId));
+                }
+            }
+        } catch (SQLException e) {
+            this.checkIn(conns);
+            throw e;
+        }
+
+        return conns;
+    }
+
+    /**
+     * Returns a connection obtained with checkOut to the pool of its node.
+     * 
+     * @param nodeId
+     *            Single node ID
+     * @param conn
+     *            Connection
+     */
+    protected void checkIn(String nodeId, Connection conn) {
+
+        this.nodes.get(nodeId).checkIn(conn);
+    }
+
+    /**
+     * Returns connections obtained with checkOut to the pools of their nodes.
+     * 
+     * @param conns
+     *            Connections, by node ID
+     */
+    protected void checkIn(Map<String, Connection> conns) {
+
+        for (final Map.Entry<String, Connection> entry : conns.entrySet()) {
+            this.checkIn(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Retrieves the PostgreSQL specific API of the connection to the given
+     * node, needed to run COPY operations.
+     * 
+     * @param nodeId
+     *            Single node ID
+     * @param conns
+     *            Checked out connections, by node ID
+     * 
+     * @return PostgreSQL connection
+     * 
+     * @throws SQLException
+     */
+    private PGConnection getCopyConnection(String nodeId,
+            Map<String, Connection> conns) throws SQLException {
+
+        final Connection conn = conns.get(nodeId);
+
+        if (!conn.isWrapperFor(PGConnection.class)) {
+            throw new SQLException("Shipment mode " + ShipmentMode.COPY_BINARY
+                    + " requires a PostgreSQL connection to node [" + nodeId
+                    + "]");
+        }
+
+        return conn.unwrap(PGConnection.class);
+    }
+
+    private String generateInsertQuery(String resultTableSchema,
+            final StringBuilder insertQueryValues) throws SQLException {
+
+        if (insertQueryValues.length() < 1) {
+            return "";
+        }
+
+        // delete last comma
+        insertQueryValues.deleteCharAt(insertQueryValues.length() - 1);
+
+        String insertQuery = String.format("INSERT INTO " + resultTableSchema
+                + " VALUES %s", insertQueryValues.toString());
+
+        return insertQuery;
+    }
+
+    /**
+     * Constructs a parameterized INSERT query for the given table.
+     * 
+     * @param resultTableSchema
+     *            Result table schema
+     * @param columnCount
+     *            Number of columns (parameters)
+     * 
+     * @return INSERT query string
+     */
+    private String generatePreparedInsertQuery(String resultTableSchema,
+            int columnCount) {
+
+        final StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < columnCount; i++) {
+            parameters.append(i == 0 ? "?" : ",?");
+        }
+
+        return "INSERT INTO " + resultTableSchema + " VALUES (" + parameters
+                + ")";
+    }
+
+    /**
+     * Constructs a query that creates a table if it doesn't exist yet.
+     * 
+     * @param rsMetaData
+     *            Meta-data from result set
+     * @param tableName
+     *            Table name
+     * 
+     * @return CREATE TABLE query string
+     * 
+     * @throws SQLException
+     */
+    protected String generateCreateTableQueryIfNotExists(
+            ResultSetMetaData rsMetaData, String tableName) throws SQLException {
+    	
+    	return String.format("select createtableifnotexists('%s', '%s');", 
+    			tableName, tableSchemaFromMetaData(rsMetaData));
+    	
+    }
+    
+    /**
+     * Builds the table schema from the data set meta data.
+     * 
+     * @param rsMetaData
+     *            Meta-data from result set
      * 
      * @return Table Schema
      * 
@@ -321,6 +1964,21 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
         return createQuery.toString();
     }
 
+    /**
+     * Extracts the table name from a table schema given in the following
+     * format: table-name OR table-name(field-1, field-2, ...).
+     * 
+     * @param tableSchema
+     *            Table schema
+     * 
+     * @return Table name
+     */
+    protected String tableNameFromSchema(String tableSchema) {
+
+        return tableSchema.contains("(") ? tableSchema.substring(0,
+                tableSchema.indexOf("(")) : tableSchema;
+    }
+
     /**
      * Checks and throws an exception if the node ID is unknown.
      * 
@@ -329,12 +1987,72 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
      * 
      * @throws SQLException
      */
-    private void checkNodeId(String nodeId) throws SQLException {
+    protected void checkNodeId(String nodeId) throws SQLException {
         if (!this.nodes.containsKey(nodeId)) {
             throw new SQLException("Uknown node ID: [" + nodeId + "]");
         }
     }
 
+    /**
+     * Prepares the query on the connection, unless it already is, and
+     * generates the EXECUTE query running it with the given parameters. When
+     * too many statements are prepared on the connection, the least recently
+     * used one is deallocated.
+     * 
+     * @param conn
+     *            Connection checked out by the calling thread
+     * @param query
+     *            Single query, with parameters
+     * @param parameters
+     *            SQL expressions of the parameters, in order
+     * 
+     * @return EXECUTE query
+     * 
+     * @throws SQLException
+     */
+    private String generateExecuteQuery(Connection conn, String query,
+            List<String> parameters) throws SQLException {
+
+        LinkedHashMap<String, String> statements;
+        synchronized (this.preparedStatements) {
+            statements = this.preparedStatements.get(conn);
+            if (statements == null) {
+                statements = new LinkedHashMap<String, String>(16, 0.75f, true);
+                this.preparedStatements.put(conn, statements);
+            }
+        }
+
+        // Only the thread which checked out the connection uses its statements
+        String name = statements.get(query);
+        if (name == null) {
+            name = "openplum_stmt_"
+                    + this.preparedStatementCount.incrementAndGet();
+            final Statement stmt = conn.createStatement();
+            try {
+                stmt.execute("PREPARE " + name + " AS " + query);
+                statements.put(query, name);
+                if (statements.size() > MAX_PREPARED_STATEMENTS) {
+                    final Iterator<String> eldest = statements.values()
+                            .iterator();
+                    stmt.execute("DEALLOCATE " + eldest.next());
+                    eldest.remove();
+                }
+            } finally {
+                stmt.close();
+            }
+        }
+
+        final StringBuilder executeQuery = new StringBuilder("EXECUTE ")
+                .append(name);
+        for (int i = 0; i < parameters.size(); i++) {
+            executeQuery.append(i == 0 ? "(" : ", ").append(parameters.get(i));
+        }
+        if (!parameters.isEmpty()) {
+            executeQuery.append(")");
+        }
+        return executeQuery.toString();
+    }
+
     /**
      * Generates the INSERT query string that include a sub (SELECT) query as
      * VALUES, using the given result table schema.
@@ -345,11 +2063,26 @@ public abstract class AbstractDatabaseManager implements DatabaseManager {
      *            Result (target) table schema
      * @return INSERT query string
      */
-    private String generateInsertQueryFromQuery(String query,
+    protected String generateInsertQueryFromQuery(String query,
             String resultTableSchema) {
 
     	query = query.replace("'", "''");
         return String.format("select executeinto('%s', '%s');", query, 
         		resultTableSchema);
     }
+
+    /**
+     * Block of binary COPY data held on the master, possibly compressed.
+     */
+    private static class CopyBlock {
+
+        final byte[] data;
+        final int rawLength;
+
+        CopyBlock(byte[] data, int rawLength) {
+
+            this.data = data;
+            this.rawLength = rawLength;
+        }
+    }
 }
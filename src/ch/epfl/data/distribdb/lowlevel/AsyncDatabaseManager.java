@@ -0,0 +1,191 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.sql.ResultSet;
+import java.util.List;
+
+/**
+ * Asynchronous variant of DatabaseManager. Each method starts the same
+ * operation as its DatabaseManager counterpart and returns right away with a
+ * future of its outcome, on which further operations can be chained (see
+ * DbFuture.then) or waited for (see DbFuture.get). Failures are reported
+ * through the future, never thrown.
+ *
+ */
+public interface AsyncDatabaseManager extends DatabaseManager {
+
+    /**
+     * Gets the pool of threads in which the asynchronous operations run. It
+     * can be used by other components to run their own tasks.
+     *
+     * @return Execution service
+     */
+    public ExecutionService getExecutionService();
+
+    /**
+     * Executes a single (update) query on a single node.
+     *
+     * @param query
+     *            Single query string
+     * @param nodeId
+     *            Single node ID
+     *
+     * @return Future of completion
+     */
+    public DbFuture<Void> executeAsync(String query, String nodeId);
+
+    /**
+     * Executes a single (update) query on multiple nodes.
+     *
+     * @param query
+     *            Single query string
+     * @param nodeIds
+     *            Node IDs
+     *
+     * @return Future of completion
+     */
+    public DbFuture<Void> executeAsync(String query, List<String> nodeIds);
+
+    /**
+     * Executes a SELECT query on a single node and returns the results.
+     *
+     * @param query
+     *            Single query string
+     * @param nodeId
+     *            Single node ID
+     *
+     * @return Future of the result set
+     */
+    public DbFuture<ResultSet> fetchAsync(String query, String nodeId);
+
+    /**
+     * Executes a SELECT query on multiple nodes and returns the results.
+     *
+     * @param query
+     *            Single query string
+     * @param nodeIds
+     *            Node IDs
+     *
+     * @return Future of the result sets, respectively to the nodes
+     */
+    public DbFuture<List<ResultSet>> fetchAsync(String query,
+            List<String> nodeIds);
+
+    /**
+     * Executes a SELECT query on a single node through a cursor and returns
+     * the results as they are read (see openCursor).
+     *
+     * @param query
+     *            Single query string
+     * @param nodeId
+     *            Single node ID
+     *
+     * @return Future of the result set, which the caller must close
+     */
+    public DbFuture<ResultSet> openCursorAsync(String query, String nodeId);
+
+    /**
+     * Executes a query on a single node and stores the results in a table on
+     * the same node.
+     *
+     * @param query
+     *            Single query string
+     * @param nodeId
+     *            Single node ID
+     * @param resultTableSchema
+     *            Result table schema
+     *
+     * @return Future of completion
+     */
+    public DbFuture<Void> executeAsync(String query, String nodeId,
+            String resultTableSchema);
+
+    /**
+     * Executes a query on multiple nodes and stores the results in a table on
+     * each of the same nodes.
+     *
+     * @param query
+     *            Single query string
+     * @param nodeIds
+     *            Node IDs
+     * @param resultTableSchema
+     *            Result table schema
+     *
+     * @return Future of completion
+     */
+    public DbFuture<Void> executeAsync(String query, List<String> nodeIds,
+            String resultTableSchema);
+
+    /**
+     * Executes a query on the source node and ships the results into a table
+     * on the destination node.
+     *
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeId
+     *            Single destination node ID
+     *
+     * @return Future of completion
+     */
+    public DbFuture<Void> executeAsync(String query, String sourceNodeId,
+            String resultTableSchema, String destinationNodeId);
+
+    /**
+     * Executes a query on multiple source nodes and ships all the results into
+     * the same table on the destination node.
+     *
+     * @param query
+     *            Single query string
+     * @param sourceNodeIds
+     *            Source node IDs
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeId
+     *            Single destination node ID
+     *
+     * @return Future of completion
+     */
+    public DbFuture<Void> executeAsync(String query,
+            List<String> sourceNodeIds, String resultTableSchema,
+            String destinationNodeId);
+
+    /**
+     * Executes a query on the source node and ships the results into the same
+     * table on several destination nodes.
+     *
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeIds
+     *            Destination node IDs
+     *
+     * @return Future of completion
+     */
+    public DbFuture<Void> executeAsync(String query, String sourceNodeId,
+            String resultTableSchema, List<String> destinationNodeIds);
+
+    /**
+     * Executes a query on the source node and partitions the results among
+     * the destination nodes (see DatabaseManager.executePartitioned).
+     *
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Result table schema
+     * @param destinationNodeIds
+     *            Destination node IDs
+     *
+     * @return Future of completion
+     */
+    public DbFuture<Void> executePartitionedAsync(String query,
+            String sourceNodeId, String resultTableSchema,
+            List<String> destinationNodeIds);
+}
@@ -118,6 +118,32 @@ public interface DatabaseManager {
             String resultTableSchema, List<String> destinationNodeIds)
             throws SQLException, InterruptedException;
 
+    /**
+     * Executes the given query on the source node and partitions (rather than
+     * replicates) the results among the destination nodes: the first column
+     * of each result tuple is the index, in the list of destination nodes, of
+     * the node whose table the rest of the tuple is deposited into. The query
+     * is run once, and the table is created on every destination node, even
+     * if it gets no tuple.
+     * <p>
+     * The result table schema should be specified as a string in the following
+     * format: table-name OR table-name(field-1, field-2, ...).
+     * 
+     * @param query
+     *            Single query string
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param resultTableSchema
+     *            Single schema for result table
+     * @param destinationNodeIds
+     *            Multiple destination node IDs
+     * 
+     * @throws SQLException
+     */
+    public void executePartitioned(String query, String sourceNodeId,
+            String resultTableSchema, List<String> destinationNodeIds)
+            throws SQLException;
+
     /**
      * Executes the given query on multiple source nodes and deposits the
      * results into multiple tables, respectively to the source nodes.
@@ -261,6 +287,70 @@ public interface DatabaseManager {
     public List<ResultSet> fetch(String query, List<String> nodeIds)
             throws SQLException, InterruptedException;
 
+    /**
+     * Execute a single query with parameters ($1, $2, ...) on multiple nodes
+     * and store the results in a new table on the same nodes.
+     * <p>
+     * The query is prepared (PREPARE) once on each connection it is run on,
+     * and then executed (EXECUTE) with the given parameters, so that nodes
+     * neither parse nor plan it again when it is run with other parameters.
+     *
+     * @param query
+     *            Single query, with parameters
+     * @param parameters
+     *            SQL expressions of the parameters, in order
+     * @param nodeIds
+     *            Multiple node IDs
+     * @param resultTableName
+     *            Name of the result table (created by this call)
+     *
+     * @throws SQLException
+     * @throws InterruptedException
+     */
+    public void executePrepared(String query, List<String> parameters,
+            List<String> nodeIds, String resultTableName) throws SQLException,
+            InterruptedException;
+
+    /**
+     * Execute a single 'fetch' query with parameters ($1, $2, ...) on the
+     * specified node and return the result set. The query is prepared as in
+     * executePrepared.
+     *
+     * @param query
+     *            Single query, with parameters
+     * @param parameters
+     *            SQL expressions of the parameters, in order
+     * @param nodeId
+     *            Single node ID
+     *
+     * @return Standard JDBC result set
+     *
+     * @throws SQLException
+     */
+    public ResultSet fetchPrepared(String query, List<String> parameters,
+            String nodeId) throws SQLException;
+
+    /**
+     * Execute a single 'fetch' (non-update) query on the specified node
+     * through a cursor: tuples are read from the node in batches (of the
+     * configured batch size) as the returned result set is iterated over, so
+     * that the caller can stop reading them at any point.
+     * <p>
+     * The connection to the node is held until the result set is closed,
+     * which the caller must do.
+     * 
+     * @param query
+     *            Single query
+     * @param nodeId
+     *            Single node ID
+     * 
+     * @return Standard JDBC result set, whose closing releases the connection
+     * 
+     * @throws SQLException
+     */
+    public ResultSet openCursor(String query, String nodeId)
+            throws SQLException;
+
     /**
      * Execute a single query on multiple nodes and store the results in
      * temporary table on the same nodes.
@@ -343,4 +433,144 @@ public interface DatabaseManager {
      * @return Batch size (no. of tuples)
      */
     public int getResultShipmentBatchSize();
+
+    /**
+     * Sets the mode used for data shipment (how tuples are moved from source
+     * node(s) to destination node(s)). The mode applies to all the execute
+     * methods that deposit results on a destination node, as well as to
+     * copyTable.
+     * 
+     * @param mode
+     *            Shipment mode (default setting is PREPARED_BATCH)
+     */
+    public void setResultShipmentMode(ShipmentMode mode);
+
+    /**
+     * Gets the mode used for data shipment.
+     * 
+     * @return Shipment mode
+     */
+    public ShipmentMode getResultShipmentMode();
+
+    /**
+     * Sets the maximum number of batches held on the master while shipping
+     * data from a source node to a destination node. Fetching from the source
+     * node is suspended when the destination node falls this many batches
+     * behind, which bounds the memory used on the master regardless of the
+     * size of the shipped results.
+     * 
+     * @param queueSize
+     *            Queue size (no. of batches, must be >=1; default setting is
+     *            4)
+     */
+    public void setResultShipmentQueueSize(int queueSize);
+
+    /**
+     * Gets the maximum number of batches held on the master while shipping
+     * data from a source node to a destination node.
+     * 
+     * @return Queue size (no. of batches)
+     */
+    public int getResultShipmentQueueSize();
+
+    /**
+     * Sets the memory the shipped results materialized on the master may take,
+     * in total, before further batches are spilled to temporary files and
+     * replayed from there. Results are only materialized when a
+     * SequentialDatabaseManager ships them in the INSERT shipment mode (to one
+     * or several destination nodes); the other managers and shipment modes
+     * stream the results, holding at most the queued batches (see
+     * setResultShipmentQueueSize), so the budget does not apply to them.
+     * 
+     * @param bytes
+     *            Memory budget (in bytes, must be >=0; default setting is a
+     *            quarter of the maximum heap size)
+     */
+    public void setResultShipmentMemoryBudget(long bytes);
+
+    /**
+     * Gets the memory the shipped results materialized on the master may take
+     * before being spilled to disk (see setResultShipmentMemoryBudget).
+     * 
+     * @return Memory budget (in bytes)
+     */
+    public long getResultShipmentMemoryBudget();
+
+    /**
+     * Sets the compression of the data held on the master while shipping it
+     * from a source node to destination node(s), for all node pairs without a
+     * specific setting. Only applies to the COPY_BINARY shipment mode, which
+     * holds at most the queued blocks of 64KB (see setResultShipmentQueueSize)
+     * per destination node: compression only saves memory on these blocks,
+     * and the data sent to the nodes is the same.
+     * 
+     * @param compression
+     *            Compression (default setting is NONE)
+     */
+    public void setResultShipmentCompression(ShipmentCompression compression);
+
+    /**
+     * Sets the compression of the data held on the master while shipping it
+     * from the given source node to the given destination node. A shipment to
+     * several destination nodes is compressed if any of the node pairs is.
+     * 
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param destinationNodeId
+     *            Single destination node ID
+     * @param compression
+     *            Compression, or null to use the general setting again
+     */
+    public void setResultShipmentCompression(String sourceNodeId,
+            String destinationNodeId, ShipmentCompression compression);
+
+    /**
+     * Gets the compression of the data held on the master while shipping it
+     * from the given source node to the given destination node.
+     * 
+     * @param sourceNodeId
+     *            Single source node ID
+     * @param destinationNodeId
+     *            Single destination node ID
+     * 
+     * @return Compression
+     */
+    public ShipmentCompression getResultShipmentCompression(
+            String sourceNodeId, String destinationNodeId);
+
+    /**
+     * Gets the counters of the COPY_BINARY shipments run so far.
+     * 
+     * @return Shipment statistics
+     */
+    public ShipmentStatistics getShipmentStatistics();
+
+    /**
+     * Sets the size of the connection pool kept for each node. Concurrent
+     * operations on the same node each use their own connection, up to
+     * maxSize of them; further operations wait for a connection to be
+     * returned. Only applies to nodes connected afterwards.
+     * 
+     * @param minSize
+     *            Number of connections opened when connecting to a node
+     *            (must be >=1; default setting is 1)
+     * @param maxSize
+     *            Maximum number of connections to a node (must be
+     *            >=minSize; default setting is 4)
+     */
+    public void setConnectionPoolSize(int minSize, int maxSize);
+
+    /**
+     * Gets the number of connections opened when connecting to a node.
+     * 
+     * @return Minimum pool size (no. of connections)
+     */
+    public int getConnectionPoolMinSize();
+
+    /**
+     * Gets the maximum number of connections to a node.
+     * 
+     * @return Maximum pool size (no. of connections)
+     */
+    public int getConnectionPoolMaxSize();
 }
@@ -0,0 +1,331 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of an asynchronous database operation, which either completes with a
+ * value or fails with an SQLException. Further operations can be chained on it
+ * (see then), so that they start as soon as it completes, without any thread
+ * waiting for it in between.
+ *
+ * A thread waiting for a future (see get) first runs, itself, the tasks this
+ * future depends on which have not been started by the pool yet. Waiting
+ * threads thus never depend on pool threads being available, so a bounded
+ * pool cannot deadlock on nested tasks.
+ *
+ * @param <T>
+ *            Value type
+ */
+public class DbFuture<T> {
+
+    /**
+     * Operation chained on the completion of a future.
+     *
+     * @param <T>
+     *            Value type of the completed future
+     * @param <R>
+     *            Value type of the chained operation
+     */
+    public interface Continuation<T, R> {
+
+        /**
+         * Starts the chained operation.
+         *
+         * @param value
+         *            Value of the completed future
+         *
+         * @return Future of the chained operation
+         *
+         * @throws SQLException
+         */
+        public DbFuture<R> apply(T value) throws SQLException;
+    }
+
+    /**
+     * Time (in ms) a waiting thread sleeps before looking for pending tasks
+     * to run again.
+     */
+    private static final long HELP_INTERVAL = 10;
+
+    private final CountDownLatch done;
+
+    /**
+     * Callbacks run once the future completes.
+     */
+    private final List<Runnable> listeners;
+
+    /**
+     * Futures this future waits for (see help).
+     */
+    private final List<DbFuture<?>> dependencies;
+
+    private T value;
+    private SQLException failure;
+
+    /**
+     * Creates a pending future, to be completed with complete or fail.
+     */
+    public DbFuture() {
+
+        this.done = new CountDownLatch(1);
+        this.listeners = new ArrayList<Runnable>();
+        this.dependencies = new CopyOnWriteArrayList<DbFuture<?>>();
+    }
+
+    /**
+     * Creates a future already completed with the given value.
+     *
+     * @param value
+     *            Value
+     *
+     * @return Future
+     */
+    public static <T> DbFuture<T> completed(T value) {
+
+        final DbFuture<T> future = new DbFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * Creates a future already failed with the given exception.
+     *
+     * @param failure
+     *            Exception
+     *
+     * @return Future
+     */
+    public static <T> DbFuture<T> failed(SQLException failure) {
+
+        final DbFuture<T> future = new DbFuture<T>();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Creates a future which completes once all the given futures have
+     * completed, with their values (in the same order), or fails with the
+     * first failure among them.
+     *
+     * @param futures
+     *            Futures
+     *
+     * @return Future of all values
+     */
+    public static <T> DbFuture<List<T>> all(final List<DbFuture<T>> futures) {
+
+        final DbFuture<List<T>> result = new DbFuture<List<T>>();
+
+        if (futures.isEmpty()) {
+            result.complete(Collections.<T> emptyList());
+            return result;
+        }
+
+        result.dependencies.addAll(futures);
+        final AtomicInteger pending = new AtomicInteger(futures.size());
+
+        for (final DbFuture<T> future : futures) {
+            future.addListener(new Runnable() {
+                @Override
+                public void run() {
+
+                    if (pending.decrementAndGet() > 0) {
+                        return;
+                    }
+
+                    final List<T> values = new ArrayList<T>(futures.size());
+                    for (final DbFuture<T> f : futures) {
+                        if (f.failure != null) {
+                            result.fail(f.failure);
+                            return;
+                        }
+                        values.add(f.value);
+                    }
+
+                    result.complete(values);
+                }
+            });
+        }
+
+        return result;
+    }
+
+    /**
+     * Chains an operation on this future: it is started with the value of
+     * this future once it completes. If this future fails, so does the
+     * returned one, and the operation is never started.
+     *
+     * @param continuation
+     *            Chained operation
+     *
+     * @return Future of the chained operation
+     */
+    public <R> DbFuture<R> then(final Continuation<? super T, R> continuation) {
+
+        final DbFuture<R> result = new DbFuture<R>();
+        result.dependencies.add(this);
+
+        this.addListener(new Runnable() {
+            @Override
+            public void run() {
+
+                if (DbFuture.this.failure != null) {
+                    result.fail(DbFuture.this.failure);
+                    return;
+                }
+
+                final DbFuture<R> next;
+                try {
+                    next = continuation.apply(DbFuture.this.value);
+                } catch (SQLException e) {
+                    result.fail(e);
+                    return;
+                } catch (RuntimeException e) {
+                    result.fail(new SQLException(e));
+                    return;
+                }
+
+                result.dependencies.add(next);
+                next.forwardTo(result);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Completes the future with the given value. Has no effect if the future
+     * has already completed.
+     *
+     * @param value
+     *            Value
+     */
+    public void complete(T value) {
+
+        this.finish(value, null);
+    }
+
+    /**
+     * Fails the future with the given exception. Has no effect if the future
+     * has already completed.
+     *
+     * @param failure
+     *            Exception
+     */
+    public void fail(SQLException failure) {
+
+        this.finish(null, failure);
+    }
+
+    /**
+     * Tells whether the future has completed (or failed).
+     *
+     * @return True if completed
+     */
+    public boolean isDone() {
+
+        return this.done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the future to complete and returns its value.
+     *
+     * @return Value
+     *
+     * @throws SQLException
+     *             If the future failed
+     * @throws InterruptedException
+     */
+    public T get() throws SQLException, InterruptedException {
+
+        while (!this.isDone()) {
+            // Chained operations may submit new tasks at any time, so look
+            // for pending ones again every now and then
+            if (!this.help()) {
+                this.done.await(HELP_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (this.failure != null) {
+            throw this.failure;
+        }
+
+        return this.value;
+    }
+
+    /**
+     * Runs, on the calling thread, one of the not yet started tasks this
+     * future (transitively) depends on, if any.
+     *
+     * @return True if a task was run
+     */
+    protected boolean help() {
+
+        for (final DbFuture<?> dependency : this.dependencies) {
+            if (!dependency.isDone() && dependency.help()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Registers a callback run once the future completes; right away (on the
+     * calling thread) if it already has.
+     *
+     * @param listener
+     *            Callback
+     */
+    private void addListener(Runnable listener) {
+
+        synchronized (this) {
+            if (!this.isDone()) {
+                this.listeners.add(listener);
+                return;
+            }
+        }
+
+        listener.run();
+    }
+
+    private void forwardTo(final DbFuture<T> other) {
+
+        this.addListener(new Runnable() {
+            @Override
+            public void run() {
+                other.finish(DbFuture.this.value, DbFuture.this.failure);
+            }
+        });
+    }
+
+    private void finish(T value, SQLException failure) {
+
+        final List<Runnable> toRun;
+
+        synchronized (this) {
+
+            if (this.isDone()) {
+                return;
+            }
+
+            this.value = value;
+            this.failure = failure;
+            this.done.countDown();
+
+            toRun = new ArrayList<Runnable>(this.listeners);
+            this.listeners.clear();
+        }
+
+        for (final Runnable listener : toRun) {
+            listener.run();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An implementation of DatabaseManager which ships results directly from
+ * source node(s) to destination node(s): each destination node is told to pull
+ * the results from the source node itself (through dblink), so that no data
+ * goes through the master, which only coordinates. Operations are executed in
+ * a parallel manner as in ParallelDatabaseManager. The configured shipment
+ * mode and batch size are ignored.
+ *
+ * Requires the dblink extension and the helper functions in tools/dblink.sql
+ * on every node, as well as a dblink foreign server (with a user mapping) for
+ * each node on every other node, named after the node ID (see
+ * createnodeserver in tools/dblink.sql). Only the server name is sent to the
+ * nodes, never the credentials.
+ *
+ */
+public class DirectDatabaseManager extends ParallelDatabaseManager {
+
+    /**
+     * Prefix of the names of the dblink foreign servers of the nodes.
+     */
+    static final String SERVER_PREFIX = "openplum_";
+
+    public DirectDatabaseManager() {
+        super();
+    }
+
+    public DirectDatabaseManager(ExecutionService pool) {
+        super(pool);
+    }
+
+    @Override
+    public void execute(String query, String sourceNodeId,
+            String resultTableSchema, String destinationNodeId)
+            throws SQLException {
+
+        this.checkNodeId(sourceNodeId);
+        this.checkNodeId(destinationNodeId);
+
+        if (destinationNodeId.equals(sourceNodeId)) {
+            this.execute(this.generateInsertQueryFromQuery(query,
+                    resultTableSchema), destinationNodeId);
+            return;
+        }
+
+        if(DEBUG) System.out.println("DirectDatabaseManager::execute {" + query + "} from " + sourceNodeId + " to " + destinationNodeId);
+
+        final String columnDefinitions = tableSchemaFromMetaData(this
+                .describe(query, sourceNodeId));
+
+        this.execute(String.format("select createtableifnotexists('%s', '%s');",
+                this.tableNameFromSchema(resultTableSchema), columnDefinitions),
+                destinationNodeId);
+
+        this.execute(String.format("select pullinto('%s', '%s', '%s', '%s');",
+                escape(serverName(sourceNodeId)),
+                escape(query), resultTableSchema, columnDefinitions),
+                destinationNodeId);
+    }
+
+    @Override
+    public void execute(String query, String sourceNodeId,
+            String resultTableSchema, List<String> destinationNodeIds)
+            throws SQLException, InterruptedException {
+
+        final List<DbFuture<Void>> futures = new ArrayList<DbFuture<Void>>();
+
+        for (final String destinationNodeId : destinationNodeIds) {
+            futures.add(this.executeAsync(query, sourceNodeId,
+                    resultTableSchema, destinationNodeId));
+        }
+
+        this.allDone(futures).get();
+    }
+
+    /**
+     * Gets the name of the dblink foreign server through which the other nodes
+     * connect to the given node (see createnodeserver in tools/dblink.sql).
+     * Its user mapping holds the credentials, so that they never appear in
+     * the queries sent to the nodes.
+     *
+     * @param nodeId
+     *            Single node ID
+     *
+     * @return Foreign server name
+     */
+    private static String serverName(String nodeId) {
+
+        return SERVER_PREFIX + nodeId;
+    }
+
+    private static String escape(String literal) {
+
+        return literal.replace("'", "''");
+    }
+}
@@ -0,0 +1,236 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of named threads shared by all the components of an engine
+ * instance (database manager, SuperDuper, table manager) to run tasks in
+ * parallel. At most maxThreads tasks run in the pool at once, further ones
+ * are queued.
+ *
+ * Tasks return a DbFuture. A thread waiting for such a future runs the queued
+ * tasks it depends on itself (see DbFuture.get), so tasks waiting for other
+ * tasks never deadlock the pool, however small it is.
+ *
+ */
+public class ExecutionService {
+
+    /**
+     * Time (in s) an idle thread is kept alive.
+     */
+    private static final long KEEP_ALIVE = 60;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Number of tasks submitted but not started yet.
+     */
+    private final AtomicInteger queuedTasks;
+
+    /**
+     * Number of tasks currently running (in the pool or in waiting threads).
+     */
+    private final AtomicInteger activeTasks;
+
+    /**
+     * Number of tasks completed, and among them, run by waiting threads.
+     */
+    private final AtomicLong completedTasks;
+    private final AtomicLong helpedTasks;
+
+    /**
+     * Constructor.
+     *
+     * @param name
+     *            Prefix of the thread names
+     * @param maxThreads
+     *            Maximum number of threads (>=1)
+     */
+    public ExecutionService(final String name, int maxThreads) {
+
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("Invalid maxThreads: "
+                    + maxThreads);
+        }
+
+        this.executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                KEEP_ALIVE, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+
+                        final Thread thread = new Thread(r, name + "-"
+                                + this.count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+
+        this.queuedTasks = new AtomicInteger();
+        this.activeTasks = new AtomicInteger();
+        this.completedTasks = new AtomicLong();
+        this.helpedTasks = new AtomicLong();
+    }
+
+    /**
+     * Default number of threads: database tasks mostly wait on the nodes, so
+     * several of them per core.
+     *
+     * @return Number of threads
+     */
+    public static int defaultMaxThreads() {
+
+        return Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Queues the given task.
+     *
+     * @param task
+     *            Task
+     *
+     * @return Future of the task result
+     */
+    public <T> DbFuture<T> submit(Callable<T> task) {
+
+        final Task<T> future = new Task<T>(task);
+        this.queuedTasks.incrementAndGet();
+        this.executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Withdraws a task returned by submit if it has not started yet: it will
+     * then never run, and its future is completed with null.
+     *
+     * @param future
+     *            Future returned by submit
+     *
+     * @return True if the task was withdrawn
+     */
+    public boolean revoke(DbFuture<?> future) {
+
+        if (!(future instanceof Task) || !((Task<?>) future).claim()) {
+            return false;
+        }
+
+        future.complete(null);
+        return true;
+    }
+
+    /**
+     * Stops the threads once the queued tasks are done.
+     */
+    public void shutDown() {
+
+        this.executor.shutdown();
+    }
+
+    public int getMaxThreads() {
+
+        return this.executor.getMaximumPoolSize();
+    }
+
+    public int getThreadCount() {
+
+        return this.executor.getPoolSize();
+    }
+
+    public int getActiveTaskCount() {
+
+        return this.activeTasks.get();
+    }
+
+    public int getQueueDepth() {
+
+        return this.queuedTasks.get();
+    }
+
+    public long getCompletedTaskCount() {
+
+        return this.completedTasks.get();
+    }
+
+    public long getHelpedTaskCount() {
+
+        return this.helpedTasks.get();
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format("threads=%d/%d active=%d queued=%d "
+                + "completed=%d (run by waiting threads: %d)",
+                this.getThreadCount(), this.getMaxThreads(),
+                this.getActiveTaskCount(), this.getQueueDepth(),
+                this.getCompletedTaskCount(), this.getHelpedTaskCount());
+    }
+
+    /**
+     * Queued task, run by whichever comes first of a pool thread and a thread
+     * waiting for it.
+     */
+    private class Task<T> extends DbFuture<T> implements Runnable {
+
+        private final Callable<T> callable;
+        private final AtomicBoolean claimed;
+
+        Task(Callable<T> callable) {
+
+            this.callable = callable;
+            this.claimed = new AtomicBoolean(false);
+        }
+
+        @Override
+        public void run() {
+
+            if (this.claim()) {
+                this.execute();
+            }
+        }
+
+        @Override
+        protected boolean help() {
+
+            if (!this.claim()) {
+                return false;
+            }
+
+            ExecutionService.this.helpedTasks.incrementAndGet();
+            this.execute();
+            return true;
+        }
+
+        boolean claim() {
+
+            if (!this.claimed.compareAndSet(false, true)) {
+                return false;
+            }
+
+            ExecutionService.this.queuedTasks.decrementAndGet();
+            return true;
+        }
+
+        private void execute() {
+
+            ExecutionService.this.activeTasks.incrementAndGet();
+            try {
+                AbstractDatabaseManager.runInto(this.callable, this);
+            } finally {
+                ExecutionService.this.activeTasks.decrementAndGet();
+                ExecutionService.this.completedTasks.incrementAndGet();
+            }
+        }
+    }
+}
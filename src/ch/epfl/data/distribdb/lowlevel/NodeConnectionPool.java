@@ -0,0 +1,193 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Properties;
+
+/**
+ * Bounded pool of connections to a single node. Connections are checked out
+ * for the duration of one operation and returned afterwards, so that
+ * concurrent operations on the same node each get their own connection (and
+ * PostgreSQL backend) instead of queuing on a single one. At most maxSize
+ * connections are ever open; further check-outs wait until one is returned.
+ *
+ * To avoid deadlocks, a thread that needs connections to several nodes at
+ * once must check them out in node ID order.
+ */
+class NodeConnectionPool {
+
+    /**
+     * JDBC URL and connection properties (user, password) of the node.
+     */
+    private final String jdbcUrl;
+    private final Properties connectionProps;
+
+    /**
+     * Maximum number of open connections.
+     */
+    private final int maxSize;
+
+    /**
+     * Connections currently not checked out.
+     */
+    private final Deque<Connection> idle;
+
+    /**
+     * Number of open connections (checked out or idle).
+     */
+    private int size;
+
+    private boolean closed;
+
+    /**
+     * Constructor; opens minSize connections right away.
+     *
+     * @param jdbcUrl
+     *            JDBC URL of the node
+     * @param connectionProps
+     *            Connection properties (user, password)
+     * @param minSize
+     *            Number of connections opened upfront (>=1)
+     * @param maxSize
+     *            Maximum number of open connections (>=minSize)
+     *
+     * @throws SQLException
+     */
+    NodeConnectionPool(String jdbcUrl, Properties connectionProps,
+            int minSize, int maxSize) throws SQLException {
+
+        this.jdbcUrl = jdbcUrl;
+        this.connectionProps = connectionProps;
+        this.maxSize = maxSize;
+        this.idle = new ArrayDeque<Connection>();
+        this.size = 0;
+        this.closed = false;
+
+        try {
+            for (int i = 0; i < minSize; i++) {
+                this.idle.push(this.open());
+                this.size++;
+            }
+        } catch (SQLException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks out a connection, opening a new one if none is idle and the pool
+     * is not full, or waiting for one to be returned otherwise.
+     *
+     * @return Connection, to be returned with checkIn
+     *
+     * @throws SQLException
+     */
+    Connection checkOut() throws SQLException {
+
+        synchronized (this) {
+
+            while (!this.closed && this.idle.isEmpty()
+                    && this.size >= this.maxSize) {
+                try {
+                    this.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException(
+                            "Interrupted while waiting for a connection");
+                }
+            }
+
+            if (this.closed) {
+                throw new SQLException("Connection pool is closed");
+            }
+
+            if (!this.idle.isEmpty()) {
+                return this.idle.pop();
+            }
+
+            // Reserve the slot, the connection is opened outside the lock
+            this.size++;
+        }
+
+        try {
+            return this.open();
+        } catch (SQLException e) {
+            this.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a connection obtained with checkOut. Connections which were
+     * closed or left outside auto-commit mode are discarded.
+     *
+     * @param conn
+     *            Connection
+     */
+    void checkIn(Connection conn) {
+
+        boolean reusable;
+        try {
+            reusable = !conn.isClosed() && conn.getAutoCommit();
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        synchronized (this) {
+            if (reusable && !this.closed) {
+                this.idle.push(conn);
+                this.notify();
+                return;
+            }
+        }
+
+        this.discard(conn);
+    }
+
+    /**
+     * Closes all idle connections; connections currently checked out are
+     * closed when returned.
+     */
+    void close() {
+
+        synchronized (this) {
+            this.closed = true;
+            this.notifyAll();
+        }
+
+        Connection conn;
+        while ((conn = this.pollIdle()) != null) {
+            this.discard(conn);
+        }
+    }
+
+    private synchronized Connection pollIdle() {
+
+        return this.idle.poll();
+    }
+
+    private void discard(Connection conn) {
+
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            // Connection is dropped anyway
+        }
+
+        this.release();
+    }
+
+    private synchronized void release() {
+
+        this.size--;
+        this.notify();
+    }
+
+    private Connection open() throws SQLException {
+
+        return DriverManager.getConnection(this.jdbcUrl, this.connectionProps);
+    }
+}
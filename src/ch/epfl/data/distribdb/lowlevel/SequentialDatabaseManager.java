@@ -4,10 +4,12 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 /**
  * An implementation of DatabaseManager which always executes operations in a
- * sequential manner if there are multiple of them.
+ * sequential manner if there are multiple of them. Asynchronous operations are
+ * run on the calling thread, and thus complete before they return.
  * 
  * @author tranbaoduy
  * 
@@ -18,16 +20,45 @@ public class SequentialDatabaseManager extends AbstractDatabaseManager {
         super();
     }
 
+    public SequentialDatabaseManager(ExecutionService pool) {
+        super(pool);
+    }
+
+    @Override
+    protected <T> DbFuture<T> submit(Callable<T> task) {
+
+        final DbFuture<T> future = new DbFuture<T>();
+        runInto(task, future);
+        return future;
+    }
+
     @Override
     public void execute(String query, String sourceNodeId,
             String resultTableSchema, List<String> destinationNodeIds)
             throws SQLException, InterruptedException {
 
-        List<String> subQueries = this.executeAndGenerateShipmentQuery(query,
-                sourceNodeId, resultTableSchema);
+        if (this.getResultShipmentMode() == ShipmentMode.COPY_BINARY) {
+            this.executeAndCopy(query, sourceNodeId, resultTableSchema,
+                    destinationNodeIds);
+            return;
+        }
+
+        if (this.getResultShipmentMode() == ShipmentMode.PREPARED_BATCH) {
+            this.executeAndBatch(query, sourceNodeId, resultTableSchema,
+                    destinationNodeIds);
+            return;
+        }
+
+        final SpillBuffer<String> subQueries = this
+                .executeAndGenerateShipmentQuery(query, sourceNodeId,
+                        resultTableSchema);
 
-        for (final String subQuery : subQueries) {
-            this.execute(subQuery, destinationNodeIds);
+        try {
+            for (final String subQuery : subQueries) {
+                this.execute(subQuery, destinationNodeIds);
+            }
+        } finally {
+            subQueries.close();
         }
     }
     
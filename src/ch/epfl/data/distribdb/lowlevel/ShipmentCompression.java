@@ -0,0 +1,155 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.io.ByteArrayOutputStream;
+import java.sql.SQLException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Enumeration of the ways binary COPY data can be compressed while it is held
+ * on the master, between the source node and the destination node(s) (see
+ * ShipmentMode.COPY_BINARY).
+ *
+ */
+public enum ShipmentCompression {
+
+    /**
+     * COPY data is buffered as received.
+     */
+    NONE {
+        @Override
+        byte[] compress(byte[] raw, int length) {
+
+            if (length == raw.length) {
+                return raw;
+            }
+
+            final byte[] block = new byte[length];
+            System.arraycopy(raw, 0, block, 0, length);
+            return block;
+        }
+
+        @Override
+        byte[] decompress(byte[] block, int rawLength) {
+
+            return block;
+        }
+    },
+
+    /**
+     * COPY data is buffered in blocks compressed with Deflate (fastest
+     * level), trading master CPU for master memory.
+     */
+    DEFLATE {
+        @Override
+        byte[] compress(byte[] raw, int length) {
+
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(raw, 0, length);
+            deflater.finish();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    length / 2);
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.end();
+
+            return out.toByteArray();
+        }
+
+        @Override
+        byte[] decompress(byte[] block, int rawLength) throws SQLException {
+
+            final Inflater inflater = new Inflater();
+            inflater.setInput(block);
+
+            final byte[] raw = new byte[rawLength];
+            try {
+                int offset = 0;
+                while (offset < rawLength && !inflater.finished()) {
+                    offset += inflater.inflate(raw, offset, rawLength - offset);
+                }
+            } catch (DataFormatException e) {
+                throw new SQLException("Corrupted shipment block", e);
+            } finally {
+                inflater.end();
+            }
+
+            return raw;
+        }
+    };
+
+    /**
+     * Size (in bytes) of the uncompressed blocks; COPY chunks are gathered
+     * into blocks of about this size before being compressed.
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Gets the most data (in bytes, before compression) a binary COPY shipment
+     * holds on the master for each destination node: the blocks queued for it.
+     * Compression only shrinks these blocks; the data sent to the destination
+     * nodes is the same.
+     *
+     * @param queueSize
+     *            Shipment queue size (no. of batches)
+     *
+     * @return Bytes held per destination node
+     */
+    public static long maxHeldBytes(int queueSize) {
+
+        return (long) queueSize * BLOCK_SIZE;
+    }
+
+    /**
+     * Compresses the first bytes of the given array into a block.
+     *
+     * @param raw
+     *            Raw data
+     * @param length
+     *            Number of bytes to compress
+     *
+     * @return Block
+     */
+    abstract byte[] compress(byte[] raw, int length);
+
+    /**
+     * Decompresses the given block.
+     *
+     * @param block
+     *            Block, as returned by compress
+     * @param rawLength
+     *            Number of bytes before compression
+     *
+     * @return Raw data
+     *
+     * @throws SQLException
+     */
+    abstract byte[] decompress(byte[] block, int rawLength)
+            throws SQLException;
+
+    /**
+     * Retrieves the compression for the specified name (case insensitive).
+     *
+     * @param name
+     *            Compression name
+     *
+     * @return Compression
+     */
+    public static ShipmentCompression forName(String name) {
+
+        for (ShipmentCompression compression : ShipmentCompression.values()) {
+            if (compression.toString().equalsIgnoreCase(name.trim())) {
+                return compression;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown shipment compression: "
+                + name);
+    }
+}
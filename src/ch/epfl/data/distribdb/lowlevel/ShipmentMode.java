@@ -0,0 +1,50 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+/**
+ * Enumeration of the ways a DatabaseManager can ship the results of a query
+ * from the source node(s) to the destination node(s).
+ * 
+ */
+public enum ShipmentMode {
+
+    /**
+     * Tuples are rendered as text into multi-row INSERT queries (one for each
+     * batch, according to the configured batch size) which are then run on
+     * the destination node(s).
+     */
+    INSERT,
+
+    /**
+     * Tuples are bound, with their own types, as parameters of a single
+     * prepared INSERT statement which is run in JDBC batches (one for each
+     * batch, according to the configured batch size) on the destination
+     * node(s). The destination node parses the statement only once.
+     */
+    PREPARED_BATCH,
+
+    /**
+     * Tuples are streamed from the source node into the destination node(s)
+     * with PostgreSQL COPY ... (FORMAT binary), through the driver's
+     * CopyManager. Tuples are never converted to text on the master.
+     */
+    COPY_BINARY;
+
+    /**
+     * Retrieves the shipment mode for the specified name (case insensitive).
+     * 
+     * @param name
+     *            Shipment mode name
+     * 
+     * @return Shipment mode
+     */
+    public static ShipmentMode forName(String name) {
+
+        for (ShipmentMode mode : ShipmentMode.values()) {
+            if (mode.toString().equalsIgnoreCase(name.trim())) {
+                return mode;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown shipment mode: " + name);
+    }
+}
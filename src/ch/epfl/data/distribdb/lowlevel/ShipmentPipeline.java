@@ -0,0 +1,329 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Producer/consumer pipeline used to ship data between nodes. Batches are
+ * produced on the calling thread (typically read from the source node) and
+ * handed over, through a bounded queue per consumer, to one or more consumers
+ * running in the given pool (typically writing to the destination nodes).
+ * Every consumer gets every batch as soon as it is produced, so all sides
+ * work at the same time, while no more than a fixed number of batches per
+ * consumer is ever held in memory.
+ * 
+ * @param <B>
+ *            Batch type
+ */
+class ShipmentPipeline<B> {
+
+    /**
+     * Source of the batches going through the pipeline.
+     */
+    interface Producer<B> {
+
+        /**
+         * Produces the next batch.
+         * 
+         * @return Next batch, or null if there is no more
+         * 
+         * @throws SQLException
+         */
+        public B produce() throws SQLException;
+    }
+
+    /**
+     * Sink of the batches going through the pipeline.
+     */
+    interface Consumer<B> {
+
+        /**
+         * Consumes one batch.
+         * 
+         * @param batch
+         *            Batch
+         * 
+         * @throws SQLException
+         */
+        public void consume(B batch) throws SQLException;
+    }
+
+    /**
+     * Marker put in the queues once the producer is done.
+     */
+    private static final Object END = new Object();
+
+    /**
+     * Time (in ms) the producer waits on a full queue before checking whether
+     * a consumer has failed.
+     */
+    private static final long OFFER_TIMEOUT = 100;
+
+    /**
+     * Pool in which the consumers run.
+     */
+    private final ExecutionService pool;
+
+    /**
+     * Maximum number of batches waiting for each consumer.
+     */
+    private final int capacity;
+
+    /**
+     * Set when any side fails, so that the other ones stop.
+     */
+    private volatile boolean aborted;
+
+    /**
+     * Constructor.
+     * 
+     * @param pool
+     *            Pool in which the consumers run
+     * @param capacity
+     *            Maximum number of batches waiting in the queue of each
+     *            consumer
+     */
+    ShipmentPipeline(ExecutionService pool, int capacity) {
+
+        this.pool = pool;
+        this.capacity = capacity;
+        this.aborted = false;
+    }
+
+    /**
+     * Runs the pipeline with a single consumer.
+     * 
+     * @param producer
+     *            Producer (runs on the calling thread)
+     * @param consumer
+     *            Consumer (runs in the pool)
+     * 
+     * @throws SQLException
+     *             The first exception thrown by either side
+     * 
+     * @see #run(Producer, List)
+     */
+    void run(Producer<B> producer, Consumer<B> consumer) throws SQLException {
+
+        this.run(producer, Collections.singletonList(consumer));
+    }
+
+    /**
+     * Runs the pipeline until the producer has no more batches and every
+     * consumer has consumed all of them. The producer only waits for the
+     * slowest consumer once its queue is full. If the pool has no thread left
+     * to start a consumer while its queue is full, that consumer is withdrawn
+     * from the pool and the calling thread consumes its batches itself,
+     * alternately with producing them.
+     * 
+     * @param producer
+     *            Producer (runs on the calling thread)
+     * @param consumers
+     *            Consumers (run in the pool, each one in its own task); they
+     *            all get the same batch objects, which they must not modify
+     * 
+     * @throws SQLException
+     *             The first exception thrown by any side
+     */
+    void run(Producer<B> producer, List<? extends Consumer<B>> consumers)
+            throws SQLException {
+
+        final List<Lane> lanes = new ArrayList<Lane>(consumers.size());
+        for (final Consumer<B> consumer : consumers) {
+            lanes.add(new Lane(consumer));
+        }
+
+        try {
+
+            B batch;
+            while (!this.aborted && (batch = producer.produce()) != null) {
+                for (final Lane lane : lanes) {
+                    lane.hand(batch);
+                }
+            }
+
+            for (final Lane lane : lanes) {
+                lane.finish();
+            }
+
+        } catch (SQLException e) {
+            this.abort(lanes);
+            throw e;
+        } catch (RuntimeException e) {
+            this.abort(lanes);
+            throw e;
+        } catch (InterruptedException e) {
+            this.abort(lanes);
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while shipping data", e);
+        }
+
+        SQLException failure = null;
+        for (final Lane lane : lanes) {
+            try {
+                lane.await();
+            } catch (SQLException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            } catch (InterruptedException e) {
+                this.abort(lanes);
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while shipping data", e);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the consumers after a failure of the producer, and waits for them
+     * to return (a batch being consumed is not interrupted).
+     * 
+     * @param lanes
+     *            Consumer lanes
+     */
+    private void abort(List<Lane> lanes) {
+
+        this.aborted = true;
+
+        for (final Lane lane : lanes) {
+            lane.queue.clear();
+            lane.queue.offer(END);
+        }
+
+        for (final Lane lane : lanes) {
+            try {
+                lane.task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (SQLException e) {
+                // Already failing, keep the original exception
+            }
+        }
+    }
+
+    /**
+     * Queue and task of one consumer.
+     */
+    private class Lane {
+
+        private final Consumer<B> consumer;
+        private final BlockingQueue<Object> queue;
+        private final DbFuture<Void> task;
+
+        /**
+         * Set once the consumer has been withdrawn from the pool; the calling
+         * thread then consumes the batches itself.
+         */
+        private boolean inline;
+
+        Lane(final Consumer<B> consumer) {
+
+            this.consumer = consumer;
+            this.queue = new ArrayBlockingQueue<Object>(
+                    ShipmentPipeline.this.capacity);
+            this.inline = false;
+
+            final BlockingQueue<Object> queue = this.queue;
+            this.task = ShipmentPipeline.this.pool.submit(new Callable<Void>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public Void call() throws Exception {
+                    try {
+
+                        Object batch;
+                        while ((batch = queue.take()) != END
+                                && !ShipmentPipeline.this.aborted) {
+                            consumer.consume((B) batch);
+                        }
+
+                    } catch (Exception e) {
+                        ShipmentPipeline.this.aborted = true;
+                        queue.clear();
+                        throw e;
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Hands a batch over to the consumer.
+         */
+        void hand(B batch) throws SQLException, InterruptedException {
+
+            if (this.inline) {
+                this.consumer.consume(batch);
+                return;
+            }
+
+            while (!ShipmentPipeline.this.aborted
+                    && !this.queue.offer(batch, OFFER_TIMEOUT,
+                            TimeUnit.MILLISECONDS)) {
+
+                if (ShipmentPipeline.this.pool.revoke(this.task)) {
+                    this.inline = true;
+                    this.drain();
+                    this.consumer.consume(batch);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Tells the consumer there are no more batches; consumes the ones
+         * left if it has not started yet.
+         */
+        void finish() throws SQLException, InterruptedException {
+
+            if (!this.inline && ShipmentPipeline.this.pool.revoke(this.task)) {
+                this.inline = true;
+                this.drain();
+            }
+
+            if (this.inline) {
+                return;
+            }
+
+            if (ShipmentPipeline.this.aborted) {
+                // Another consumer failed, stop this one too
+                this.queue.clear();
+                this.queue.offer(END);
+            } else {
+                this.queue.put(END);
+            }
+        }
+
+        /**
+         * Waits for the consumer to return.
+         */
+        void await() throws SQLException, InterruptedException {
+
+            if (!this.inline) {
+                this.task.get();
+            }
+        }
+
+        /**
+         * Consumes, on the calling thread, the batches left in the queue.
+         */
+        @SuppressWarnings("unchecked")
+        private void drain() throws SQLException {
+
+            Object batch;
+            while ((batch = this.queue.poll()) != null) {
+                this.consumer.consume((B) batch);
+            }
+        }
+    }
+}
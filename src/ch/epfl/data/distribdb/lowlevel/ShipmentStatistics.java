@@ -0,0 +1,92 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the binary COPY shipments run by a DatabaseManager: volume of
+ * data shipped, volume held on the master once compressed, and time spent
+ * compressing and decompressing it.
+ *
+ */
+public class ShipmentStatistics {
+
+    private final AtomicLong shipments = new AtomicLong();
+    private final AtomicLong rawBytes = new AtomicLong();
+    private final AtomicLong bufferedBytes = new AtomicLong();
+    private final AtomicLong compressionNanos = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+
+    void recordShipment() {
+
+        this.shipments.incrementAndGet();
+    }
+
+    void recordBlock(int rawLength, int bufferedLength, long nanos) {
+
+        this.rawBytes.addAndGet(rawLength);
+        this.bufferedBytes.addAndGet(bufferedLength);
+        this.compressionNanos.addAndGet(nanos);
+    }
+
+    void recordDecompression(long nanos) {
+
+        this.decompressionNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Resets all counters.
+     */
+    public void reset() {
+
+        this.shipments.set(0);
+        this.rawBytes.set(0);
+        this.bufferedBytes.set(0);
+        this.compressionNanos.set(0);
+        this.decompressionNanos.set(0);
+    }
+
+    public long getShipments() {
+
+        return this.shipments.get();
+    }
+
+    /**
+     * @return Bytes received from the source nodes
+     */
+    public long getRawBytes() {
+
+        return this.rawBytes.get();
+    }
+
+    /**
+     * @return Bytes held on the master (after compression), in total over the
+     *         shipments; at any time, at most the queued blocks are held (see
+     *         ShipmentCompression.maxHeldBytes)
+     */
+    public long getBufferedBytes() {
+
+        return this.bufferedBytes.get();
+    }
+
+    public long getCompressionMillis() {
+
+        return TimeUnit.NANOSECONDS.toMillis(this.compressionNanos.get());
+    }
+
+    public long getDecompressionMillis() {
+
+        return TimeUnit.NANOSECONDS.toMillis(this.decompressionNanos.get());
+    }
+
+    @Override
+    public String toString() {
+
+        final long raw = this.getRawBytes();
+        return String.format("shipments=%d raw=%dB buffered=%dB (%.1f%%) "
+                + "compression=%dms decompression=%dms",
+                this.getShipments(), raw, this.getBufferedBytes(),
+                raw == 0 ? 100.0 : 100.0 * this.getBufferedBytes() / raw,
+                this.getCompressionMillis(), this.getDecompressionMillis());
+    }
+}
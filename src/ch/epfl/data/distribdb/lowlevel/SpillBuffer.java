@@ -0,0 +1,303 @@
+package ch.epfl.data.distribdb.lowlevel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only buffer of batches (e.g. INSERT queries) which can be replayed
+ * any number of times, concurrently. Batches are kept in memory as long as
+ * the memory budget they share with other buffers allows it; afterwards, they
+ * are written to a temporary file, which is memory-mapped when replayed. The
+ * buffer must be closed to give its memory back and delete its file.
+ *
+ * @param <B>
+ *            Batch type
+ */
+class SpillBuffer<B> implements Iterable<B> {
+
+    /**
+     * Conversion of batches to and from bytes, for spilled batches.
+     */
+    interface Codec<B> {
+
+        public byte[] encode(B batch);
+
+        public B decode(byte[] bytes);
+
+        /**
+         * Estimates the memory used by a batch kept in memory.
+         */
+        public long size(B batch);
+    }
+
+    /**
+     * Codec for strings (UTF-8).
+     */
+    static final Codec<String> STRINGS = new Codec<String>() {
+
+        private final Charset utf8 = Charset.forName("UTF-8");
+
+        @Override
+        public byte[] encode(String batch) {
+
+            return batch.getBytes(this.utf8);
+        }
+
+        @Override
+        public String decode(byte[] bytes) {
+
+            return new String(bytes, this.utf8);
+        }
+
+        @Override
+        public long size(String batch) {
+
+            return 2L * batch.length();
+        }
+    };
+
+    /**
+     * Memory budget shared by several buffers.
+     */
+    static class Budget {
+
+        private final long limit;
+        private final AtomicLong used;
+
+        /**
+         * @param limit
+         *            Budget (in bytes)
+         */
+        Budget(long limit) {
+
+            this.limit = limit;
+            this.used = new AtomicLong();
+        }
+
+        boolean tryReserve(long bytes) {
+
+            long current;
+            do {
+                current = this.used.get();
+                if (current + bytes > this.limit) {
+                    return false;
+                }
+            } while (!this.used.compareAndSet(current, current + bytes));
+
+            return true;
+        }
+
+        void release(long bytes) {
+
+            this.used.addAndGet(-bytes);
+        }
+
+        long getLimit() {
+
+            return this.limit;
+        }
+
+        long getUsed() {
+
+            return this.used.get();
+        }
+    }
+
+    /**
+     * Maximum size (in bytes) of the file region mapped at once.
+     */
+    private static final long MAP_WINDOW = 64L * 1024 * 1024;
+
+    private final Codec<B> codec;
+    private final Budget budget;
+
+    /**
+     * Batches kept in memory, which all come before the spilled ones.
+     */
+    private final List<B> memoryBatches;
+    private long reservedBytes;
+
+    /**
+     * Temporary file of the spilled batches (each one prefixed with its
+     * length), or null if none.
+     */
+    private File spillFile;
+    private RandomAccessFile spillOutput;
+    private long spillLength;
+
+    /**
+     * Constructor.
+     *
+     * @param codec
+     *            Codec of the batches
+     * @param budget
+     *            Memory budget
+     */
+    SpillBuffer(Codec<B> codec, Budget budget) {
+
+        this.codec = codec;
+        this.budget = budget;
+        this.memoryBatches = new ArrayList<B>();
+        this.reservedBytes = 0;
+        this.spillFile = null;
+        this.spillLength = 0;
+    }
+
+    /**
+     * Appends a batch.
+     *
+     * @param batch
+     *            Batch
+     *
+     * @throws SQLException
+     *             If the batch cannot be spilled
+     */
+    void add(B batch) throws SQLException {
+
+        final long size = this.codec.size(batch);
+
+        if (this.spillFile == null && this.budget.tryReserve(size)) {
+            this.memoryBatches.add(batch);
+            this.reservedBytes += size;
+            return;
+        }
+
+        try {
+
+            if (this.spillFile == null) {
+                this.spillFile = File.createTempFile("openplum-spill-", ".tmp");
+                this.spillFile.deleteOnExit();
+                this.spillOutput = new RandomAccessFile(this.spillFile, "rw");
+            }
+
+            final byte[] bytes = this.codec.encode(batch);
+            this.spillOutput.writeInt(bytes.length);
+            this.spillOutput.write(bytes);
+            this.spillLength += 4 + bytes.length;
+
+        } catch (IOException e) {
+            throw new SQLException("Could not spill shipment data to disk", e);
+        }
+    }
+
+    /**
+     * Tells whether batches were written to disk.
+     *
+     * @return True if spilled
+     */
+    boolean isSpilled() {
+
+        return this.spillFile != null;
+    }
+
+    /**
+     * Replays the batches, in the order they were added. Must not be called
+     * while batches are still being added.
+     */
+    @Override
+    public Iterator<B> iterator() {
+
+        return new Iterator<B>() {
+
+            private final Iterator<B> memory = SpillBuffer.this.memoryBatches
+                    .iterator();
+            private long position = 0;
+            private long windowStart = 0;
+            private MappedByteBuffer window = null;
+
+            @Override
+            public boolean hasNext() {
+
+                return this.memory.hasNext()
+                        || this.position < SpillBuffer.this.spillLength;
+            }
+
+            @Override
+            public B next() {
+
+                if (this.memory.hasNext()) {
+                    return this.memory.next();
+                }
+
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                final int length = this.read(4).getInt();
+                final byte[] bytes = new byte[length];
+                this.read(length).get(bytes);
+
+                return SpillBuffer.this.codec.decode(bytes);
+            }
+
+            /**
+             * Maps the file region holding the next bytes, if needed, and
+             * advances past them.
+             */
+            private ByteBuffer read(int length) {
+
+                if (this.window == null
+                        || this.position + length > this.windowStart
+                                + this.window.capacity()) {
+                    this.windowStart = this.position;
+                    try {
+                        this.window = SpillBuffer.this.spillOutput
+                                .getChannel()
+                                .map(FileChannel.MapMode.READ_ONLY,
+                                        this.windowStart,
+                                        Math.min(
+                                                Math.max(MAP_WINDOW, length),
+                                                SpillBuffer.this.spillLength
+                                                        - this.windowStart));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(
+                                "Could not read spilled shipment data", e);
+                    }
+                }
+
+                final ByteBuffer bytes = this.window.duplicate();
+                bytes.position((int) (this.position - this.windowStart));
+                this.position += length;
+                return bytes;
+            }
+
+            @Override
+            public void remove() {
+
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Gives the reserved memory back and deletes the temporary file.
+     */
+    void close() {
+
+        this.memoryBatches.clear();
+        this.budget.release(this.reservedBytes);
+        this.reservedBytes = 0;
+
+        if (this.spillFile != null) {
+            try {
+                this.spillOutput.close();
+            } catch (IOException e) {
+                // File is deleted anyway
+            }
+            this.spillFile.delete();
+            this.spillFile = null;
+            this.spillLength = 0;
+        }
+    }
+}
@@ -11,7 +11,11 @@ public enum Aggregate {
 	AVG,
 	COUNT,
 	MIN,
-	MAX;
+	MAX,
+	/**
+	 * Approximate COUNT(DISTINCT ...), estimated from HyperLogLog sketches (see tools/create_aggs.sql).
+	 */
+	APPROX_COUNT_DISTINCT;
 	
 	private static final Aggregate[] allValues = Aggregate.values();
 	
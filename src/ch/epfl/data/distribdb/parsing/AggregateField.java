@@ -72,6 +72,15 @@ public class AggregateField extends Field implements Operand {
 		return this;
 	}
 	
+	/**
+	 * Retrieves the distinct flag.
+	 * 
+	 * @return true if this aggregate includes the DISTINCT clause, false otherwise
+	 */
+	public boolean isDistinct() {
+		return this.isDistinct;
+	}
+	
 	@Override
 	public AggregateField setAlias(String alias) {
 		this.alias = alias;
@@ -83,18 +92,39 @@ public class AggregateField extends Field implements Operand {
 		return true;
 	}
 	
+	/**
+	 * Retrieves the argument of the aggregate function applied to the given field. The
+	 * APPROX_COUNT_DISTINCT functions are not aggregates: they build their sketch at once
+	 * from the array of the hash codes of the values (see tools/create_aggs.sql).
+	 * 
+	 * @param field
+	 *                string representation of the field
+	 * @return the argument
+	 */
+	private String toArgumentString(String field) {
+		String distinct = this.isDistinct ? "DISTINCT " : "";
+		if (this.aggregate == Aggregate.APPROX_COUNT_DISTINCT) {
+			return "array_agg(" + distinct + "HLL_code(" + field + "))";
+		}
+		return distinct + field;
+	}
+	
 	@Override
 	public String toString() {
-		return this.aggregate + "(" + (this.isDistinct ? "DISTINCT " : "") + this.field + ")";
+		return this.aggregate + "(" + this.toArgumentString(this.field.toString()) + ")";
 	}
 	
 	@Override
 	public String toIntermediateString() {
-		return this.aggregate + SUFFIX_INTERMEDIATE + "(" + (this.isDistinct ? "DISTINCT " : "") + this.field.toIntermediateString() + ")";
+		return this.aggregate + SUFFIX_INTERMEDIATE + "(" + this.toArgumentString(this.field.toIntermediateString()) + ")";
 	}
 	
 	@Override
 	public String toFinalString(NamedRelation intermediateRelation, String prefix, int i) {
-		return this.aggregate + SUFFIX_FINAL + "(" + (this.isDistinct ? "DISTINCT " : "") + super.toFinalString(intermediateRelation, prefix, i) + ")";
+		String intermediate = super.toFinalString(intermediateRelation, prefix, i);
+		if (this.aggregate == Aggregate.APPROX_COUNT_DISTINCT) {
+			return this.aggregate + SUFFIX_FINAL + "(array_agg(" + intermediate + "))";
+		}
+		return this.aggregate + SUFFIX_FINAL + "(" + (this.isDistinct ? "DISTINCT " : "") + intermediate + ")";
 	}
 }
@@ -600,31 +600,7 @@ public class QueryRelation extends Relation {
 		boolean isAggregate = this.isAggregate();
 		StringBuilder string = new StringBuilder("SELECT ");
 		if (this.areFieldsDistinct && !isAggregate) string.append("DISTINCT ");
-		List<Field> intermediateFields = new LinkedList<Field>();
-		intermediateFields.addAll(this.fields);
-		if (this.grouping != null) {
-			for (Field field : this.grouping) {
-				if (!intermediateFields.contains(field)) { // assuming reference equality
-					intermediateFields.add(field);
-				}
-			}
-		}
-		if (this.groupingQualifiers != null) {
-			for (Qualifier groupingQualifier : this.groupingQualifiers) {
-				for (Operand operand : groupingQualifier.getOperands()) {
-					if (operand instanceof Field && !intermediateFields.contains((Field)operand)) { // assuming reference equality
-						intermediateFields.add((Field)operand);
-					}
-				}
-			}
-		}
-		if (this.ordering != null) {
-			for (OrderingItem orderingField : this.ordering) {
-				if (!intermediateFields.contains(orderingField.getField())) {
-					intermediateFields.add(orderingField.getField());
-				}
-			}
-		}
+		List<Field> intermediateFields = this.getIntermediateFields();
 		String prefix = "";
 		int i = 0;
 		for (Field field : intermediateFields) {
@@ -695,18 +671,14 @@ public class QueryRelation extends Relation {
 	}
 	
 	/**
-	 * Retrieves the final string representation of this query. Final queries are used when
-	 * an aggregate query is run on the master node to merge intermediate aggregate results
-	 * from the worker nodes (i.e. the second and final step of execution
-	 * of this query).
+	 * Retrieves the fields selected by the intermediate query of this query: the fields of the SELECT
+	 * clause followed by the fields appearing in GROUP BY, HAVING, and ORDER BY but not in SELECT. The
+	 * field numbered i (starting from 1) is named {@link Field#toAliasedIntermediateString(int)} in the
+	 * intermediate results.
 	 * 
-	 * @param intermediateRelation
-	 *                the named relation holding the intermediate results from worker nodes
-	 * @return the final query string of this query
+	 * @return the fields of the intermediate query
 	 */
-	public String toFinalString(NamedRelation intermediateRelation) {
-		StringBuilder string = new StringBuilder("SELECT ");
-		if (this.areFieldsDistinct) string.append("DISTINCT ");
+	public List<Field> getIntermediateFields() {
 		List<Field> intermediateFields = new LinkedList<Field>();
 		intermediateFields.addAll(this.fields);
 		if (this.grouping != null) {
@@ -732,6 +704,23 @@ public class QueryRelation extends Relation {
 				}
 			}
 		}
+		return intermediateFields;
+	}
+	
+	/**
+	 * Retrieves the final string representation of this query. Final queries are used when
+	 * an aggregate query is run on the master node to merge intermediate aggregate results
+	 * from the worker nodes (i.e. the second and final step of execution
+	 * of this query).
+	 * 
+	 * @param intermediateRelation
+	 *                the named relation holding the intermediate results from worker nodes
+	 * @return the final query string of this query
+	 */
+	public String toFinalString(NamedRelation intermediateRelation) {
+		StringBuilder string = new StringBuilder("SELECT ");
+		if (this.areFieldsDistinct) string.append("DISTINCT ");
+		List<Field> intermediateFields = this.getIntermediateFields();
 		String prefix = "";
 		for (Field field : this.fields) {
 			string.append(prefix);
@@ -775,4 +764,156 @@ public class QueryRelation extends Relation {
 		}
 		return string.toString();
 	}
+	
+	/**
+	 * <p>Retrieves the local string representation of this query. Local queries are used when each
+	 * group of an aggregate query is computed from tuples stored on a single worker node (e.g. when
+	 * grouping on the field on which a table is partitioned), so that the whole query is run on the
+	 * worker nodes and their results only need to be concatenated afterwards.</p>
+	 * 
+	 * <p>Built from the original query as follows:</p>
+	 * <ol>
+	 *   <li>SELECT: modified (includes all fields appearing in ORDER BY but not in SELECT; fields without
+	 *       alias are named as in the final query)</li>
+	 *   <li>FROM, WHERE, GROUP BY, HAVING: unmodified</li>
+	 *   <li>ORDER BY: included only if LIMIT is present</li>
+	 *   <li>LIMIT: included only if present; modified to OFFSET + LIMIT</li>
+	 * </ol>
+	 * 
+	 * @return the local query string of this query
+	 */
+	public String toLocalString() {
+		StringBuilder string = new StringBuilder("SELECT ");
+		if (this.areFieldsDistinct) string.append("DISTINCT ");
+		List<Field> localFields = this.getLocalFields();
+		String prefix = "";
+		int i = 0;
+		for (Field field : localFields) {
+			string.append(prefix);
+			string.append(String.format("%s AS %s", field.toString(), localFieldName(field, ++i)));
+			prefix = ", ";
+		}
+		string.append(" FROM ");
+		prefix = "";
+		for (Relation relation : this.relations) {
+			string.append(prefix);
+			string.append(relation.toString());
+			prefix = ", ";
+		}
+		if (this.qualifiers != null) {
+			string.append(" WHERE ");
+			prefix = "";
+			for (Qualifier qualifier : this.qualifiers) {
+				string.append(prefix);
+				string.append(qualifier.toString());
+				prefix = " AND ";
+			}
+		}
+		if (this.grouping != null) {
+			string.append(" GROUP BY ");
+			prefix = "";
+			for (Field field : this.grouping){
+				string.append(prefix);
+				string.append(field.toAliasedString());
+				prefix = ", ";
+			}
+		}
+		if (this.groupingQualifiers != null) {
+			string.append(" HAVING ");
+			prefix = "";
+			for (Qualifier groupingQualifier : this.groupingQualifiers) {
+				string.append(prefix);
+				string.append(groupingQualifier.toString());
+				prefix = " AND ";
+			}
+		}
+		if (this.numRows > -1) {
+			if (this.ordering != null) {
+				string.append(" ORDER BY ");
+				prefix = "";
+				for (OrderingItem field : this.ordering) {
+					string.append(prefix);
+					string.append(field.toString());
+					prefix = ", ";
+				}
+			}
+			string.append(" FETCH NEXT " + (this.offset + this.numRows) + " ROWS ONLY");
+		}
+		return string.toString();
+	}
+	
+	/**
+	 * Retrieves the concatenated string representation of this query. Concatenated queries are used
+	 * on the master node to merge the results of the local queries run on the worker nodes (see
+	 * {@link #toLocalString()}): they only select, order, and limit these results.
+	 * 
+	 * @param localRelation
+	 *                the named relation holding the local results from worker nodes
+	 * @return the concatenated query string of this query
+	 */
+	public String toConcatenatedString(NamedRelation localRelation) {
+		StringBuilder string = new StringBuilder("SELECT ");
+		if (this.areFieldsDistinct) string.append("DISTINCT ");
+		List<Field> localFields = this.getLocalFields();
+		String relationName = localRelation.getAlias() != null ? localRelation.getAlias() : localRelation.getName();
+		String prefix = "";
+		for (Field field : this.fields) {
+			string.append(prefix);
+			string.append(relationName + "." + localFieldName(field, localFields.indexOf(field) + 1));
+			prefix = ", ";
+		}
+		string.append(" FROM ");
+		string.append(localRelation.toString());
+		if (this.ordering != null) {
+			string.append(" ORDER BY ");
+			prefix = "";
+			for (OrderingItem field : this.ordering) {
+				string.append(prefix);
+				string.append(relationName + "." + localFieldName(field.getField(), localFields.indexOf(field.getField()) + 1));
+				if (field.getOrderingType() != null) string.append(" " + field.getOrderingType());
+				prefix = ", ";
+			}
+		}
+		if (this.offset > 0) {
+			string.append(" OFFSET " + this.offset);
+		}
+		if (this.numRows > -1) {
+			string.append(" FETCH NEXT " + this.numRows + " ROWS ONLY");
+		}
+		return string.toString();
+	}
+	
+	/**
+	 * Retrieves the fields selected by the local query of this query: the fields of the SELECT clause
+	 * followed by the fields appearing in ORDER BY but not in SELECT.
+	 * 
+	 * @return the fields of the local query
+	 */
+	private List<Field> getLocalFields() {
+		List<Field> localFields = new LinkedList<Field>();
+		localFields.addAll(this.fields);
+		if (this.ordering != null) {
+			for (OrderingItem orderingField : this.ordering) {
+				if (!localFields.contains(orderingField.getField())) { // assuming reference equality
+					localFields.add(orderingField.getField());
+				}
+			}
+		}
+		return localFields;
+	}
+	
+	/**
+	 * Retrieves the name of a field in the results of the local query of this query.
+	 * 
+	 * @param field
+	 *                field of the local query
+	 * @param i
+	 *                unique sequential number of this field in the local query
+	 * @return the field alias if the field has one, the field name if it is a named field, or
+	 *         anonymous prefix concatenated with i otherwise
+	 */
+	private static String localFieldName(Field field, int i) {
+		if (field.getAlias() != null) return field.getAlias();
+		return field instanceof NamedField ? ((NamedField)field).getField() : Field.ALIAS_ANONYMOUS_PREFIX + i;
+	}
 }
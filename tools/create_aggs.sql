@@ -1,5 +1,6 @@
 /**
- * _intermediate and _final variants of the five standard aggregate functions: AVG, SUM, COUNT, MIN, MAX.
+ * _intermediate and _final variants of the five standard aggregate functions: AVG, SUM, COUNT, MIN, MAX,
+ * and of the approximate APPROX_COUNT_DISTINCT (defined at the end).
  * Many are identical to their original variant, but still needed to be redefined to satisfy the naming convention.
  * Original PostgreSQL definitions of the five aggregates were taken from: SELECT * FROM pg_aggregate;
  */
@@ -991,4 +992,86 @@ CREATE AGGREGATE MAX_final(anyarray)
     sfunc = array_larger,
     stype = anyarray,
     sortop = >
-);
\ No newline at end of file
+);
+/**
+ * APPROX_COUNT_DISTINCT
+ * Approximate number of distinct non-null values, counted with a HyperLogLog sketch: 2048 one-byte
+ * registers (bytea) holding, for the values hashed to each of them, the greatest position of the first
+ * 1-bit in the rest of their 64-bit hash (the first 64 bits of their md5); the standard error is about 2.3%.
+ * The sketch is built set-wise rather than by a row-by-row state function: the query collects the hash
+ * codes of the values with array_agg (see AggregateField), and the sketch is assembled once per group
+ * from the greatest rank of each register, so these are plain functions taking arrays, not aggregates.
+ * intermediate builds the sketch, final merges sketches (register-wise maximum) and estimates the count.
+ * The master merges the sketches the same way (see AggregateMerger.HllAccumulator).
+ */
+
+DROP AGGREGATE IF EXISTS APPROX_COUNT_DISTINCT(anyelement);
+DROP AGGREGATE IF EXISTS APPROX_COUNT_DISTINCT_intermediate(anyelement);
+DROP AGGREGATE IF EXISTS APPROX_COUNT_DISTINCT_final(bytea);
+DROP FUNCTION IF EXISTS HLL_add(bytea, anyelement);
+DROP FUNCTION IF EXISTS HLL_merge(bytea, bytea);
+
+-- register * 64 + rank of a value (null if the value is null), inlined in the calling query
+
+CREATE OR REPLACE FUNCTION HLL_code(anyelement) RETURNS int4 AS
+    $$
+    SELECT (('x' || substr(md5($1::text), 1, 3))::bit(12)::int >> 1) * 64
+        + coalesce(nullif(position('1' in (('x' || substr(md5($1::text), 3, 14))::bit(56) << 3)::bit(53)::text), 0), 54)
+    $$
+    LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION HLL_estimate(bytea) RETURNS int8 AS
+    $$
+    DECLARE
+        m float8 := 2048;
+        harmonic float8 := 0;
+        zeros int := 0;
+        estimate float8;
+    BEGIN
+        IF $1 IS NULL THEN
+            RETURN 0;
+        END IF;
+        FOR i IN 0 .. 2047 LOOP
+            harmonic := harmonic + power(2, -get_byte($1, i));
+            IF get_byte($1, i) = 0 THEN
+                zeros := zeros + 1;
+            END IF;
+        END LOOP;
+        estimate := 0.7213 / (1 + 1.079 / m) * m * m / harmonic;
+        IF estimate <= 2.5 * m AND zeros > 0 THEN -- small range correction (linear counting)
+            estimate := m * ln(m / zeros);
+        END IF;
+        RETURN round(estimate)::int8;
+    END
+    $$
+    LANGUAGE plpgsql IMMUTABLE;
+
+-- APPROX_COUNT_DISTINCT_intermediate(array_agg(HLL_code(x))): the sketch of the values
+
+CREATE OR REPLACE FUNCTION APPROX_COUNT_DISTINCT_intermediate(int4[]) RETURNS bytea AS
+    $$
+    SELECT decode(string_agg(lpad(to_hex(coalesce(r.rank, 0)), 2, '0'), '' ORDER BY g.register), 'hex')
+    FROM generate_series(0, 2047) AS g(register)
+    LEFT JOIN (SELECT code >> 6 AS register, max(code & 63) AS rank FROM unnest($1) AS code GROUP BY 1) AS r
+    ON r.register = g.register
+    $$
+    LANGUAGE sql IMMUTABLE;
+
+-- APPROX_COUNT_DISTINCT_final(array_agg(sketch)): the estimate from the merged sketches
+
+CREATE OR REPLACE FUNCTION APPROX_COUNT_DISTINCT_final(bytea[]) RETURNS int8 AS
+    $$
+    SELECT HLL_estimate(decode(string_agg(lpad(to_hex(r.rank), 2, '0'), '' ORDER BY r.register), 'hex'))
+    FROM (SELECT g.register, max(get_byte(s.sketch, g.register)) AS rank
+        FROM unnest($1) AS s(sketch), generate_series(0, 2047) AS g(register)
+        WHERE s.sketch IS NOT NULL GROUP BY g.register) AS r
+    $$
+    LANGUAGE sql IMMUTABLE;
+
+-- APPROX_COUNT_DISTINCT(array_agg(HLL_code(x))) (run on a single node)
+
+CREATE OR REPLACE FUNCTION APPROX_COUNT_DISTINCT(int4[]) RETURNS int8 AS
+    $$
+    SELECT HLL_estimate(APPROX_COUNT_DISTINCT_intermediate($1))
+    $$
+    LANGUAGE sql IMMUTABLE;
@@ -0,0 +1,48 @@
+CREATE TABLE table_versions (
+	tablename TEXT PRIMARY KEY,
+	version BIGINT NOT NULL DEFAULT 0
+);
+
+INSERT INTO table_versions (tablename) VALUES
+	('region'), ('nation'), ('part'), ('supplier'), ('partsupp'), ('customer'), ('orders'), ('lineitem');
+
+CREATE OR REPLACE FUNCTION table_bumpVersion() RETURNS TRIGGER AS
+$$
+	BEGIN
+		UPDATE table_versions SET version = version + 1 WHERE tablename = TG_TABLE_NAME;
+		RETURN NULL;
+	END;
+$$
+LANGUAGE plpgsql;
+
+CREATE TRIGGER region_bumpVersion
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON region
+FOR EACH STATEMENT EXECUTE PROCEDURE table_bumpVersion();
+
+CREATE TRIGGER nation_bumpVersion
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON nation
+FOR EACH STATEMENT EXECUTE PROCEDURE table_bumpVersion();
+
+CREATE TRIGGER part_bumpVersion
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON part
+FOR EACH STATEMENT EXECUTE PROCEDURE table_bumpVersion();
+
+CREATE TRIGGER supplier_bumpVersion
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON supplier
+FOR EACH STATEMENT EXECUTE PROCEDURE table_bumpVersion();
+
+CREATE TRIGGER partsupp_bumpVersion
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON partsupp
+FOR EACH STATEMENT EXECUTE PROCEDURE table_bumpVersion();
+
+CREATE TRIGGER customer_bumpVersion
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON customer
+FOR EACH STATEMENT EXECUTE PROCEDURE table_bumpVersion();
+
+CREATE TRIGGER orders_bumpVersion
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON orders
+FOR EACH STATEMENT EXECUTE PROCEDURE table_bumpVersion();
+
+CREATE TRIGGER lineitem_bumpVersion
+AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON lineitem
+FOR EACH STATEMENT EXECUTE PROCEDURE table_bumpVersion();
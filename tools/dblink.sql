@@ -0,0 +1,18 @@
+CREATE EXTENSION IF NOT EXISTS dblink;
+
+-- Foreign server openplum_<nodeid> through which this node pulls results from node <nodeid>
+-- (see DirectDatabaseManager); the user mapping, for the user running this function
+-- (the one OpenPlum connects as), keeps the password out of the pulling queries
+CREATE OR REPLACE FUNCTION createnodeserver(IN nodeid TEXT, IN nodehost TEXT, IN nodeport TEXT, IN nodedb TEXT, IN nodeuser TEXT, IN nodepassword TEXT) RETURNS VOID AS $$
+BEGIN
+	EXECUTE format('DROP SERVER IF EXISTS %I CASCADE', 'openplum_' || nodeid);
+	EXECUTE format('CREATE SERVER %I FOREIGN DATA WRAPPER dblink_fdw OPTIONS (host %L, port %L, dbname %L)', 'openplum_' || nodeid, nodehost, nodeport, nodedb);
+	EXECUTE format('CREATE USER MAPPING FOR CURRENT_USER SERVER %I OPTIONS (user %L, password %L)', 'openplum_' || nodeid, nodeuser, nodepassword);
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION pullinto(IN servername TEXT, IN querytxt TEXT, IN intotbl TEXT, IN coldefs TEXT) RETURNS VOID AS $$
+BEGIN
+	EXECUTE ( 'INSERT INTO ' || intotbl || ' SELECT * FROM dblink(' || quote_literal(servername) || ', ' || quote_literal(querytxt) || ') AS t(' || coldefs || ')' );
+END;
+$$ LANGUAGE plpgsql;
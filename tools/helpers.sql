@@ -3,15 +3,25 @@ BEGIN
 	IF NOT EXISTS ( SELECT * FROM pg_catalog.pg_tables WHERE tablename = tblname) THEN
 		EXECUTE ( 'CREATE TABLE ' || tblname || ' (' || tblschema || ')' );
 	END IF;
+EXCEPTION
+	-- created meanwhile by a concurrent connection
+	WHEN duplicate_table OR unique_violation THEN
+		NULL;
 END;
 $$ LANGUAGE plpgsql;
 
 CREATE OR REPLACE FUNCTION executeinto(IN querytxt TEXT, IN intotbl TEXT) RETURNS VOID AS $$
 BEGIN
 	IF NOT EXISTS ( SELECT * FROM pg_catalog.pg_tables WHERE tablename = intotbl) THEN
-		EXECUTE ( 'CREATE TABLE ' || intotbl || ' AS (' || querytxt || ')' );
-	ELSE
-		EXECUTE ( 'INSERT INTO ' || intotbl || ' (' || querytxt || ')' );
+		BEGIN
+			EXECUTE ( 'CREATE TABLE ' || intotbl || ' AS (' || querytxt || ')' );
+			RETURN;
+		EXCEPTION
+			-- created meanwhile by a concurrent connection
+			WHEN duplicate_table OR unique_violation THEN
+				NULL;
+		END;
 	END IF;
+	EXECUTE ( 'INSERT INTO ' || intotbl || ' (' || querytxt || ')' );
 END;
 $$ LANGUAGE plpgsql;
\ No newline at end of file
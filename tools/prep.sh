@@ -11,9 +11,11 @@ datasets='datasets'
 errorlog=`basename $0`'.log'
 create_schema='create_schema.sql'
 create_schema_triggers='create_schema_triggers.sql'
+create_version_triggers='create_version_triggers.sql'
 create_aggs='create_aggs.sql'
 helpers='helpers.sql'
 bloom='pg_bloom.sql'
+dblink='dblink.sql'
 
 checklog() { # function to check if logfile is empty
 	if [ -s $errorlog ]
@@ -171,6 +173,27 @@ done
 wait
 checklog
 
+# Create version triggers
+echo "Creating version triggers..."
+if [ ! -f $create_version_triggers ]
+then
+	echo "Schema file $create_version_triggers does not exist."
+	echo "Exiting..."
+	exit 1
+fi
+for i in $(seq 0 `expr $numNodes - 1`);
+do
+	(
+		command=`psql -h ${nodes[$i]} -U $pguser -d ${dbs[$i]} -f "$create_version_triggers" --set ON_ERROR_STOP=1 2>&1`
+		if [ $? -ne 0 ]
+		then
+			echo "Error creating version triggers in database ${dbs[$i]} at ${nodes[$i]}: $command."
+		fi
+	) >> $errorlog &
+done
+wait
+checklog
+
 # Create supporting agg functions
 echo "Creating supporting aggregate functions..."
 if [ ! -f $create_aggs ]
@@ -234,6 +257,46 @@ done
 wait
 checklog
 
+# Create dblink functions
+echo "Creating dblink functions..."
+if [ ! -f $dblink ]
+then
+	echo "Dblink functions file $dblink does not exist."
+	echo "Exiting..."
+	exit 1
+fi
+for i in $(seq 0 `expr $numNodes - 1`);
+do
+	(
+		command=`psql -h ${nodes[$i]} -U $pguser -d ${dbs[$i]} -f "$dblink" --set ON_ERROR_STOP=1 2>&1`
+		if [ $? -ne 0 ]
+		then
+			echo "Error creating dblink functions in database ${dbs[$i]} at ${nodes[$i]}: $command."
+		fi
+	) >> $errorlog &
+done
+wait
+checklog
+
+# Create dblink servers (node<j> is the j-th loaded node, as in the configuration)
+echo "Creating dblink servers..."
+pgpassword=`grep -v '^#' $pgpass | head -n 1 | cut -d: -f5`
+for i in $(seq 0 `expr $numNodes - 1`);
+do
+	(
+		for j in $(seq 0 `expr $numNodes - 1`);
+		do
+			command=`psql -h ${nodes[$i]} -U $pguser -d ${dbs[$i]} -c "SELECT createnodeserver('node$j', '${nodes[$j]}', '5432', '${dbs[$j]}', '$pguser', '$pgpassword')" --set ON_ERROR_STOP=1 2>&1`
+			if [ $? -ne 0 ]
+			then
+				echo "Error creating dblink server of node $j in database ${dbs[$i]} at ${nodes[$i]}: $command."
+			fi
+		done
+	) >> $errorlog &
+done
+wait
+checklog
+
 # Fix pipe character at the end of lines, prepare import commands
 echo "Preparing data..."
 importfile=`basename $0`.tmp